@@ -1,9 +1,19 @@
 package src.oscekb5;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.text.NumberFormat;
+import java.text.ParsePosition;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Locale;
 import java.util.List;
 
@@ -12,13 +22,59 @@ import java.util.List;
  * Kontot innehåller medlemsvariabler för saldo, kontonummer, räntesats &
  * kontotyp.
  * 
+ * Saldot lagras som ett heltal i ören och ändras med kontots lås
+ * (historyLock), där kontotypens regler (kreditgräns, uttagsavgift)
+ * kontrolleras mot saldot som ändras. Transaktionen läggs till i historiken
+ * innan låset släpps, så att historiken har samma ordning som
+ * saldoändringarna och varje saldo i historiken verkligen har funnits.
+ * Ändringar av samma konto körs alltså en i taget, medan ändringar av olika
+ * konton inte påverkar varandra. Saldot läses utan lås. Ett stängt konto
+ * markeras genom att saldot ersätts med värdet CLOSED, vilket gör att
+ * senare ändringar misslyckas i stället för att gå förlorade.
+ * 
+ * Saldo och historik ligger normalt i kontoobjektet, med historiken
+ * komprimerad i en CompactLedger, men kan flyttas till ett OffHeapStore
+ * utanför heapen. Kontot är då bara en tunn vy mot lagret.
+ * Historiken kan också vara en TieredHistory, där äldre transaktioner
+ * arkiveras på disk.
+ * 
  * @author Oscar Ekberg, oscekb-5
  */
 public abstract class Account implements Serializable {
+    private static final long serialVersionUID = -6456379020764468899L;
+    /** Returneras av saldooperationer som misslyckades */
+    static final long FAILED = Long.MIN_VALUE;
+    /** Saldots värde när kontot har stängts */
+    protected static final long CLOSED = Long.MIN_VALUE;
+
+    private static final VarHandle DIRTY;
+
+    static {
+        try {
+            DIRTY = MethodHandles.lookup().findVarHandle(Account.class, "dirty", boolean.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Saldo i kronor, används bara av Java-serialiseringen (äldre sparade banker)
     private float balance;
+    private transient volatile long minorBalance;
+    private transient long closingBalance;
     private final int accountNumber;
     /* private static final float INTEREST_RATE = 0.024f; */
     private final String accountType;
+    private transient TransactionHistory history = new CompactLedger();
+    private transient OffHeapStore store;
+    // Lagrets generation när kontot anslöts, se OffHeapStore.getGeneration
+    private transient int storeGeneration;
+    // Ändrat sedan banken senast sparades, samt antal transaktioner som sparats
+    private transient volatile boolean dirty;
+    private transient int savedTransactions;
+
+    private static final int EXPORT_CHUNK = 256;
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     /**
      * Konstruktor för klassen Account.
@@ -41,10 +97,7 @@ public abstract class Account implements Serializable {
      */
     @Override
     public String toString() {
-        NumberFormat nf = NumberFormat.getCurrencyInstance(Locale.of("sv", "SE"));
-        nf.setMinimumFractionDigits(2);
-        nf.setMaximumFractionDigits(2);
-        String nfBalance = nf.format(balance);
+        String nfBalance = getCurrencyFormat().format(getMinorBalance() / 100.0);
         return accountNumber + " " + nfBalance + " " + accountType + getFormattedInterest();
     }
 
@@ -54,7 +107,7 @@ public abstract class Account implements Serializable {
      * @return saldot i form av float
      */
     public float getBalance() {
-        return balance;
+        return getMinorBalance() / 100f;
     }
 
     /**
@@ -63,7 +116,133 @@ public abstract class Account implements Serializable {
      * @param balance kontots saldo
      */
     public void setBalance(float balance) {
-        this.balance = balance;
+        setMinorBalance(toMinorUnits(balance));
+    }
+
+    /**
+     * Returnerar kontots saldo i ören. För ett stängt konto returneras saldot
+     * vid stängningen.
+     * 
+     * @return saldot i ören
+     */
+    public long getMinorBalance() {
+        long balance = loadBalance();
+        return balance == CLOSED ? closingBalance : balance;
+    }
+
+    /**
+     * Sätter kontots saldo i ören, används vid inläsning av en sparad bank
+     * 
+     * @param balance saldot i ören
+     */
+    void setMinorBalance(long balance) {
+        OffHeapStore store = this.store;
+        if (store == null) {
+            minorBalance = balance;
+        } else {
+            store.setBalance(accountNumber, balance);
+        }
+    }
+
+    /**
+     * Läser saldot i ören som det är lagrat, dvs. CLOSED för ett stängt konto.
+     * Används av subklassernas saldoändringar. Ett konto som anslöts till lagret
+     * innan det tömdes räknas som stängt, så att det inte kan ändra saldot för
+     * ett nyare konto med samma kontonummer.
+     * 
+     * @return saldot i ören, eller CLOSED
+     */
+    protected final long loadBalance() {
+        OffHeapStore store = this.store;
+        if (store == null) {
+            return minorBalance;
+        }
+        return store.getGeneration() == storeGeneration ? store.getBalance(accountNumber) : CLOSED;
+    }
+
+    /**
+     * Sätter saldot. Den som anropar måste hålla historyLock() och ha läst
+     * saldot med loadBalance() med samma lås.
+     * 
+     * @param update nytt saldo i ören
+     * @return false ifall kontot anslöts till ett lager som sedan tömts, och
+     *         saldot därför inte ändrades
+     */
+    protected final boolean storeBalance(long update) {
+        OffHeapStore store = this.store;
+        if (store == null) {
+            minorBalance = update;
+            return true;
+        }
+        if (store.getGeneration() != storeGeneration) {
+            return false;
+        }
+        store.setBalance(accountNumber, update);
+        return true;
+    }
+
+    /**
+     * Flyttar kontots saldo till angivet lager utanför heapen. Måste anropas
+     * innan kontot blir synligt för andra trådar.
+     * 
+     * @param store lagret som kontot ska använda
+     */
+    void attach(OffHeapStore store) {
+        store.setBalance(accountNumber, loadBalance());
+        storeGeneration = store.getGeneration();
+        this.store = store;
+    }
+
+    /**
+     * Kopierar kontots historik till target och använder därefter target som
+     * historik. Måste anropas innan kontot blir synligt för andra trådar.
+     * 
+     * @param target den nya historiken
+     */
+    void replaceHistory(TransactionHistory target) {
+        synchronized (history) {
+            for (int i = 0; i < history.size(); i++) {
+                target.append(history.getTime(i), history.getAmount(i), history.getBalance(i));
+            }
+        }
+        this.history = target;
+    }
+
+    /**
+     * Markerar kontot som ändrat sedan banken senast sparades.
+     * 
+     * @return true ifall kontot inte redan var markerat
+     */
+    boolean markDirty() {
+        return !dirty && DIRTY.compareAndSet(this, false, true);
+    }
+
+    /**
+     * Tar bort markeringen från markDirty. Anropas innan kontot sparas, så att
+     * ändringar under sparningen markerar kontot på nytt.
+     */
+    void markClean() {
+        dirty = false;
+    }
+
+    /**
+     * Returnerar antalet transaktioner i historiken som redan har sparats.
+     * Den som anropar måste hålla historikobjektets lås.
+     * 
+     * @return antal sparade transaktioner
+     */
+    int getSavedTransactions() {
+        return savedTransactions;
+    }
+
+    /**
+     * Sätter antalet transaktioner i historiken som har sparats. Den som
+     * anropar måste hålla historikobjektets lås.
+     * 
+     * @param savedTransactions antal sparade transaktioner
+     */
+    void setSavedTransactions(int savedTransactions) {
+        this.savedTransactions = savedTransactions;
     }
 
     /**
@@ -85,29 +264,325 @@ public abstract class Account implements Serializable {
     }
 
     /**
-     * Returnerar datum och tid i specificerat format
+     * Stänger kontot, därefter misslyckas insättningar och uttag. Anropas av
+     * kontots ägare med kundens lås, så att kontot bara stängs en gång. Kontots
+     * eget lås tas också, så att kontot inte kan stängas mitt i en överföring,
+     * och saldot ändras med historyLock() som vid andra saldoändringar.
      * 
-     * @return formaterat datum och tid
+     * @return saldot i ören vid stängningen, eller FAILED ifall kontot redan
+     *         var stängt
      */
-    protected String getCurrentFormattedDateTime() {
-        DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    synchronized long close() {
+        synchronized (historyLock()) {
+            long balance = loadBalance();
+            if (balance == CLOSED) {
+                return FAILED;
+            }
+            // Skrivs innan CLOSED publiceras, så att getMinorBalance() ser det
+            closingBalance = balance;
+            return storeBalance(CLOSED) ? balance : FAILED;
+        }
+    }
 
-        String date = LocalDateTime.now().format(format);
-        return date;
+    /**
+     * Returnerar om kontot har stängts
+     * 
+     * @return true ifall kontot är stängt
+     */
+    boolean isClosed() {
+        return loadBalance() == CLOSED;
     }
 
     /**
-     * Formatterar summan till svensk standard samt med två decimaler
+     * Returnerar kontots transaktionshistorik i strukturerad form. Den som
+     * läser historiken måste hålla historikobjektets lås.
      * 
-     * @param amount summan som önskas formatteras
-     * @return
+     * @return transaktionshistoriken
+     */
+    TransactionHistory getLedger() {
+        return history;
+    }
+
+    /**
+     * Sätter in ett belopp.
+     * 
+     * @param amount belopp i ören
+     * @param time   transaktionens tidpunkt i millisekunder sedan epoch
+     * @return saldot i ören efter insättningen, eller FAILED ifall kontot är
+     *         stängt
+     */
+    long depositMinor(long amount, long time) {
+        synchronized (historyLock()) {
+            long balance = loadBalance();
+            if (balance == CLOSED || !storeBalance(balance + amount)) {
+                return FAILED;
+            }
+            recordTransaction(time, amount, balance + amount);
+            return balance + amount;
+        }
+    }
+
+    /**
+     * Räknar ut räntan på aktuellt saldo och bokför den som en transaktion.
+     * Räntan räknas på det saldo som ändras, med kontots lås, så att samtidiga
+     * insättningar och uttag inte går förlorade.
+     * 
+     * @param time     transaktionens tidpunkt i millisekunder sedan epoch
+     * @param fraction andel av ett år som räntan avser, 1 för hela årsräntan
+     * @return bokförd ränta i ören (negativ för ränta som dras), 0 ifall ingen
+     *         ränta bokfördes, eller FAILED ifall kontot är stängt
      */
-    protected String getFormattedAmount(float amount) {
+    long postInterest(long time, double fraction) {
+        synchronized (historyLock()) {
+            long balance = loadBalance();
+            if (balance == CLOSED) {
+                return FAILED;
+            }
+            long interest = prorate(balance, calcInterest(balance), fraction);
+            if (interest == 0) {
+                return 0;
+            }
+            if (!storeBalance(balance + interest)) {
+                return FAILED;
+            }
+            recordTransaction(time, interest, balance + interest);
+            return interest;
+        }
+    }
+
+    /**
+     * Räknar om årsräntan till räntan för en del av ett år, med samma
+     * räntesats som ränta på ränta. Räntan för en period är alltså
+     * saldo * ((1 + r)^fraction - 1) där r är årsräntesatsen, så att räntan
+     * för alla perioder under ett år tillsammans motsvarar årsräntan.
+     * 
+     * @param balance  saldot i ören
+     * @param annual   årsräntan i ören för saldot
+     * @param fraction andel av ett år
+     * @return räntan för perioden i ören, avrundad till hela ören
+     */
+    static long prorate(long balance, long annual, double fraction) {
+        if (fraction == 1 || annual == 0) {
+            return annual;
+        }
+        double rate = (double) annual / balance;
+        return Math.round(balance * Math.expm1(fraction * Math.log1p(rate)));
+    }
+
+    /**
+     * Bokför en transaktion som redan godkänts, t.ex. vid uppspelning av
+     * journalen. Kontotypens regler kontrolleras inte.
+     * 
+     * @param amount belopp i ören, negativt vid uttag
+     * @param time   transaktionens tidpunkt i millisekunder sedan epoch
+     */
+    void applyTransaction(long amount, long time) {
+        depositMinor(amount, time);
+    }
+
+    /**
+     * Returnerar kontots lås för saldoändringar. Med låset ska saldot läsas
+     * med loadBalance, ändras med storeBalance och transaktionen läggas till
+     * med recordTransaction innan låset släpps.
+     * 
+     * @return historikobjektet
+     */
+    protected final Object historyLock() {
+        return history;
+    }
+
+    /**
+     * Lägger till en transaktion i historiken.
+     * 
+     * @param time    tidpunkt i millisekunder sedan epoch
+     * @param amount  beloppet i ören, negativt vid uttag
+     * @param balance saldot i ören efter transaktionen
+     */
+    protected void recordTransaction(long time, long amount, long balance) {
+        synchronized (history) {
+            history.append(time, amount, balance);
+        }
+    }
+
+    /**
+     * Returnerar transaktionshistoriken för det aktuella kontot. Strängarna
+     * formateras först när metoden anropas.
+     * 
+     * @return lista med transaktioner
+     */
+    protected List<String> getTransactions() {
+        NumberFormat nf = getCurrencyFormat();
+        ZoneId zone = ZoneId.systemDefault();
+        synchronized (history) {
+            int size = history.size();
+            List<String> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(formatTransaction(i, nf, zone));
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Formaterar en sida av transaktionshistoriken, med den senaste
+     * transaktionen först.
+     * 
+     * @param end   position (exklusiv) som sidan slutar före, -1 för att börja
+     *              med den senaste transaktionen
+     * @param limit max antal transaktioner
+     * @param out   lista som transaktionerna läggs till i
+     * @return positionen för den äldsta transaktionen i out, vilken anges som
+     *         end för nästa sida. 0 när historikens början har nåtts.
+     */
+    int formatTransactions(int end, int limit, List<String> out) {
+        NumberFormat nf = getCurrencyFormat();
+        ZoneId zone = ZoneId.systemDefault();
+        synchronized (history) {
+            int index = end < 0 ? history.size() : Math.min(end, history.size());
+            int start = Math.max(0, index - limit);
+            while (index > start) {
+                out.add(formatTransaction(--index, nf, zone));
+            }
+            return start;
+        }
+    }
+
+    /**
+     * Skriver transaktionshistoriken till angiven ström, en transaktion per rad.
+     * Historiken formateras i mindre delar med historikens lås, och skrivs
+     * till strömmen utan lås så att kontot kan uppdateras under exporten.
+     * 
+     * @param out  strömmen som transaktionerna skrivs till
+     * @param nf   formaterare för belopp
+     * @param zone tidszon för tidpunkter
+     * @return antal skrivna transaktioner
+     * @throws IOException ifall strömmen inte kunde skrivas
+     */
+    int exportTransactions(Writer out, NumberFormat nf, ZoneId zone) throws IOException {
+        StringBuilder chunk = new StringBuilder();
+        String newLine = System.lineSeparator();
+        int index = 0;
+        boolean done = false;
+        while (!done) {
+            synchronized (history) {
+                int end = Math.min(history.size(), index + EXPORT_CHUNK);
+                for (; index < end; index++) {
+                    chunk.append(' ').append(formatTransaction(index, nf, zone)).append(newLine);
+                }
+                done = index >= history.size();
+            }
+            out.append(chunk);
+            chunk.setLength(0);
+        }
+        return index;
+    }
+
+    /**
+     * Formaterar en enskild transaktion i historiken
+     * 
+     * @param index transaktionens position i historiken
+     * @param nf    formaterare för belopp
+     * @param zone  tidszon för tidpunkten
+     * @return formaterad transaktion
+     */
+    protected String formatTransaction(int index, NumberFormat nf, ZoneId zone) {
+        String date = LocalDateTime.ofInstant(Instant.ofEpochMilli(history.getTime(index)), zone)
+                .format(DATE_FORMAT);
+        long amount = history.getAmount(index);
+        String sign = amount < 0 ? " -" : " ";
+        return date + sign + nf.format(Math.abs(amount) / 100.0) + " Saldo: "
+                + nf.format(history.getBalance(index) / 100.0);
+    }
+
+    /**
+     * Returnerar en formaterare för belopp enligt svensk standard med två
+     * decimaler
+     * 
+     * @return formaterare för belopp
+     */
+    protected static NumberFormat getCurrencyFormat() {
         NumberFormat nf = NumberFormat.getCurrencyInstance(Locale.of("sv", "SE"));
         nf.setMinimumFractionDigits(2);
         nf.setMaximumFractionDigits(2);
+        return nf;
+    }
 
-        return nf.format(amount);
+    /**
+     * Räknar om ett belopp i kronor till ören
+     * 
+     * @param amount belopp i kronor
+     * @return belopp i ören
+     */
+    static long toMinorUnits(float amount) {
+        return Math.round((double) amount * 100);
+    }
+
+    /**
+     * Lägger till en transaktion i strängformat (från en bank sparad i ett äldre
+     * format) i historiken. Strängar som inte kan tolkas hoppas över.
+     * 
+     * @param transaction transaktionen i strängformat
+     * @param nf          formaterare för belopp
+     */
+    void restoreTransaction(String transaction, NumberFormat nf) {
+        try {
+            long time = LocalDateTime.parse(transaction.substring(0, 19), DATE_FORMAT)
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            int saldo = transaction.indexOf(" Saldo: ");
+            boolean negative = transaction.charAt(20) == '-';
+            Number amount = nf.parse(transaction.substring(negative ? 21 : 20, saldo), new ParsePosition(0));
+            Number balance = nf.parse(transaction.substring(saldo + 8), new ParsePosition(0));
+            if (amount == null || balance == null) {
+                return;
+            }
+            long minorAmount = Math.round(amount.doubleValue() * 100);
+            history.append(time, negative ? -minorAmount : minorAmount, Math.round(balance.doubleValue() * 100));
+        } catch (RuntimeException e) {
+            // Transaktionen kunde inte tolkas och hoppas över
+        }
+    }
+
+    /**
+     * Tolkar historiken från ett konto som serialiserats i det äldre formatet,
+     * där subklasserna lagrade historiken som en lista med strängar.
+     * 
+     * @param fields subklassens fält ur den serialiserade strömmen
+     * @throws IOException            ifall fälten inte kunde läsas
+     * @throws ClassNotFoundException ifall historikens klass inte finns
+     */
+    @SuppressWarnings("unchecked")
+    protected void restoreLegacyHistory(ObjectInputStream.GetField fields)
+            throws IOException, ClassNotFoundException {
+        if (fields.defaulted("history")) {
+            return;
+        }
+        List<String> legacy = (List<String>) fields.get("history", null);
+        if (legacy != null) {
+            NumberFormat nf = getCurrencyFormat();
+            for (String transaction : legacy) {
+                restoreTransaction(transaction, nf);
+            }
+        }
+    }
+
+    /**
+     * Läser in kontot via Java-serialisering. Konton sparade innan historiken
+     * fanns i denna klass saknar historik, som då skapas tom.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        minorBalance = toMinorUnits(balance);
+        if (history == null) {
+            history = new CompactLedger();
+        }
+    }
+
+    /**
+     * Skriver kontot via Java-serialisering med saldot i kronor.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        balance = getBalance();
+        out.defaultWriteObject();
     }
 
     /**
@@ -119,26 +594,43 @@ public abstract class Account implements Serializable {
     protected abstract float calcFinalInterest();
 
     /**
-     * Implementerar olika räntor för uttag beroende på kontotyp
+     * Räknar ut räntan för ett saldo enligt kontotypens räntesats
+     * 
+     * @param balance saldo i ören
+     * @return räntan i ören, negativ ifall räntan ska dras från kontot
+     */
+    protected abstract long calcInterest(long balance);
+
+    /**
+     * Gör ett uttag med aktuell tid
      * 
      * @param amount summan för uttag
      * @return booleskt värde, false för misslyckat uttag, annars true
      */
-    protected abstract boolean withdraw(int amount);
+    protected boolean withdraw(int amount) {
+        return withdrawMinor(amount, System.currentTimeMillis()) != FAILED;
+    }
 
     /**
-     * Implementerar insättning för vardera subklass
+     * Gör en insättning med aktuell tid
      * 
      * @param amount summan för insättning
+     * @return false ifall kontot är stängt, annars true
      */
-    protected abstract void deposit(float amount);
+    protected boolean deposit(float amount) {
+        return depositMinor(toMinorUnits(amount), System.currentTimeMillis()) != FAILED;
+    }
 
     /**
-     * Returnerar transaktionshistoriken för det aktuella kontot
+     * Implementerar uttag med olika regler beroende på kontotyp. Reglerna ska
+     * kontrolleras mot det saldo som ändras, med historyLock().
      * 
-     * @return lista med transaktioner
+     * @param amount summan för uttag i kronor
+     * @param time   transaktionens tidpunkt i millisekunder sedan epoch
+     * @return det totala dragna beloppet i ören (inklusive avgifter), eller
+     *         FAILED för misslyckat uttag
      */
-    protected abstract List<String> getTransactions();
+    protected abstract long withdrawMinor(int amount, long time);
 
     /**
      * Returnerar en formatterad sträng med räntan för vardera kontotyp
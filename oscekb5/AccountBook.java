@@ -1,56 +1,114 @@
 package src.oscekb5;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.NumberFormat;
+import java.time.ZoneId;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 /**
- * Klassen representerar en adressbok som kan spara och läsa personer från
- * fil.
+ * Klassen exporterar kunders transaktioner till textfil.
+ * 
+ * Transaktionerna skrivs direkt till en buffrad fil medan kundens konton
+ * gås igenom, utan någon mellanliggande lista, så att minnesanvändningen är
+ * begränsad oavsett hur stor historiken är. Hela banken kan exporteras i ett
+ * enda svep.
  * 
  * @author Oscar Ekberg, oscekb-5
  */
 public class AccountBook {
-    public ArrayList<String> bankData = new ArrayList<>();
+    private static final int BUFFER_SIZE = 1 << 16;
 
     /**
-     * Lägger till transaktioner för en kund i adressboken.
+     * Exporterar transaktionerna för en kund till en fil.
      * 
      * @param customer aktuell kund
+     * @param filename filnamn
      */
-    public void addTransactions(Customer customer) {
-        bankData.add("Transaktioner för kund " + customer.toString() + ": ");
-
-        for (Account account : customer.getAccounts()) {
-            List<String> allTransactions = account.getTransactions();
-            bankData.add("Kontonummer: " + account.getAccountNumber());
-
-            if (allTransactions.isEmpty()) {
-                bankData.add(" Inga transaktioner hittades för detta konto.");
-                continue;
-            }
-
-            for (String transaction : allTransactions) {
-                bankData.add(" " + transaction);
-            }
+    public void exportCustomer(Customer customer, String filename) {
+        try (Writer out = open(filename)) {
+            writeCustomer(customer, out, Account.getCurrencyFormat(), ZoneId.systemDefault());
+            System.out.println("Saved to: " + "src/oscekb5/files/" + filename);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not save file");
         }
+    }
 
+    /**
+     * Exporterar transaktionerna för bankens samtliga kunder till en fil.
+     * 
+     * @param bank     banken som exporteras
+     * @param filename filnamn
+     * @return antal exporterade kunder
+     */
+    public int exportBank(BankLogic bank, String filename) {
+        return exportBank(bank, filename, Progress.NONE);
     }
 
     /**
-     * Sparar adressbokens innehåll till en fil.
+     * Exporterar transaktionerna för bankens samtliga kunder till en fil och
+     * rapporterar förloppet per kund. Ifall exporten avbryts tas den
+     * ofullständiga filen bort.
      * 
-     * @param filename sökväg till fil
+     * @param bank     banken som exporteras
+     * @param filename filnamn
+     * @param progress förloppet som rapporteras och kan avbryta exporten
+     * @return antal exporterade kunder
+     * @throws CancellationException ifall exporten avbröts
      */
-    public void save(String filename) {
-        try (PrintWriter out = new PrintWriter("src/oscekb5/files/" + filename)) {
-            for (String bd : bankData) {
-                out.println(bd);
+    public int exportBank(BankLogic bank, String filename, Progress progress) {
+        NumberFormat nf = Account.getCurrencyFormat();
+        ZoneId zone = ZoneId.systemDefault();
+        List<Customer> customers = bank.getAllCustomerObjs();
+        int count = 0;
+        try (Writer out = open(filename)) {
+            for (Customer customer : customers) {
+                progress.checkpoint(count, customers.size());
+                writeCustomer(customer, out, nf, zone);
+                count++;
             }
             System.out.println("Saved to: " + "src/oscekb5/files/" + filename);
+        } catch (CancellationException e) {
+            try {
+                Files.deleteIfExists(Paths.get("src/oscekb5/files/" + filename));
+            } catch (IOException ignored) {
+                // Den ofullständiga filen får ligga kvar
+            }
+            throw e;
         } catch (IOException e) {
             throw new RuntimeException("Could not save file");
         }
+        progress.update(count, count);
+        return count;
+    }
+
+    /**
+     * Skriver transaktionerna för en kund, ett konto i taget.
+     */
+    private void writeCustomer(Customer customer, Writer out, NumberFormat nf, ZoneId zone)
+            throws IOException {
+        out.write("Transaktioner för kund " + customer.toString() + ": ");
+        out.write(System.lineSeparator());
+
+        for (Account account : customer.getAccounts()) {
+            out.write("Kontonummer: " + account.getAccountNumber());
+            out.write(System.lineSeparator());
+
+            if (account.exportTransactions(out, nf, zone) == 0) {
+                out.write(" Inga transaktioner hittades för detta konto.");
+                out.write(System.lineSeparator());
+            }
+        }
+    }
+
+    private Writer open(String filename) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(Paths.get("src/oscekb5/files/"
+                + filename)), StandardCharsets.UTF_8), BUFFER_SIZE);
     }
 }
@@ -0,0 +1,186 @@
+package src.oscekb5;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Klassen representerar ett bankgemensamt index över samtliga öppna konton.
+ *
+ * Kontonummer delas ut i följd från BankLogic, därför lagras kontona i en tät
+ * array där positionen är kontonumret minus ett basvärde. Tillsammans med
+ * kontot lagras kontots ägare så att en uppslagning kan kontrollera att
+ * kontot tillhör angivet personnummer.
+ *
+ * Indexet är trådsäkert. Uppslagningar görs optimistiskt utan lås och tar
+ * bara ett läslås ifall en samtidig ändring upptäcks.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class AccountIndex {
+    private static final int BASE = 1000;
+    // Största arraystorlek som JVM:en säkert kan allokera
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private Account[] accounts = new Account[64];
+    private Customer[] owners = new Customer[64];
+
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Lägger till ett konto i indexet.
+     *
+     * @param account kontot
+     * @param owner   kunden som äger kontot
+     */
+    public void put(Account account, Customer owner) {
+        int offset = account.getAccountNumber() - BASE;
+        if (offset < 0) {
+            throw new IllegalArgumentException("Invalid account number: " + account.getAccountNumber());
+        }
+        long stamp = lock.writeLock();
+        try {
+            if (offset >= accounts.length) {
+                grow(offset + 1);
+            }
+            accounts[offset] = account;
+            owners[offset] = owner;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returnerar kontot med angivet kontonummer.
+     *
+     * @param accountId kontonummer
+     * @return kontot, eller null ifall det ej finns
+     */
+    public Account get(int accountId) {
+        int offset = accountId - BASE;
+        if (offset < 0) {
+            return null;
+        }
+        long stamp = lock.tryOptimisticRead();
+        Account[] accounts = this.accounts;
+        Account account = offset < accounts.length ? accounts[offset] : null;
+        if (lock.validate(stamp)) {
+            return account;
+        }
+        stamp = lock.readLock();
+        try {
+            return offset < this.accounts.length ? this.accounts[offset] : null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returnerar kontot med angivet kontonummer ifall det tillhör angiven kund.
+     *
+     * @param pNo       kundens personnummer
+     * @param accountId kontonummer
+     * @return kontot, eller null ifall det ej finns eller tillhör annan kund
+     */
+    public Account get(String pNo, int accountId) {
+        int offset = accountId - BASE;
+        if (pNo == null || offset < 0) {
+            return null;
+        }
+        long stamp = lock.tryOptimisticRead();
+        Account account = null;
+        Customer owner = null;
+        Account[] accounts = this.accounts;
+        Customer[] owners = this.owners;
+        if (offset < accounts.length && offset < owners.length) {
+            account = accounts[offset];
+            owner = owners[offset];
+        }
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                account = offset < this.accounts.length ? this.accounts[offset] : null;
+                owner = offset < this.owners.length ? this.owners[offset] : null;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (owner == null || !owner.getpNo().equals(pNo)) {
+            return null;
+        }
+        return account;
+    }
+
+    /**
+     * Returnerar ägaren till angivet konto.
+     *
+     * @param accountId kontonummer
+     * @return kunden som äger kontot, eller null ifall kontot ej finns
+     */
+    public Customer getOwner(int accountId) {
+        int offset = accountId - BASE;
+        if (offset < 0) {
+            return null;
+        }
+        long stamp = lock.tryOptimisticRead();
+        Customer[] owners = this.owners;
+        Customer owner = offset < owners.length ? owners[offset] : null;
+        if (lock.validate(stamp)) {
+            return owner;
+        }
+        stamp = lock.readLock();
+        try {
+            return offset < this.owners.length ? this.owners[offset] : null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Tar bort angivet konto ur indexet.
+     *
+     * @param accountId kontonummer
+     */
+    public void remove(int accountId) {
+        int offset = accountId - BASE;
+        long stamp = lock.writeLock();
+        try {
+            if (offset < 0 || offset >= accounts.length || accounts[offset] == null) {
+                return;
+            }
+            accounts[offset] = null;
+            owners[offset] = null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Tömmer indexet.
+     */
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            accounts = new Account[64];
+            owners = new Customer[64];
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Utökar arrayerna så att de rymmer minst angivet antal positioner.
+     * Storleken dubblas, men aldrig över MAX_CAPACITY, så att den inte slår
+     * över till ett negativt tal för stora kontonummer.
+     */
+    private void grow(int minCapacity) {
+        int capacity = accounts.length;
+        while (capacity < minCapacity) {
+            capacity = capacity > MAX_CAPACITY / 2 ? MAX_CAPACITY : capacity << 1;
+        }
+        Account[] grownAccounts = new Account[capacity];
+        Customer[] grownOwners = new Customer[capacity];
+        System.arraycopy(accounts, 0, grownAccounts, 0, accounts.length);
+        System.arraycopy(owners, 0, grownOwners, 0, owners.length);
+        accounts = grownAccounts;
+        owners = grownOwners;
+    }
+}
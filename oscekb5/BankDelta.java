@@ -0,0 +1,309 @@
+package src.oscekb5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Klassen representerar en deltafil, dvs. ändringarna i banken sedan
+ * föregående sparning, som läggs ovanpå en ögonblicksbild (BankSnapshot).
+ *
+ * Deltafilerna för en ögonblicksbild heter som den med tillägget .delta1,
+ * .delta2 osv. och läses in i ordning. Varje deltafil innehåller
+ * ögonblicksbildens generation, så deltafiler som blivit kvar från en äldre
+ * ögonblicksbild med samma namn ignoreras. Filen består av ett huvud följt av
+ * en post per ändrad kund (ny, ändrad eller raderad) och en post per ändrat
+ * konto (nytt, ändrat eller stängt). För ett ändrat konto lagras saldo,
+ * uttagsräknare och bara de transaktioner som tillkommit sedan föregående
+ * sparning, så storleken beror på hur mycket som hänt och inte på bankens
+ * storlek. Strängar lagras med en längd på fyra byte (två byte i version 1,
+ * som fortfarande kan läsas).
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class BankDelta {
+    static final int MAGIC = 0x424B4431; // "BKD1"
+    static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 32;
+    private static final byte UPSERT_CUSTOMER = 0;
+    private static final byte DELETE_CUSTOMER = 1;
+    private static final byte SAVINGS = 0;
+    private static final byte CREDIT = 1;
+    private static final byte CLOSED = 2;
+
+    private BankDelta() {
+    }
+
+    /**
+     * Returnerar sökvägen till en deltafil för angiven ögonblicksbild.
+     *
+     * @param base     sökväg till ögonblicksbilden
+     * @param sequence deltafilens nummer, från 1
+     * @return sökväg till deltafilen
+     */
+    static Path path(Path base, int sequence) {
+        return base.resolveSibling(base.getFileName() + ".delta" + sequence);
+    }
+
+    /**
+     * Skriver en deltafil med angivna kunder och konton. Kontonas antal
+     * sparade transaktioner uppdateras.
+     *
+     * @param base              sökväg till ögonblicksbilden
+     * @param sequence          deltafilens nummer, från 1
+     * @param generation        ögonblicksbildens generation
+     * @param nextAccountNumber det senast utdelade kontonumret
+     * @param bank              banken, för uppslagning av kunder och ägare
+     * @param customers         personnummer för ändrade kunder
+     * @param accounts          ändrade konton
+     * @throws IOException ifall filen inte kunde skrivas
+     */
+    static void write(Path base, int sequence, long generation, int nextAccountNumber, BankLogic bank,
+            List<String> customers, List<Account> accounts) throws IOException {
+        Path path = path(base, sequence);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            BankSnapshot.Writer writer = new BankSnapshot.Writer(out);
+            writer.buffer.position(HEADER_SIZE);
+
+            ByteBuffer record = ByteBuffer.allocate(4096);
+            for (String pNo : customers) {
+                record.clear();
+                Customer customer = bank.getCustomerObj(pNo);
+                if (customer == null) {
+                    record.put(DELETE_CUSTOMER);
+                    record = BankSnapshot.putString(record, pNo);
+                } else {
+                    record.put(UPSERT_CUSTOMER);
+                    record = BankSnapshot.putString(record, pNo);
+                    record = putNullable(record, customer.getName());
+                    record = putNullable(record, customer.getSurname());
+                }
+                writer.put(record.flip());
+            }
+
+            for (Account account : accounts) {
+                record.clear();
+                Customer owner = bank.getAccountOwner(account.getAccountNumber());
+                if (owner == null || account.isClosed()) {
+                    record.put(CLOSED);
+                    record.putInt(account.getAccountNumber());
+                    writer.put(record.flip());
+                    continue;
+                }
+                record.put(account instanceof SavingsAccount ? SAVINGS : CREDIT);
+                record.putInt(account.getAccountNumber());
+                record = BankSnapshot.putString(record, owner.getpNo());
+                record = BankSnapshot.putString(record, account.getAccountType());
+                record = BankSnapshot.ensure(record, 12);
+                record.putLong(account.getMinorBalance());
+                record.putInt(account instanceof SavingsAccount
+                        ? ((SavingsAccount) account).getWithdrawalCounter()
+                        : 0);
+                TransactionHistory ledger = account.getLedger();
+                synchronized (ledger) {
+                    int first = account.getSavedTransactions();
+                    int count = ledger.size() - first;
+                    record = BankSnapshot.ensure(record, 8 + count * 24);
+                    record.putInt(first);
+                    record.putInt(count);
+                    for (int k = first; k < first + count; k++) {
+                        record.putLong(ledger.getTime(k));
+                    }
+                    for (int k = first; k < first + count; k++) {
+                        record.putLong(ledger.getAmount(k));
+                    }
+                    for (int k = first; k < first + count; k++) {
+                        record.putLong(ledger.getBalance(k));
+                    }
+                    account.setSavedTransactions(first + count);
+                }
+                writer.put(record.flip());
+            }
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(generation);
+            header.putInt(sequence);
+            header.putInt(nextAccountNumber);
+            header.putInt(customers.size());
+            header.putInt(accounts.size());
+            header.flip();
+            while (header.hasRemaining()) {
+                out.write(header, header.position());
+            }
+            out.force(false);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Lägger deltafilerna för en ögonblicksbild ovanpå den inlästa
+     * ögonblicksbilden, i ordning så länge de finns och hör till den.
+     *
+     * @param base     sökväg till ögonblicksbilden
+     * @param snapshot den inlästa ögonblicksbilden, som uppdateras
+     * @return antal deltafiler som lades till
+     * @throws IOException ifall en deltafil inte kunde läsas
+     */
+    static int apply(Path base, BankSnapshot snapshot) throws IOException {
+        Map<String, Customer> customers = new LinkedHashMap<>();
+        Map<Integer, Account> accounts = new HashMap<>();
+        Map<Integer, Customer> owners = new HashMap<>();
+        for (Customer customer : snapshot.getCustomers()) {
+            customers.put(customer.getpNo(), customer);
+            for (Account account : customer.getAccounts()) {
+                accounts.put(account.getAccountNumber(), account);
+                owners.put(account.getAccountNumber(), customer);
+            }
+        }
+
+        int sequence = 1;
+        while (Files.exists(path(base, sequence))
+                && apply(path(base, sequence), sequence, snapshot, customers, accounts, owners)) {
+            sequence++;
+        }
+        if (sequence > 1) {
+            snapshot.getCustomers().clear();
+            snapshot.getCustomers().addAll(customers.values());
+        }
+        return sequence - 1;
+    }
+
+    /**
+     * Tar bort deltafilerna för en ögonblicksbild.
+     *
+     * @param base sökväg till ögonblicksbilden
+     * @throws IOException ifall en deltafil inte kunde tas bort
+     */
+    static void deleteAll(Path base) throws IOException {
+        for (int sequence = 1; Files.deleteIfExists(path(base, sequence)); sequence++) {
+        }
+    }
+
+    /**
+     * Läser en deltafil och lägger den ovanpå kunderna och kontona.
+     *
+     * @return false ifall deltafilen hör till en annan ögonblicksbild
+     */
+    private static boolean apply(Path path, int sequence, BankSnapshot snapshot, Map<String, Customer> customers,
+            Map<Integer, Account> accounts, Map<Integer, Customer> owners) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (in.size() > Integer.MAX_VALUE) {
+                throw new IOException("Delta too large to map");
+            }
+            ByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC) {
+                throw new IOException("Not a bank delta");
+            }
+            int version = data.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported delta version: " + version);
+            }
+            if (data.getLong() != snapshot.getGeneration() || data.getInt() != sequence) {
+                return false;
+            }
+            // Version 1 lagrade strängarna med en längd på två byte
+            boolean legacy = version == 1;
+            int nextAccountNumber = data.getInt();
+            int customerCount = data.getInt();
+            int accountCount = data.getInt();
+
+            for (int i = 0; i < customerCount; i++) {
+                byte kind = data.get();
+                String pNo = readString(data, legacy);
+                if (kind == DELETE_CUSTOMER) {
+                    Customer customer = customers.remove(pNo);
+                    if (customer != null) {
+                        for (Account account : customer.getAccounts()) {
+                            accounts.remove(account.getAccountNumber());
+                            owners.remove(account.getAccountNumber());
+                        }
+                    }
+                    continue;
+                }
+                String name = readNullable(data, legacy);
+                String surname = readNullable(data, legacy);
+                Customer customer = customers.get(pNo);
+                if (customer == null) {
+                    customers.put(pNo, new Customer(pNo, name, surname));
+                } else if (name != null && surname != null) {
+                    customer.setName(name, surname);
+                }
+            }
+
+            for (int i = 0; i < accountCount; i++) {
+                byte kind = data.get();
+                int accountNumber = data.getInt();
+                if (kind == CLOSED) {
+                    Account account = accounts.remove(accountNumber);
+                    Customer owner = owners.remove(accountNumber);
+                    if (account != null && owner != null) {
+                        owner.closeAccount(account);
+                    }
+                    continue;
+                }
+                Customer owner = customers.get(readString(data, legacy));
+                String accountType = readString(data, legacy);
+                long balance = data.getLong();
+                int withdrawalCounter = data.getInt();
+                int first = data.getInt();
+                int count = data.getInt();
+                int start = data.position();
+                data.position(start + count * 24);
+                if (owner == null) {
+                    continue;
+                }
+                Account account = accounts.get(accountNumber);
+                if (account == null) {
+                    account = kind == SAVINGS
+                            ? new SavingsAccount(accountNumber, accountType)
+                            : new CreditAccount(accountNumber, accountType);
+                    owner.restoreAccount(account);
+                    accounts.put(accountNumber, account);
+                    owners.put(accountNumber, owner);
+                }
+                account.setMinorBalance(balance);
+                if (account instanceof SavingsAccount) {
+                    ((SavingsAccount) account).setWithdrawalCounter(withdrawalCounter);
+                }
+                // Transaktioner som redan finns i historiken hoppas över
+                TransactionHistory ledger = account.getLedger();
+                for (int k = Math.max(0, ledger.size() - first); k < count; k++) {
+                    ledger.append(data.getLong(start + k * 8), data.getLong(start + (count + k) * 8),
+                            data.getLong(start + (2 * count + k) * 8));
+                }
+            }
+            snapshot.setNextAccountNumber(nextAccountNumber);
+            return true;
+        }
+    }
+
+    private static ByteBuffer putNullable(ByteBuffer buffer, String value) {
+        buffer = BankSnapshot.ensure(buffer, 1);
+        buffer.put((byte) (value == null ? 0 : 1));
+        return value == null ? buffer : BankSnapshot.putString(buffer, value);
+    }
+
+    private static String readNullable(ByteBuffer buffer, boolean legacy) {
+        return buffer.get() == 0 ? null : readString(buffer, legacy);
+    }
+
+    private static String readString(ByteBuffer buffer, boolean legacy) {
+        return BankSnapshot.readString(buffer, legacy ? buffer.getShort() & 0xFFFF : buffer.getInt());
+    }
+}
@@ -1,12 +1,19 @@
 package src.oscekb5;
 
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Klassen representerar det publika gränssnittet som hanterar kunder
@@ -14,11 +21,74 @@ import java.util.List;
  * 
  * Klassen hanterar en lista innehållande samtliga bankkunder.
  * 
+ * Klassen är trådsäker. Kunder och konton slås upp i trådsäkra index,
+ * saldon uppdateras med respektive kontos lås och kontonummer delas ut
+ * atomärt, så att insättningar och uttag på olika konton kan köras parallellt
+ * medan ändringar av samma konto körs en i taget.
+ * När journalen är påslagen tar varje ändring dessutom ett delat läslås som
+ * saveBankToFile låser exklusivt, så att ögonblicksbilden och journalen
+ * alltid stämmer överens. Läslåset tas även när saldona ligger i ett
+ * OffHeapStore, så att loadBankToFile inte tömmer lagret mitt i en ändring.
+ * 
+ * I händelsebaserat läge (openEventStore) töms journalen aldrig. Händelserna
+ * sparas i en EventStore och banken i minnet byggs upp från den senaste
+ * kontrollpunkten och händelserna efter den.
+ * 
  * @author Oscar Ekberg, oscekb-5
  */
 public class BankLogic {
-    private final ArrayList<Customer> customers = new ArrayList<>();
-    private int nextAccountNumber = 1000;
+    private final CustomerIndex customers = new CustomerIndex();
+    private final NameIndex names = new NameIndex();
+    private final AccountIndex accounts = new AccountIndex();
+    private final AtomicInteger nextAccountNumber = new AtomicInteger(1000);
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private volatile Journal journal;
+    private volatile EventStore events;
+    private volatile BankMetrics metrics;
+    private final OffHeapStore store;
+    private final HistoryArchive archive;
+    private final ChangeTracker changes = new ChangeTracker();
+    // Senast sparade ögonblicksbild och antal deltafiler ovanpå den, skyddas
+    // av checkpointLock
+    private Path baseFile;
+    private long baseGeneration;
+    private int deltaCount;
+
+    /** Antal deltafiler innan saveBankToFile sparar en ny ögonblicksbild */
+    static final int MAX_DELTAS = 16;
+
+    /**
+     * Konstruktor som skapar en tom bank där saldon och historik lagras på
+     * heapen.
+     */
+    public BankLogic() {
+        this(null);
+    }
+
+    /**
+     * Konstruktor som skapar en tom bank där kontonas saldon och historik
+     * lagras i angivet lager utanför heapen.
+     * 
+     * @param store lagret för saldon och historik, null för att lagra dem på
+     *              heapen
+     */
+    public BankLogic(OffHeapStore store) {
+        this(store, null);
+    }
+
+    /**
+     * Konstruktor som skapar en tom bank där kontonas äldre transaktioner
+     * arkiveras på disk och bara de senaste hålls i minnet.
+     * 
+     * @param store   lagret för saldon (och historik om archive är null), null
+     *                för att lagra dem på heapen
+     * @param archive arkivet för äldre transaktioner, null för att hålla hela
+     *                historiken i minnet
+     */
+    public BankLogic(OffHeapStore store, HistoryArchive archive) {
+        this.store = store;
+        this.archive = archive;
+    }
 
     /**
      * Skapar kund med angivet förnamn, efternamn och personnummer.
@@ -32,13 +102,46 @@ public class BankLogic {
      *         true
      */
     public boolean createCustomer(String name, String surname, String pNo) {
-        for (Customer customer : customers) {
-            if (customer.getpNo().equals(pNo)) {
-                return false;
+        BankMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return addCustomer(name, surname, pNo);
+        }
+        long start = System.nanoTime();
+        boolean created = addCustomer(name, surname, pNo);
+        metrics.record(BankMetrics.Operation.CREATE_CUSTOMER, created ? BatchResult.OK : BankMetrics.FAILED, start);
+        return created;
+    }
+
+    /**
+     * Skapar kund med angivet förnamn, efternamn och personnummer och loggar
+     * kunden i journalen.
+     * 
+     * @return false ifall personnumret redan finns registrerat, annars true
+     */
+    private boolean addCustomer(String name, String surname, String pNo) {
+        if (pNo == null) {
+            return false;
+        }
+        Customer customer = new Customer(pNo, name, surname);
+        boolean locked = enterMutation();
+        try {
+            // Kunden låses innan den blir synlig, så att den loggas innan någon
+            // annan tråd hinner ändra den
+            synchronized (customer) {
+                if (!customers.add(customer)) {
+                    return false;
+                }
+                names.add(customer);
+                changes.customerChanged(pNo);
+                Journal journal = this.journal;
+                if (journal != null) {
+                    journal.createCustomer(name, surname, pNo);
+                }
+                return true;
             }
+        } finally {
+            exitMutation(locked);
         }
-        customers.add(new Customer(pNo, name, surname));
-        return true;
     }
 
     /**
@@ -47,13 +150,155 @@ public class BankLogic {
      * @return lista med bankkunder
      */
     public List<String> getAllCustomers() {
-        List<String> list = new ArrayList<>();
-        for (Customer customer : customers) {
+        List<String> list = new ArrayList<>(customers.size());
+        for (Customer customer : customers.values()) {
             list.add(customer.toString());
         }
         return list;
     }
 
+    /**
+     * Söker efter kunder vars namn börjar med angivet sökbegrepp, t.ex. "anna"
+     * eller "andersson a". Sökningen görs på förnamn följt av efternamn och på
+     * efternamn följt av förnamn, utan hänsyn till versaler och gemener.
+     * 
+     * @param prefix sökbegreppet
+     * @param limit  max antal kunder
+     * @return lista med information om kunderna, i namnordning
+     */
+    public List<String> searchCustomers(String prefix, int limit) {
+        List<String> list = new ArrayList<>();
+        for (Customer customer : names.search(prefix, checkPageSize(limit))) {
+            // En kund som håller på att raderas kan finnas kvar en kort stund
+            if (!customer.isDeleted()) {
+                list.add(customer.toString());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returnerar en sida med information om bankens kunder, i den ordning
+     * kunderna skapades.
+     * 
+     * @param cursor   markör från föregående sida, null för första sidan
+     * @param pageSize max antal kunder på sidan
+     * @return sida med bankkunder
+     */
+    public Page<String> getCustomers(String cursor, int pageSize) {
+        List<Customer> page = new ArrayList<>(Math.min(checkPageSize(pageSize), customers.size()));
+        long last = customers.page(decodeCursor(cursor, 'C'), pageSize, page);
+        List<String> items = new ArrayList<>(page.size());
+        for (Customer customer : page) {
+            items.add(customer.toString());
+        }
+        return new Page<>(items, last < 0 ? null : encodeCursor('C', last));
+    }
+
+    /**
+     * Returnerar en sida med information om en kunds konton, i
+     * kontonummerordning.
+     * 
+     * @param pNo      kundens personnummer
+     * @param cursor   markör från föregående sida, null för första sidan
+     * @param pageSize max antal konton på sidan
+     * @return sida med kontoinformation, null ifall kunden ej finns
+     */
+    public Page<String> getAccounts(String pNo, String cursor, int pageSize) {
+        checkPageSize(pageSize);
+        long after = decodeCursor(cursor, 'A');
+        Customer customer = customers.get(pNo);
+        if (customer == null) {
+            return null;
+        }
+        List<Account> matching = new ArrayList<>();
+        for (Account account : customer.getAccounts()) {
+            if (account.getAccountNumber() > after) {
+                matching.add(account);
+            }
+        }
+        matching.sort((a, b) -> Integer.compare(a.getAccountNumber(), b.getAccountNumber()));
+        int count = Math.min(pageSize, matching.size());
+        List<String> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(matching.get(i).toString());
+        }
+        String next = count < matching.size()
+                ? encodeCursor('A', matching.get(count - 1).getAccountNumber())
+                : null;
+        return new Page<>(items, next);
+    }
+
+    /**
+     * Returnerar en sida av ett kontos transaktionshistorik, med den senaste
+     * transaktionen först. Transaktioner som görs mellan anropen hamnar före
+     * första sidan och påverkar inte följande sidor.
+     * 
+     * @param pNo       kundens personnummer
+     * @param accountId önskat bankkonto
+     * @param cursor    markör från föregående sida, null för första sidan
+     * @param pageSize  max antal transaktioner på sidan
+     * @return sida med transaktioner, null ifall kunden eller kontot ej finns
+     */
+    public Page<String> getTransactions(String pNo, int accountId, String cursor, int pageSize) {
+        checkPageSize(pageSize);
+        long end = decodeCursor(cursor, 'T');
+        if (end > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        BankMetrics metrics = this.metrics;
+        long begin = metrics != null ? System.nanoTime() : 0;
+        Account account = accounts.get(pNo, accountId);
+        Page<String> page = null;
+        if (account != null) {
+            List<String> items = new ArrayList<>(pageSize);
+            int start = account.formatTransactions((int) end, pageSize, items);
+            page = new Page<>(items, start > 0 ? encodeCursor('T', start) : null);
+        }
+        if (metrics != null) {
+            metrics.record(BankMetrics.Operation.GET_TRANSACTIONS,
+                    page != null ? BatchResult.OK : BatchResult.UNKNOWN_ACCOUNT, begin);
+        }
+        return page;
+    }
+
+    private static int checkPageSize(int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Invalid page size: " + pageSize);
+        }
+        return pageSize;
+    }
+
+    /**
+     * Kodar en markör som en sträng, där första tecknet anger vilken listning
+     * markören hör till.
+     */
+    private static String encodeCursor(char kind, long value) {
+        return kind + Long.toString(value, 36);
+    }
+
+    /**
+     * Avkodar en markör skapad av encodeCursor.
+     * 
+     * @return markörens värde, eller -1 för null (första sidan)
+     */
+    private static long decodeCursor(String cursor, char kind) {
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            if (cursor.length() > 1 && cursor.charAt(0) == kind) {
+                long value = Long.parseLong(cursor.substring(1), 36);
+                if (value >= 0) {
+                    return value;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Hanteras nedan
+        }
+        throw new IllegalArgumentException("Invalid cursor: " + cursor);
+    }
+
     /**
      * Returnerar information om den enskilda kunden och samtliga konton kopplade
      * till kunden.
@@ -62,17 +307,16 @@ public class BankLogic {
      * @return lista med kund- och kontoinformation
      */
     public List<String> getCustomer(String pNo) {
-        for (Customer customer : customers) {
-            if (customer.getpNo().equals(pNo)) {
-                List<String> list = new ArrayList<>();
-                list.add(customer.toString());
-                for (Account account : customer.getAccounts()) {
-                    list.add(account.toString());
-                }
-                return list;
-            }
+        Customer customer = customers.get(pNo);
+        if (customer == null) {
+            return null;
         }
-        return null;
+        List<String> list = new ArrayList<>();
+        list.add(customer.toString());
+        for (Account account : customer.getAccounts()) {
+            list.add(account.toString());
+        }
+        return list;
     }
 
     /**
@@ -84,12 +328,29 @@ public class BankLogic {
      * @return true vid lyckad ändring, annars false
      */
     public boolean changeCustomerName(String name, String surname, String pNo) {
-        for (Customer customer : customers) {
-            if (customer.getpNo().equals(pNo)) {
-                return customer.setName(name, surname);
+        Customer customer = customers.get(pNo);
+        if (customer == null) {
+            return false;
+        }
+        boolean locked = enterMutation();
+        try {
+            synchronized (customer) {
+                String oldName = customer.getName();
+                String oldSurname = customer.getSurname();
+                if (customer.isDeleted() || !customer.setName(name, surname)) {
+                    return false;
+                }
+                names.rename(customer, oldName, oldSurname);
+                changes.customerChanged(pNo);
+                Journal journal = this.journal;
+                if (journal != null) {
+                    journal.changeCustomerName(name, surname, pNo);
+                }
+                return true;
             }
+        } finally {
+            exitMutation(locked);
         }
-        return false;
     }
 
     /**
@@ -99,13 +360,11 @@ public class BankLogic {
      * @return returnerar kontonumret ifall kontot skapades, annars -1
      */
     public int createSavingsAccount(String pNo) {
-        for (Customer customer : customers) {
-            if (customer.getpNo().equals(pNo)) {
-                nextAccountNumber++;
-                return customer.addSavingsAccount(nextAccountNumber);
-            }
+        Customer customer = customers.get(pNo);
+        if (customer == null) {
+            return -1;
         }
-        return -1;
+        return openAccount(customer, nextAccountNumber.incrementAndGet(), true);
     }
 
     /**
@@ -115,13 +374,120 @@ public class BankLogic {
      * @return returnerar kontonumret ifall kontot skapades, annars -1
      */
     public int createCreditAccount(String pNo) {
-        for (Customer customer : customers) {
-            if (customer.getpNo().equals(pNo)) {
-                nextAccountNumber++;
-                return customer.addCreditAccount(nextAccountNumber);
+        Customer customer = customers.get(pNo);
+        if (customer == null) {
+            return -1;
+        }
+        return openAccount(customer, nextAccountNumber.incrementAndGet(), false);
+    }
+
+    /**
+     * Öppnar ett konto med angivet kontonummer för aktuell kund.
+     * Används av createSavingsAccount, createCreditAccount och vid uppspelning av
+     * journalen.
+     * 
+     * @param pNo       kund som kontot ska kopplas till
+     * @param accountId kontonumret som kontot ska få
+     * @param savings   true för sparkonto, false för kreditkonto
+     * @return kontonumret ifall kontot skapades, annars -1
+     */
+    int openAccount(String pNo, int accountId, boolean savings) {
+        Customer customer = customers.get(pNo);
+        if (customer == null) {
+            return -1;
+        }
+        nextAccountNumber.accumulateAndGet(accountId, Math::max);
+        return openAccount(customer, accountId, savings);
+    }
+
+    private int openAccount(Customer customer, int accountId, boolean savings) {
+        boolean locked = enterMutation();
+        try {
+            synchronized (customer) {
+                if (customer.isDeleted() || accounts.get(accountId) != null) {
+                    return -1;
+                }
+                if (savings) {
+                    customer.addSavingsAccount(accountId);
+                } else {
+                    customer.addCreditAccount(accountId);
+                }
+                Account account = customer.getAccountFromId(accountId);
+                attach(account);
+                // Kontot loggas innan det blir synligt i indexet, så att inga
+                // insättningar kan loggas före kontot
+                Journal journal = this.journal;
+                if (journal != null) {
+                    journal.createAccount(customer.getpNo(), accountId, savings);
+                }
+                accounts.put(account, customer);
+                changes.accountChanged(account);
+                return accountId;
             }
+        } finally {
+            exitMutation(locked);
         }
-        return -1;
+    }
+
+    /**
+     * Returnerar kunden som äger angivet konto.
+     * 
+     * @param accountId kontonummer
+     * @return kontots ägare, null ifall kontot ej finns
+     */
+    Customer getAccountOwner(int accountId) {
+        return accounts.getOwner(accountId);
+    }
+
+    /**
+     * Bokför ränta på ett konto och loggar den i journalen.
+     * 
+     * @param account  kontot
+     * @param time     transaktionens tidpunkt
+     * @param fraction andel av ett år som räntan avser, 1 för hela årsräntan
+     * @return bokförd ränta i ören, 0 ifall ingen ränta bokfördes, eller
+     *         Account.FAILED ifall kontot är stängt
+     */
+    long postInterest(Account account, long time, double fraction) {
+        boolean locked = enterMutation();
+        try {
+            long interest = account.postInterest(time, fraction);
+            if (interest != 0 && interest != Account.FAILED) {
+                changes.accountChanged(account);
+                Journal journal = this.journal;
+                if (journal != null) {
+                    journal.transaction(account.getAccountNumber(), interest, time);
+                }
+            }
+            return interest;
+        } finally {
+            exitMutation(locked);
+        }
+    }
+
+    /**
+     * Spelar upp en insättning eller ett uttag från journalen.
+     * 
+     * @param accountId kontonummer
+     * @param amount    belopp i ören, negativt vid uttag
+     * @param time      transaktionens tidpunkt
+     */
+    void replayTransaction(int accountId, long amount, long time) {
+        Account account = findAccount(accountId);
+        if (account != null) {
+            account.applyTransaction(amount, time);
+            changes.accountChanged(account);
+        }
+    }
+
+    /**
+     * Returnerar angivet konto oavsett ägare.
+     * 
+     * @param accountId kontonummer
+     * @return kontot, null ifall kontot ej finns
+     */
+    Account findAccount(int accountId) {
+        return accounts.get(accountId);
     }
 
     /**
@@ -132,12 +498,11 @@ public class BankLogic {
      * @return sträng med kontoinformation, null ifall kunden eller kontot ej finns.
      */
     public String getAccount(String pNo, int accountId) {
-        for (Customer customer : customers) {
-            if (customer.getpNo().equals(pNo)) {
-                return customer.getAccountInfo(accountId);
-            }
+        Account account = accounts.get(pNo, accountId);
+        if (account == null) {
+            return null;
         }
-        return null;
+        return account.toString();
     }
 
     /**
@@ -147,12 +512,7 @@ public class BankLogic {
      * @return Customer objekt
      */
     public Customer getCustomerObj(String pNo) {
-        for (Customer customer : customers) {
-            if (customer.getpNo().equals(pNo)) {
-                return customer;
-            }
-        }
-        return null;
+        return customers.get(pNo);
     }
 
     /**
@@ -161,11 +521,7 @@ public class BankLogic {
      * @return Customer objekt
      */
     public List<Customer> getAllCustomerObjs() {
-        List<Customer> list = new ArrayList<>();
-        for (Customer customer : customers) {
-            list.add(customer);
-        }
-        return list;
+        return customers.values();
     }
 
     /**
@@ -175,17 +531,34 @@ public class BankLogic {
      * @return lista med kontonummer för aktuell kund
      */
     public List<Integer> getAccountId(String pNo) {
+        Customer customer = customers.get(pNo);
+        if (customer == null) {
+            return null;
+        }
         List<Integer> accountIds = new ArrayList<>();
+        for (Account account : customer.getAccounts()) {
+            accountIds.add(account.getAccountNumber());
+        }
+        return accountIds;
+    }
 
-        for (Customer customer : customers) {
-            if (customer.getpNo().equals(pNo)) {
-                for (Account account : customer.getAccounts()) {
-                    accountIds.add(account.getAccountNumber());
-                }
-                return accountIds;
-            }
+    /**
+     * Returnerar kontonummer för aktuell kund som en int-array, utan boxning.
+     * 
+     * @param pNo personnummer för aktuell kund
+     * @return array med kontonummer, null ifall kunden ej finns
+     */
+    public int[] getAccountIds(String pNo) {
+        Customer customer = customers.get(pNo);
+        if (customer == null) {
+            return null;
+        }
+        List<Account> list = customer.getAccounts();
+        int[] accountIds = new int[list.size()];
+        for (int i = 0; i < accountIds.length; i++) {
+            accountIds[i] = list.get(i).getAccountNumber();
         }
-        return null;
+        return accountIds;
     }
 
     /**
@@ -200,12 +573,34 @@ public class BankLogic {
      *         annars false
      */
     public boolean deposit(String pNo, int accountId, float amount) {
-        for (Customer customer : customers) {
-            if (customer.getpNo().equals(pNo)) {
-                return customer.deposit(accountId, amount);
-            }
+        BankMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        byte code = depositCode(pNo, accountId, amount);
+        if (metrics != null) {
+            metrics.record(BankMetrics.Operation.DEPOSIT, code, start);
+        }
+        return code == BatchResult.OK;
+    }
+
+    /**
+     * Slår upp kontot och sätter in summan.
+     * 
+     * @return resultatkod enligt BatchResult
+     */
+    private byte depositCode(String pNo, int accountId, float amount) {
+        Account account = accounts.get(pNo, accountId);
+        if (account == null) {
+            return BatchResult.UNKNOWN_ACCOUNT;
+        }
+        if (amount <= 0) {
+            return BatchResult.INVALID_AMOUNT;
+        }
+        boolean locked = enterMutation();
+        try {
+            return deposit(account, Account.toMinorUnits(amount)) ? BatchResult.OK : BatchResult.UNKNOWN_ACCOUNT;
+        } finally {
+            exitMutation(locked);
         }
-        return false;
     }
 
     /**
@@ -220,12 +615,331 @@ public class BankLogic {
      *         annars false
      */
     public boolean withdraw(String pNo, int accountId, int amount) {
-        for (Customer customer : customers) {
-            if (customer.getpNo().equals(pNo)) {
-                return customer.withdraw(accountId, amount);
+        BankMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        byte code = withdrawCode(pNo, accountId, amount);
+        if (metrics != null) {
+            metrics.record(BankMetrics.Operation.WITHDRAW, code, start);
+        }
+        return code == BatchResult.OK;
+    }
+
+    /**
+     * Slår upp kontot och tar ut summan.
+     * 
+     * @return resultatkod enligt BatchResult
+     */
+    private byte withdrawCode(String pNo, int accountId, int amount) {
+        Account account = accounts.get(pNo, accountId);
+        if (account == null) {
+            return BatchResult.UNKNOWN_ACCOUNT;
+        }
+        if (amount <= 0) {
+            return BatchResult.INVALID_AMOUNT;
+        }
+        boolean locked = enterMutation();
+        try {
+            return withdraw(account, amount) != Account.FAILED ? BatchResult.OK : rejection(account);
+        } finally {
+            exitMutation(locked);
+        }
+    }
+
+    /**
+     * Returnerar varför ett uttag från kontot nekades.
+     * 
+     * @param account kontot
+     * @return resultatkod enligt BatchResult
+     */
+    private static byte rejection(Account account) {
+        if (account.isClosed()) {
+            return BatchResult.UNKNOWN_ACCOUNT;
+        }
+        return account instanceof SavingsAccount ? BatchResult.INSUFFICIENT_FUNDS : BatchResult.CREDIT_LIMIT;
+    }
+
+    /**
+     * Flyttar vald summa från ett konto till ett annat. Uttaget och
+     * insättningen genomförs tillsammans: antingen genomförs båda eller ingen.
+     * 
+     * Uttaget följer samma regler som withdraw, dvs. kreditgränsen för
+     * kreditkonton och uttagsavgiften för sparkonton. Mottagaren får summan
+     * utan avgift.
+     * 
+     * @param fromPNo     avsändarens personnummer
+     * @param fromAccount kontot som pengarna tas från
+     * @param toPNo       mottagarens personnummer
+     * @param toAccount   kontot som pengarna sätts in på
+     * @param amount      summa
+     * @return true ifall båda kontona hittats, summan är giltig och täcks av
+     *         avsändarens konto, annars false
+     */
+    public boolean transfer(String fromPNo, int fromAccount, String toPNo, int toAccount, int amount) {
+        BankMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        byte code = transferCode(fromPNo, fromAccount, toPNo, toAccount, amount);
+        if (metrics != null) {
+            metrics.record(BankMetrics.Operation.TRANSFER, code, start);
+        }
+        return code == BatchResult.OK;
+    }
+
+    /**
+     * Slår upp kontona och flyttar summan.
+     * 
+     * Saldona uppdateras som vid vanliga insättningar och uttag, men
+     * överföringen håller dessutom båda kontonas lås, som alltid tas i
+     * kontonummerordning så att två
+     * överföringar i motsatt riktning inte kan låsa varandra. Eftersom close
+     * tar kontots lås kan mottagarens konto inte stängas mellan uttaget och
+     * insättningen, och insättningen kan därför inte misslyckas. Vanliga
+     * insättningar och uttag tar inte dessa lås och påverkas inte.
+     * 
+     * @return resultatkod enligt BatchResult
+     */
+    private byte transferCode(String fromPNo, int fromAccount, String toPNo, int toAccount, int amount) {
+        Account from = accounts.get(fromPNo, fromAccount);
+        Account to = accounts.get(toPNo, toAccount);
+        if (from == null || to == null || from == to) {
+            return BatchResult.UNKNOWN_ACCOUNT;
+        }
+        if (amount <= 0) {
+            return BatchResult.INVALID_AMOUNT;
+        }
+        Account first = from.getAccountNumber() < to.getAccountNumber() ? from : to;
+        Account second = first == from ? to : from;
+        boolean locked = enterMutation();
+        try {
+            synchronized (first) {
+                synchronized (second) {
+                    if (to.isClosed()) {
+                        return BatchResult.UNKNOWN_ACCOUNT;
+                    }
+                    long time = System.currentTimeMillis();
+                    long debit = from.withdrawMinor(amount, time);
+                    if (debit == Account.FAILED) {
+                        return rejection(from);
+                    }
+                    long credit = amount * 100L;
+                    to.depositMinor(credit, time);
+                    changes.accountChanged(from);
+                    changes.accountChanged(to);
+                    Journal journal = this.journal;
+                    if (journal != null) {
+                        journal.transfer(from.getAccountNumber(), debit, to.getAccountNumber(), credit, time);
+                    }
+                    return BatchResult.OK;
+                }
+            }
+        } finally {
+            exitMutation(locked);
+        }
+    }
+
+    /**
+     * Adderar vald summa till saldot, som deposit, och returnerar en future som
+     * blir klar när insättningen finns på disk i journalen. Anroparen kan vänta
+     * på futuren eller fortsätta direkt.
+     * 
+     * @param pNo       kundens personnummer
+     * @param accountId önskat bankkonto
+     * @param amount    summa
+     * @return future med samma värde som deposit returnerar
+     */
+    public CompletableFuture<Boolean> depositDurable(String pNo, int accountId, float amount) {
+        return durable(deposit(pNo, accountId, amount));
+    }
+
+    /**
+     * Subtraherar vald summa från saldot, som withdraw, och returnerar en
+     * future som blir klar när uttaget finns på disk i journalen.
+     * 
+     * @param pNo       kundens personnummer
+     * @param accountId önskat bankkonto
+     * @param amount    summa
+     * @return future med samma värde som withdraw returnerar
+     */
+    public CompletableFuture<Boolean> withdrawDurable(String pNo, int accountId, int amount) {
+        return durable(withdraw(pNo, accountId, amount));
+    }
+
+    /**
+     * Flyttar vald summa mellan två konton, som transfer, och returnerar en
+     * future som blir klar när överföringen finns på disk i journalen.
+     * 
+     * @param fromPNo     avsändarens personnummer
+     * @param fromAccount kontot som pengarna tas från
+     * @param toPNo       mottagarens personnummer
+     * @param toAccount   kontot som pengarna sätts in på
+     * @param amount      summa
+     * @return future med samma värde som transfer returnerar
+     */
+    public CompletableFuture<Boolean> transferDurable(String fromPNo, int fromAccount, String toPNo, int toAccount,
+            int amount) {
+        return durable(transfer(fromPNo, fromAccount, toPNo, toAccount, amount));
+    }
+
+    /**
+     * Returnerar en future som blir klar när samtliga ändringar som hittills
+     * loggats i journalen finns på disk.
+     * 
+     * @return future som blir klar när ändringarna är beständiga, direkt ifall
+     *         journalen är avslagen
+     */
+    public CompletableFuture<Void> persisted() {
+        Journal journal = this.journal;
+        return journal == null ? CompletableFuture.completedFuture(null) : journal.persisted();
+    }
+
+    /**
+     * Returnerar en future med angivet resultat, som för en lyckad ändring blir
+     * klar först när ändringen finns på disk. Ändringen är den senaste som
+     * anropande tråd loggat, så futuren är ändringens egen post i journalen.
+     */
+    private CompletableFuture<Boolean> durable(boolean result) {
+        if (!result) {
+            return CompletableFuture.completedFuture(false);
+        }
+        Journal journal = this.journal;
+        if (journal == null) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return journal.lastRecord().thenApply(v -> true);
+    }
+
+    /**
+     * Sätter in en summa på ett konto som redan slagits upp och loggar
+     * insättningen i journalen.
+     * 
+     * @param account     kontot
+     * @param minorAmount summa i ören, större än 0
+     * @return false ifall kontot är stängt, annars true
+     */
+    private boolean deposit(Account account, long minorAmount) {
+        long time = System.currentTimeMillis();
+        if (account.depositMinor(minorAmount, time) == Account.FAILED) {
+            return false;
+        }
+        changes.accountChanged(account);
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.transaction(account.getAccountNumber(), minorAmount, time);
+        }
+        return true;
+    }
+
+    /**
+     * Tar ut en summa från ett konto som redan slagits upp och loggar det
+     * dragna beloppet (inklusive eventuell avgift) i journalen.
+     * 
+     * @param account kontot
+     * @param amount  summa, större än 0
+     * @return det dragna beloppet i ören, eller Account.FAILED
+     */
+    private long withdraw(Account account, int amount) {
+        long time = System.currentTimeMillis();
+        long total = account.withdrawMinor(amount, time);
+        if (total == Account.FAILED) {
+            return Account.FAILED;
+        }
+        changes.accountChanged(account);
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.transaction(account.getAccountNumber(), -total, time);
+        }
+        return total;
+    }
+
+    /**
+     * Genomför en batch med insättningar och uttag.
+     * 
+     * @param operations operationerna som ska genomföras
+     * @return en resultatkod per operation, i samma ordning som operationerna
+     */
+    public BatchResult applyBatch(List<BatchOperation> operations) {
+        return applyBatch(operations, true);
+    }
+
+    /**
+     * Genomför en batch med insättningar och uttag.
+     * 
+     * Samtliga konton slås upp en gång innan operationerna genomförs. Med
+     * gruppering sorteras operationerna per konto (med bibehållen ordning inom
+     * varje konto) så att varje konto bara behöver hanteras en gång per batch.
+     * 
+     * @param operations     operationerna som ska genomföras
+     * @param groupByAccount true för att gruppera operationerna per konto
+     * @return en resultatkod per operation, i samma ordning som operationerna
+     */
+    public BatchResult applyBatch(List<BatchOperation> operations, boolean groupByAccount) {
+        int size = operations.size();
+        BatchResult result = new BatchResult(size);
+        BatchOperation[] ops = operations.toArray(new BatchOperation[size]);
+
+        Account[] resolved = new Account[size];
+        for (int i = 0; i < size; i++) {
+            resolved[i] = accounts.get(ops[i].getpNo(), ops[i].getAccountId());
+        }
+
+        // Kontonummer i de övre 32 bitarna och position i de undre, så att en
+        // sortering grupperar per konto och behåller ordningen inom kontot
+        long[] order = new long[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = groupByAccount ? ((long) ops[i].getAccountId() << 32) | i : i;
+        }
+        if (groupByAccount) {
+            Arrays.sort(order);
+        }
+
+        boolean locked = enterMutation();
+        try {
+            int start = 0;
+            while (start < size) {
+                int end = start + 1;
+                Account account = resolved[(int) order[start]];
+                while (groupByAccount && end < size && resolved[(int) order[end]] == account) {
+                    end++;
+                }
+                if (account == null) {
+                    for (int k = start; k < end; k++) {
+                        result.set((int) order[k], BatchResult.UNKNOWN_ACCOUNT);
+                    }
+                } else {
+                    for (int k = start; k < end; k++) {
+                        int index = (int) order[k];
+                        result.set(index, apply(account, ops[index]));
+                    }
+                }
+                start = end;
             }
+        } finally {
+            exitMutation(locked);
         }
-        return false;
+        return result;
+    }
+
+    /**
+     * Genomför en operation på ett konto som redan slagits upp.
+     * 
+     * @param account kontot
+     * @param op      operationen
+     * @return resultatkod
+     */
+    private byte apply(Account account, BatchOperation op) {
+        if (account.isClosed()) {
+            return BatchResult.UNKNOWN_ACCOUNT;
+        }
+        if (op.getMinorAmount() <= 0) {
+            return BatchResult.INVALID_AMOUNT;
+        }
+        if (op.getType() == BatchOperation.Type.DEPOSIT) {
+            return deposit(account, op.getMinorAmount()) ? BatchResult.OK : BatchResult.UNKNOWN_ACCOUNT;
+        }
+        // Uttag skapas med hela kronor, så divisionen är exakt
+        if (withdraw(account, (int) (op.getMinorAmount() / 100)) == Account.FAILED) {
+            return rejection(account);
+        }
+        return BatchResult.OK;
     }
 
     /**
@@ -237,12 +951,27 @@ public class BankLogic {
      *         returneras en tom sträng
      */
     public String closeAccount(String pNo, int accountId) {
-        for (Customer customer : customers) {
-            if (customer.getpNo().equals(pNo)) {
-                return customer.closeAccount(accountId);
+        Account account = accounts.get(pNo, accountId);
+        Customer owner = accounts.getOwner(accountId);
+        if (account == null || owner == null) {
+            return null;
+        }
+        boolean locked = enterMutation();
+        try {
+            String result = owner.closeAccount(account);
+            if (result == null) {
+                return null;
+            }
+            accounts.remove(accountId);
+            changes.accountChanged(account);
+            Journal journal = this.journal;
+            if (journal != null) {
+                journal.closeAccount(accountId);
             }
+            return result;
+        } finally {
+            exitMutation(locked);
         }
-        return null;
     }
 
     /**
@@ -252,16 +981,35 @@ public class BankLogic {
      * @return sträng med information om bankkund och avslutade konton
      */
     public List<String> deleteCustomer(String pNo) {
-        for (Customer customer : customers) {
-            if (customer.getpNo().equals(pNo)) {
+        boolean locked = enterMutation();
+        try {
+            Customer customer = customers.remove(pNo);
+            if (customer == null) {
+                return null;
+            }
+            synchronized (customer) {
+                customer.markDeleted();
+                names.remove(customer, customer.getName(), customer.getSurname());
+                List<Account> closed = customer.getAccounts();
+                for (Account account : closed) {
+                    accounts.remove(account.getAccountNumber());
+                }
                 List<String> list = new ArrayList<>();
                 list.add(customer.toString());
                 list.addAll(customer.closeAllAccounts());
-                customers.remove(customer);
+                changes.customerChanged(pNo);
+                for (Account account : closed) {
+                    changes.accountChanged(account);
+                }
+                Journal journal = this.journal;
+                if (journal != null) {
+                    journal.deleteCustomer(pNo);
+                }
                 return list;
             }
+        } finally {
+            exitMutation(locked);
         }
-        return null;
     }
 
     /**
@@ -272,47 +1020,483 @@ public class BankLogic {
      * @return lista med transaktioner i strängformat
      */
     public List<String> getTransactions(String pNo, int accountId) {
-        List<String> list = new ArrayList<>();
-        for (Customer customer : customers) {
-            if (pNo.equals(customer.getpNo()) && customer.getAccountInfo(accountId) != null) {
-                list.addAll(customer.getTransactions(accountId));
-                if (list != null) {
-                    return list;
-                }
-            }
+        BankMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        Account account = accounts.get(pNo, accountId);
+        List<String> transactions = account == null ? null : account.getTransactions();
+        if (metrics != null) {
+            metrics.record(BankMetrics.Operation.GET_TRANSACTIONS,
+                    transactions != null ? BatchResult.OK : BatchResult.UNKNOWN_ACCOUNT, start);
         }
-        return null;
+        return transactions;
     }
 
     /**
      * Sparar bankens kunder och konton till fil.
      * 
+     * Ifall banken senast sparades till (eller lästes in från) samma fil
+     * skrivs bara ändringarna sedan dess till en deltafil bredvid filen. Efter
+     * MAX_DELTAS deltafiler sparas hela banken på nytt.
+     * 
      * @param fileName filnamn
      */
     public void saveBankToFile(String fileName) {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream("src/oscekb5/files/" + fileName))) {
-            out.writeObject(customers);
-            out.writeInt(nextAccountNumber);
+        save(fileName, false, Progress.NONE);
+    }
+
+    /**
+     * Sparar bankens kunder och konton till fil och rapporterar förloppet.
+     * Ifall sparningen avbryts lämnas den tidigare sparade filen orörd och
+     * nästa sparning blir en ny ögonblicksbild.
+     * 
+     * @param fileName filnamn
+     * @param progress förloppet som rapporteras och kan avbryta sparningen
+     * @throws CancellationException ifall sparningen avbröts
+     */
+    public void saveBankToFile(String fileName, Progress progress) {
+        save(fileName, false, progress);
+    }
+
+    /**
+     * Sparar hela banken till fil och tar bort filens deltafiler, dvs. slår
+     * ihop tidigare sparningar till en ny ögonblicksbild.
+     * 
+     * @param fileName filnamn
+     */
+    public void compactBankFile(String fileName) {
+        save(fileName, true, Progress.NONE);
+    }
+
+    /**
+     * Sparar banken som en ny ögonblicksbild eller som en deltafil.
+     * 
+     * @param fileName filnamn
+     * @param full     true för att alltid spara en ny ögonblicksbild
+     * @param progress förloppet som rapporteras och kan avbryta sparningen
+     */
+    private void save(String fileName, boolean full, Progress progress) {
+        Path path = Paths.get("src/oscekb5/files/" + fileName);
+        BankMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        byte code = BankMetrics.FAILED;
+        checkpointLock.writeLock().lock();
+        try {
+            if (full || !path.equals(baseFile) || deltaCount >= MAX_DELTAS) {
+                baseFile = null;
+                changes.clear();
+                baseGeneration = BankSnapshot.write(path, customers.values(), nextAccountNumber.get(), archive,
+                        progress);
+                deltaCount = 0;
+                BankDelta.deleteAll(path);
+                baseFile = path;
+            } else {
+                List<String> changedCustomers = changes.drainCustomers();
+                List<Account> changedAccounts = changes.drainAccounts();
+                if (!changedCustomers.isEmpty() || !changedAccounts.isEmpty()) {
+                    BankDelta.write(path, deltaCount + 1, baseGeneration, nextAccountNumber.get(), this,
+                            changedCustomers, changedAccounts);
+                    deltaCount++;
+                }
+                progress.update(1, 1);
+            }
+            // I händelsebaserat läge är händelserna bankens tillstånd och
+            // töms inte, filen är då bara en kopia
+            Journal journal = this.journal;
+            if (journal != null && events == null) {
+                journal.reset();
+            }
+            code = BatchResult.OK;
+        } catch (CancellationException e) {
+            baseFile = null;
+            throw e;
         } catch (Exception e) {
+            // Ändringarna kan ha gått förlorade, så nästa sparning blir hel
+            baseFile = null;
             throw new RuntimeException("Could not save bank data to file");
+        } finally {
+            checkpointLock.writeLock().unlock();
+            if (metrics != null) {
+                metrics.record(BankMetrics.Operation.SAVE, code, start);
+            }
         }
     }
 
     /**
-     * Läser in bankens kunder och konton från fil.
+     * Läser in bankens kunder och konton från fil, tillsammans med filens
+     * deltafiler.
+     * Filer sparade i det äldre formatet (Java-serialisering) kan fortfarande
+     * läsas in.
      * 
      * @param path sökväg till fil
      */
     public void loadBankToFile(String path) {
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream("src/oscekb5/files/" + path))) {
-            customers.clear();
-            customers.addAll((ArrayList<Customer>) in.readObject());
-            nextAccountNumber = in.readInt();
+        loadBankToFile(path, Progress.NONE);
+    }
+
+    /**
+     * Läser in bankens kunder och konton från fil och rapporterar förloppet.
+     * Ifall inläsningen avbryts lämnas banken orörd.
+     * 
+     * @param path     sökväg till fil
+     * @param progress förloppet som rapporteras och kan avbryta inläsningen
+     * @throws CancellationException ifall inläsningen avbröts
+     */
+    public void loadBankToFile(String path, Progress progress) {
+        Path file = Paths.get("src/oscekb5/files/" + path);
+        BankMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        byte code = BankMetrics.FAILED;
+        checkpointLock.writeLock().lock();
+        try {
+            if (BankSnapshot.isSnapshot(file)) {
+                BankSnapshot snapshot = BankSnapshot.read(file, archive, progress);
+                int deltas = BankDelta.apply(file, snapshot);
+                if (progress.isCancelled()) {
+                    throw new CancellationException("Load cancelled");
+                }
+                replaceCustomers(snapshot.getCustomers());
+                nextAccountNumber.set(snapshot.getNextAccountNumber());
+                if (snapshot.getGeneration() != 0) {
+                    baseFile = file;
+                    baseGeneration = snapshot.getGeneration();
+                    deltaCount = deltas;
+                }
+            } else {
+                try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file.toFile()))) {
+                    replaceCustomers((ArrayList<Customer>) in.readObject());
+                    nextAccountNumber.set(in.readInt());
+                }
+            }
+            // Den inlästa banken kan inte uttryckas som händelser, så i
+            // händelsebaserat läge blir den en ny kontrollpunkt
+            EventStore events = this.events;
+            Journal journal = this.journal;
+            if (events != null) {
+                writeCheckpoint(events);
+            } else if (journal != null) {
+                journal.reset();
+            }
             System.out.println("Bank data loaded from file: " + "src/oscekb5/files/" + path);
+            code = BatchResult.OK;
+        } catch (CancellationException e) {
+            throw e;
         } catch (IOException e) {
             throw new RuntimeException("Could not load bank data from file");
         } catch (Exception e) {
             throw new RuntimeException("Unknown error occurred while loading bank data from file");
+        } finally {
+            checkpointLock.writeLock().unlock();
+            if (metrics != null) {
+                metrics.record(BankMetrics.Operation.LOAD, code, start);
+            }
+        }
+    }
+
+    /**
+     * Slår på mätning av svarstider och utfall för bankens operationer, t.ex.
+     * deposit, withdraw och saveBankToFile. Ifall mätningen redan är påslagen
+     * returneras de befintliga mätvärdena.
+     * 
+     * @return bankens mätvärden
+     */
+    public synchronized BankMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new BankMetrics();
+        }
+        return metrics;
+    }
+
+    /**
+     * Returnerar bankens mätvärden.
+     * 
+     * @return mätvärdena, eller null ifall mätningen är avslagen
+     */
+    public BankMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Slår av mätningen, slutar skriva ut mätvärdena och tar bort deras MBeans.
+     */
+    public synchronized void disableMetrics() {
+        BankMetrics metrics = this.metrics;
+        this.metrics = null;
+        if (metrics != null) {
+            metrics.close();
+        }
+    }
+
+    /**
+     * Tar det delade läslåset ifall journalen är påslagen eller saldona ligger
+     * i ett OffHeapStore. Med ett lager ser loadBankToFile, som tömmer lagret
+     * med det exklusiva låset, till att ingen ändring pågår under tiden.
+     * Konton som slogs upp innan lagret tömdes räknas därefter som stängda.
+     * 
+     * @return true ifall låset togs och ska släppas med exitMutation
+     */
+    private boolean enterMutation() {
+        if (journal == null && store == null) {
+            return false;
+        }
+        checkpointLock.readLock().lock();
+        return true;
+    }
+
+    /**
+     * Släpper det delade läslåset ifall det togs av enterMutation.
+     * 
+     * @param locked värdet som enterMutation returnerade
+     */
+    private void exitMutation(boolean locked) {
+        if (locked) {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ersätter bankens samtliga kunder och bygger om kontoindexet.
+     * 
+     * @param loaded kunderna som ska ersätta de nuvarande
+     */
+    private void replaceCustomers(List<Customer> loaded) {
+        customers.clear();
+        accounts.clear();
+        changes.clear();
+        baseFile = null;
+        if (store != null) {
+            store.clear();
+        }
+        for (Customer customer : loaded) {
+            customers.add(customer);
+            for (Account account : customer.getAccounts()) {
+                attach(account);
+                TransactionHistory ledger = account.getLedger();
+                synchronized (ledger) {
+                    account.setSavedTransactions(ledger.size());
+                }
+                accounts.put(account, customer);
+            }
+        }
+        names.rebuild(loaded);
+    }
+
+    /**
+     * Flyttar ett nytt eller inläst kontos historik till arkivet, och saldot
+     * (samt historiken ifall inget arkiv finns) till lagret utanför heapen.
+     * 
+     * @param account kontot, som ännu inte får vara synligt för andra trådar
+     */
+    private void attach(Account account) {
+        if (archive != null) {
+            if (!archive.owns(account.getLedger())) {
+                account.replaceHistory(archive.create(account.getAccountNumber()));
+            }
+        } else if (store != null) {
+            account.replaceHistory(store.history(account.getAccountNumber()));
+        }
+        if (store != null) {
+            account.attach(store);
+        }
+    }
+
+    /**
+     * Slår på journalläge. Varje lyckad ändring i banken läggs därefter till i
+     * journalfilen. När banken sparas med saveBankToFile töms journalen, eftersom
+     * ändringarna då finns i den sparade filen.
+     * 
+     * @param fileName  journalens filnamn
+     * @param policy    hur ofta journalen skrivs ner till disk
+     * @param batchSize antal poster mellan varje fsync vid SyncPolicy.BATCHED
+     */
+    public void openJournal(String fileName, Journal.SyncPolicy policy, int batchSize) {
+        openJournal(fileName, policy, batchSize, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Slår på journalläge, med inställningar för gruppvis skrivning.
+     * 
+     * @param fileName   journalens filnamn
+     * @param policy     hur ofta journalen skrivs ner till disk
+     * @param batchSize  antal poster mellan varje fsync vid SyncPolicy.BATCHED,
+     *                   eller max antal poster per grupp vid SyncPolicy.GROUP
+     * @param maxLatency hur länge journalens skrivtråd högst samlar poster
+     *                   till en grupp vid SyncPolicy.GROUP
+     * @param unit       tidsenhet för maxLatency
+     */
+    public void openJournal(String fileName, Journal.SyncPolicy policy, int batchSize, long maxLatency,
+            TimeUnit unit) {
+        closeJournal();
+        try {
+            journal = new Journal(Paths.get("src/oscekb5/files/" + fileName), policy, batchSize, maxLatency,
+                    unit);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open journal");
+        }
+    }
+
+    /**
+     * Stänger journalen och slår av journalläget, även i händelsebaserat läge.
+     */
+    public void closeJournal() {
+        EventStore events = this.events;
+        if (events != null) {
+            events.close();
+            this.events = null;
+        }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Återställer banken efter ett avbrott. Den senast sparade filen läses in (om
+     * den finns) och därefter spelas journalen upp ovanpå. Journalen hålls sedan
+     * öppen så att nya ändringar fortsätter att loggas.
+     * 
+     * @param fileName        filnamn för den senast sparade banken
+     * @param journalFileName journalens filnamn
+     * @param policy          hur ofta journalen skrivs ner till disk
+     * @param batchSize       antal poster mellan varje fsync vid
+     *                        SyncPolicy.BATCHED
+     * @return antal uppspelade journalposter
+     */
+    public int recover(String fileName, String journalFileName, Journal.SyncPolicy policy, int batchSize) {
+        closeJournal();
+        if (Files.exists(Paths.get("src/oscekb5/files/" + fileName))) {
+            loadBankToFile(fileName);
+        } else {
+            replaceCustomers(new ArrayList<>());
+            nextAccountNumber.set(1000);
+        }
+        Path journalPath = Paths.get("src/oscekb5/files/" + journalFileName);
+        int replayed;
+        try {
+            replayed = Journal.replay(journalPath, this);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not replay journal");
+        }
+        openJournal(journalFileName, policy, batchSize);
+        return replayed;
+    }
+
+    /**
+     * Slår på händelsebaserat läge med händelseloggen i angiven katalog.
+     * Banken byggs upp från den senaste kontrollpunkten och händelserna efter
+     * den, eller från en tom bank ifall katalogen är ny. Därefter loggas varje
+     * ändring som en händelse, och en bakgrundstråd sparar en ny kontrollpunkt
+     * varje gång checkpointInterval händelser har loggats, så att nästa
+     * uppstart bara behöver spela upp högst så många händelser.
+     * 
+     * @param directory          katalog för händelser och kontrollpunkter
+     * @param policy             hur ofta händelserna skrivs ner till disk
+     * @param batchSize          antal händelser mellan varje fsync vid
+     *                           SyncPolicy.BATCHED
+     * @param checkpointInterval antal händelser mellan kontrollpunkterna, 0
+     *                           för att bara spara kontrollpunkter med
+     *                           checkpoint
+     * @return antal uppspelade händelser
+     */
+    public int openEventStore(String directory, Journal.SyncPolicy policy, int batchSize,
+            long checkpointInterval) {
+        closeJournal();
+        EventStore store;
+        try {
+            store = new EventStore(Paths.get("src/oscekb5/files/" + directory), policy, batchSize);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open event store");
+        }
+        int replayed = 0;
+        checkpointLock.writeLock().lock();
+        try {
+            long checkpoint = restoreCheckpoint(store);
+            for (Path segment : store.segmentsFrom(checkpoint)) {
+                replayed += Journal.replay(segment, this);
+            }
+            journal = store.open(replayed);
+            events = store;
+        } catch (IOException e) {
+            store.close();
+            throw new RuntimeException("Could not recover bank from event store");
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+        if (checkpointInterval > 0) {
+            store.startCheckpoints(checkpointInterval, this::checkpoint);
+        }
+        return replayed;
+    }
+
+    /**
+     * Sparar en kontrollpunkt i händelsebaserat läge. Ändringar i banken
+     * väntar medan kontrollpunkten sparas.
+     * 
+     * @throws IllegalStateException ifall händelsebaserat läge inte är påslaget
+     */
+    public void checkpoint() {
+        checkpointLock.writeLock().lock();
+        try {
+            EventStore events = this.events;
+            if (events == null) {
+                throw new IllegalStateException("Event store is not open");
+            }
+            writeCheckpoint(events);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returnerar händelseloggen i händelsebaserat läge.
+     * 
+     * @return händelseloggen, null ifall händelsebaserat läge är avslaget
+     */
+    public EventStore getEventStore() {
+        return events;
+    }
+
+    /**
+     * Påbörjar ett nytt segment och sparar banken som kontrollpunkt för det.
+     * Anropas med det exklusiva låset. Ifall kontrollpunkten inte kunde sparas
+     * används den föregående vid uppstart, tillsammans med fler segment.
+     */
+    private void writeCheckpoint(EventStore events) {
+        try {
+            long number = events.roll();
+            journal = events.getJournal();
+            // Kontrollpunkten är ingen bas för deltafiler och får inte ändra
+            // vilka transaktioner som räknas som sparade
+            BankSnapshot.write(events.checkpointPath(number), customers.values(), nextAccountNumber.get(), archive,
+                    Progress.NONE, false);
+            events.pruneCheckpoints();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write checkpoint");
+        }
+    }
+
+    /**
+     * Läser in den senaste läsbara kontrollpunkten, eller tömmer banken ifall
+     * det inte finns någon. Anropas med det exklusiva låset.
+     * 
+     * @return kontrollpunktens nummer, dvs. det första segmentet som ska
+     *         spelas upp
+     */
+    private long restoreCheckpoint(EventStore store) throws IOException {
+        baseFile = null;
+        for (long number : store.checkpoints()) {
+            BankSnapshot snapshot;
+            try {
+                snapshot = BankSnapshot.read(store.checkpointPath(number), archive);
+            } catch (IOException | RuntimeException e) {
+                // Skadad kontrollpunkt, den föregående används i stället
+                continue;
+            }
+            replaceCustomers(snapshot.getCustomers());
+            nextAccountNumber.set(snapshot.getNextAccountNumber());
+            return number;
         }
+        replaceCustomers(new ArrayList<>());
+        nextAccountNumber.set(1000);
+        return 0;
     }
-}
\ No newline at end of file
+}
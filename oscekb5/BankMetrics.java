@@ -0,0 +1,213 @@
+package src.oscekb5;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Klassen samlar mätvärden för bankens operationer: svarstider, antal anrop
+ * och utfall per operation.
+ *
+ * Mätningen slås på med BankLogic.enableMetrics. Mätvärdena kan läsas direkt,
+ * visas via JMX med registerMBeans (en MBean per operation) och skrivas ut
+ * som en tabell med jämna mellanrum med startDump. Tabellen visar även antal
+ * anrop per sekund sedan föregående utskrift.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class BankMetrics {
+    /** Utfall för en operation som misslyckades av annat skäl än i BatchResult */
+    public static final byte FAILED = 5;
+
+    /**
+     * Operationerna som mäts.
+     */
+    public enum Operation {
+        CREATE_CUSTOMER("createCustomer"),
+        DEPOSIT("deposit"),
+        WITHDRAW("withdraw"),
+        TRANSFER("transfer"),
+        GET_TRANSACTIONS("getTransactions"),
+        SAVE("saveBankToFile"),
+        LOAD("loadBankToFile");
+
+        private final String methodName;
+
+        Operation(String methodName) {
+            this.methodName = methodName;
+        }
+
+        /**
+         * Returnerar namnet på metoden i BankLogic.
+         *
+         * @return metodens namn
+         */
+        public String getMethodName() {
+            return methodName;
+        }
+    }
+
+    private final OperationMetrics[] operations = new OperationMetrics[Operation.values().length];
+    private final List<ObjectName> registered = new ArrayList<>();
+    private ScheduledExecutorService dumper;
+
+    // Antal anrop och tidpunkt vid föregående utskrift, för anrop per sekund
+    private final long[] lastCounts = new long[operations.length];
+    private long lastDump = System.nanoTime();
+
+    /**
+     * Konstruktor för klassen BankMetrics.
+     */
+    BankMetrics() {
+        for (Operation operation : Operation.values()) {
+            operations[operation.ordinal()] = new OperationMetrics(operation.getMethodName());
+        }
+    }
+
+    /**
+     * Registrerar ett anrop.
+     *
+     * @param operation  operationen
+     * @param code       utfallet, en resultatkod i BatchResult eller FAILED
+     * @param startNanos System.nanoTime() när anropet började
+     */
+    void record(Operation operation, byte code, long startNanos) {
+        operations[operation.ordinal()].record(code, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returnerar mätvärdena för en operation.
+     *
+     * @param operation operationen
+     * @return mätvärdena
+     */
+    public OperationMetrics get(Operation operation) {
+        return operations[operation.ordinal()];
+    }
+
+    /**
+     * Registrerar en MBean per operation i plattformens MBean-server, med
+     * namnet src.oscekb5:type=BankMetrics,bank=&lt;bank&gt;,operation=&lt;metod&gt;.
+     *
+     * @param bank bankens namn, för att skilja flera banker i samma JVM åt
+     */
+    public synchronized void registerMBeans(String bank) {
+        unregisterMBeans();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (OperationMetrics metrics : operations) {
+                ObjectName name = new ObjectName("src.oscekb5:type=BankMetrics,bank=" + ObjectName.quote(bank)
+                        + ",operation=" + metrics.getName());
+                server.registerMBean(metrics, name);
+                registered.add(name);
+            }
+        } catch (JMException e) {
+            unregisterMBeans();
+            throw new RuntimeException("Could not register metrics MBeans");
+        }
+    }
+
+    /**
+     * Tar bort bankens MBeans från MBean-servern.
+     */
+    public synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // Redan borttagen
+            }
+        }
+        registered.clear();
+    }
+
+    /**
+     * Skriver ut mätvärdena med jämna mellanrum från en bakgrundstråd.
+     *
+     * @param period tid mellan utskrifterna
+     * @param unit   tidsenhet för period
+     * @param out    ström som tabellen skrivs till
+     */
+    public synchronized void startDump(long period, TimeUnit unit, PrintStream out) {
+        stopDump();
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bank-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> out.print(dump()), period, period, unit);
+    }
+
+    /**
+     * Slutar skriva ut mätvärdena.
+     */
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+
+    /**
+     * Slutar skriva ut mätvärdena och tar bort bankens MBeans.
+     */
+    public void close() {
+        stopDump();
+        unregisterMBeans();
+    }
+
+    /**
+     * Returnerar mätvärdena som en tabell, med en rad per operation som har
+     * anropats. Svarstider anges i mikrosekunder.
+     *
+     * @return tabellen
+     */
+    public synchronized String dump() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastDump) / 1e9);
+        lastDump = now;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-16s %10s %10s %9s %9s %9s %9s %9s %9s%n", "operation", "anrop", "anrop/s",
+                "medel", "p50", "p99", "p99.9", "max", "fel"));
+        for (int i = 0; i < operations.length; i++) {
+            OperationMetrics metrics = operations[i];
+            long count = metrics.getCount();
+            long recent = count - lastCounts[i];
+            lastCounts[i] = count;
+            if (count == 0) {
+                continue;
+            }
+            sb.append(String.format("%-16s %10d %10.0f %9.1f %9.1f %9.1f %9.1f %9.1f %9d", metrics.getName(),
+                    count, recent / seconds, metrics.getMeanMicros(), metrics.getP50Micros(), metrics.getP99Micros(),
+                    metrics.getP999Micros(), metrics.getMaxMicros(), metrics.getFailureCount()));
+            for (byte code = BatchResult.UNKNOWN_ACCOUNT; code <= FAILED; code++) {
+                long failures = metrics.getOutcomeCount(code);
+                if (failures > 0) {
+                    sb.append("  ").append(describe(code)).append(": ").append(failures);
+                }
+            }
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returnerar en beskrivning av ett utfall.
+     *
+     * @param code en resultatkod i BatchResult eller FAILED
+     * @return beskrivning av utfallet
+     */
+    public static String describe(byte code) {
+        return code == FAILED ? "Misslyckades" : BatchResult.describe(code);
+    }
+}
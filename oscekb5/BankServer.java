@@ -0,0 +1,488 @@
+package src.oscekb5;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Klassen representerar en HTTP-server som gör bankens operationer
+ * tillgängliga som JSON, så att banken kan köras utan GUI:t, belastningstestas
+ * och anropas från andra program.
+ *
+ * Varje anrop hanteras av en egen virtuell tråd, så att tusentals samtidiga
+ * klienter inte kräver lika många plattformstrådar. Svaren har alltid känd
+ * längd så att anslutningen kan återanvändas (keep-alive), och skrivs med en
+ * JsonWriter. Parametrar anges i frågesträngen eller som formulärdata
+ * (application/x-www-form-urlencoded) i anropets kropp.
+ *
+ * <pre>
+ * GET    /customers?cursor=&amp;limit=                  sida med kunder
+ * POST   /customers?pNo=&amp;name=&amp;surname=            skapa kund
+ * GET    /customers/{pNo}                            kund med konton
+ * PUT    /customers/{pNo}?name=&amp;surname=            byt namn
+ * DELETE /customers/{pNo}                            ta bort kund
+ * GET    /customers/{pNo}/accounts?cursor=&amp;limit=   sida med konton
+ * POST   /customers/{pNo}/accounts?type=savings|credit  skapa konto
+ * GET    /customers/{pNo}/accounts/{id}              konto
+ * DELETE /customers/{pNo}/accounts/{id}              stäng konto
+ * POST   /customers/{pNo}/accounts/{id}/deposit?amount=
+ * POST   /customers/{pNo}/accounts/{id}/withdraw?amount=
+ * GET    /customers/{pNo}/accounts/{id}/transactions?cursor=&amp;limit=
+ * POST   /transfers?fromPNo=&amp;fromAccount=&amp;toPNo=&amp;toAccount=&amp;amount=
+ * GET    /search?prefix=&amp;limit=                     sök kund på namn
+ * POST   /bank/save?file=                            spara banken
+ * POST   /bank/load?file=                            läs in banken
+ * </pre>
+ *
+ * Ändringar svarar med {"ok":true} eller {"ok":false} på samma sätt som
+ * motsvarande metod i BankLogic. En kund eller ett konto som inte finns ger
+ * 404 och en ogiltig parameter 400, med felet i {"error":"..."}. En kropp
+ * större än MAX_BODY_SIZE byte ger 413 utan att läsas in, och ett namn,
+ * efternamn eller personnummer längre än MAX_TEXT_LENGTH tecken ger 400.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class BankServer implements AutoCloseable {
+    /** Antal poster per sida ifall limit inte anges */
+    static final int DEFAULT_PAGE_SIZE = 50;
+    /** Högsta tillåtna antal poster per sida */
+    static final int MAX_PAGE_SIZE = 1000;
+    /** Största tillåtna kropp i ett anrop, i byte */
+    static final int MAX_BODY_SIZE = 64 * 1024;
+    /** Högsta tillåtna antal tecken i namn, efternamn och personnummer */
+    static final int MAX_TEXT_LENGTH = 256;
+    private static final int BACKLOG = 4096;
+    private static final Pattern FILE_NAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+
+    private final BankLogic bank;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Startar en server för angiven bank.
+     *
+     * @param bank    banken
+     * @param address adress och port som servern lyssnar på, port 0 för valfri
+     *                ledig port
+     * @throws IOException ifall servern inte kunde starta
+     */
+    public BankServer(BankLogic bank, InetSocketAddress address) throws IOException {
+        this.bank = bank;
+        server = HttpServer.create(address, BACKLOG);
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Startar en server för en ny bank.
+     *
+     * @param args port (standard 8080) och eventuellt en fil att läsa in
+     *             banken från
+     * @throws IOException ifall servern inte kunde starta
+     */
+    public static void main(String[] args) throws IOException {
+        enableNoDelay();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        BankLogic bank = new BankLogic();
+        if (args.length > 1) {
+            bank.loadBankToFile(args[1]);
+        }
+        BankServer server = new BankServer(bank, new InetSocketAddress(port));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        System.out.println("Bank server listening on port " + server.getPort());
+    }
+
+    /**
+     * Slår på TCP_NODELAY för samtliga HTTP-servrar i JVM:en, om det inte
+     * redan angetts med -Dsun.net.httpserver.nodelay. Servern skriver svarets
+     * huvud och kropp var för sig, så utan TCP_NODELAY fördröjs kroppen ca
+     * 40 ms av Nagles algoritm och fördröjd ACK hos klienten. Egenskapen läses
+     * när den första servern skapas, så metoden måste anropas innan dess.
+     * Eftersom den påverkar hela JVM:en sätts den inte av konstruktorn utan av
+     * programmen som startar servern.
+     */
+    public static void enableNoDelay() {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /**
+     * Returnerar porten som servern lyssnar på.
+     *
+     * @return porten
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stoppar servern. Pågående anrop får en sekund på sig att bli klara.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /**
+     * Hanterar ett anrop: läser parametrarna, utför operationen och skickar
+     * svaret.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        JsonWriter json = new JsonWriter();
+        int status;
+        try {
+            Map<String, String> params = parameters(exchange);
+            if (params == null) {
+                status = error(json, 413, "Request body too large");
+            } else {
+                String[] path = exchange.getRequestURI().getPath().split("/");
+                status = route(exchange.getRequestMethod(), path, params, json);
+            }
+        } catch (IllegalArgumentException e) {
+            status = error(json, 400, e.getMessage());
+        } catch (RuntimeException e) {
+            status = error(json, 500, e.getMessage());
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, json.size());
+        try (OutputStream out = exchange.getResponseBody()) {
+            json.writeTo(out);
+        }
+    }
+
+    /**
+     * Väljer operation utifrån metod och sökväg. Sökvägen börjar med en tom
+     * del eftersom den inleds med /.
+     *
+     * @return svarets statuskod
+     */
+    private int route(String method, String[] path, Map<String, String> params, JsonWriter json) {
+        int length = path.length;
+        String resource = length > 1 ? path[1] : "";
+        if (resource.equals("customers")) {
+            if (length == 2) {
+                if (method.equals("GET")) {
+                    return page(json, bank.getCustomers(params.get("cursor"), pageSize(params)));
+                }
+                if (method.equals("POST")) {
+                    return ok(json, bank.createCustomer(text(params, "name"), text(params, "surname"),
+                            text(params, "pNo")));
+                }
+                return notAllowed(json);
+            }
+            String pNo = checkLength(path[2], "pNo");
+            if (length == 3) {
+                switch (method) {
+                    case "GET":
+                        return customer(json, pNo);
+                    case "PUT":
+                        return ok(json, bank.changeCustomerName(text(params, "name"),
+                                text(params, "surname"), pNo));
+                    case "DELETE":
+                        return strings(json, bank.deleteCustomer(pNo));
+                    default:
+                        return notAllowed(json);
+                }
+            }
+            if (!path[3].equals("accounts")) {
+                return notFound(json);
+            }
+            if (length == 4) {
+                if (method.equals("GET")) {
+                    Page<String> page = bank.getAccounts(pNo, params.get("cursor"), pageSize(params));
+                    return page == null ? notFound(json) : page(json, page);
+                }
+                if (method.equals("POST")) {
+                    return createAccount(json, pNo, required(params, "type"));
+                }
+                return notAllowed(json);
+            }
+            int accountId = integer(path[4], "account");
+            if (length == 5) {
+                switch (method) {
+                    case "GET":
+                        return account(json, pNo, accountId);
+                    case "DELETE": {
+                        String result = bank.closeAccount(pNo, accountId);
+                        return result == null ? notFound(json) : status(json, 200, "result", result);
+                    }
+                    default:
+                        return notAllowed(json);
+                }
+            }
+            if (length == 6) {
+                switch (path[5]) {
+                    case "deposit":
+                        return method.equals("POST")
+                                ? ok(json, bank.deposit(pNo, accountId, decimal(required(params, "amount"))))
+                                : notAllowed(json);
+                    case "withdraw":
+                        return method.equals("POST")
+                                ? ok(json, bank.withdraw(pNo, accountId,
+                                        integer(required(params, "amount"), "amount")))
+                                : notAllowed(json);
+                    case "transactions": {
+                        if (!method.equals("GET")) {
+                            return notAllowed(json);
+                        }
+                        Page<String> page = bank.getTransactions(pNo, accountId, params.get("cursor"),
+                                pageSize(params));
+                        return page == null ? notFound(json) : page(json, page);
+                    }
+                    default:
+                        return notFound(json);
+                }
+            }
+        } else if (resource.equals("transfers") && length == 2) {
+            if (!method.equals("POST")) {
+                return notAllowed(json);
+            }
+            return ok(json, bank.transfer(text(params, "fromPNo"),
+                    integer(required(params, "fromAccount"), "fromAccount"), text(params, "toPNo"),
+                    integer(required(params, "toAccount"), "toAccount"),
+                    integer(required(params, "amount"), "amount")));
+        } else if (resource.equals("search") && length == 2) {
+            if (!method.equals("GET")) {
+                return notAllowed(json);
+            }
+            return strings(json, bank.searchCustomers(required(params, "prefix"), pageSize(params)));
+        } else if (resource.equals("bank") && length == 3) {
+            if (!method.equals("POST")) {
+                return notAllowed(json);
+            }
+            String file = fileName(required(params, "file"));
+            if (path[2].equals("save")) {
+                bank.saveBankToFile(file);
+                return ok(json, true);
+            }
+            if (path[2].equals("load")) {
+                bank.loadBankToFile(file);
+                return ok(json, true);
+            }
+        }
+        return notFound(json);
+    }
+
+    private int customer(JsonWriter json, String pNo) {
+        Customer customer = bank.getCustomerObj(pNo);
+        if (customer == null) {
+            return notFound(json);
+        }
+        json.beginObject();
+        json.name("pNo").value(customer.getpNo());
+        json.name("name").value(customer.getName());
+        json.name("surname").value(customer.getSurname());
+        json.name("accounts").beginArray();
+        for (Account account : customer.getAccounts()) {
+            account(json, account);
+        }
+        json.endArray();
+        json.endObject();
+        return 200;
+    }
+
+    private int account(JsonWriter json, String pNo, int accountId) {
+        Customer customer = bank.getCustomerObj(pNo);
+        Account account = customer == null ? null : customer.getAccountFromId(accountId);
+        if (account == null) {
+            return notFound(json);
+        }
+        account(json, account);
+        return 200;
+    }
+
+    private static void account(JsonWriter json, Account account) {
+        json.beginObject();
+        json.name("accountId").value(account.getAccountNumber());
+        json.name("type").value(account.getAccountType());
+        json.name("balance").minorValue(account.getMinorBalance());
+        json.endObject();
+    }
+
+    private int createAccount(JsonWriter json, String pNo, String type) {
+        int accountId;
+        if (type.equals("savings")) {
+            accountId = bank.createSavingsAccount(pNo);
+        } else if (type.equals("credit")) {
+            accountId = bank.createCreditAccount(pNo);
+        } else {
+            throw new IllegalArgumentException("Invalid account type: " + type);
+        }
+        if (accountId == -1) {
+            return notFound(json);
+        }
+        json.beginObject().name("accountId").value(accountId).endObject();
+        return 201;
+    }
+
+    private static int page(JsonWriter json, Page<String> page) {
+        json.beginObject();
+        json.name("items").beginArray();
+        for (String item : page.getItems()) {
+            json.value(item);
+        }
+        json.endArray();
+        json.name("next").value(page.getNextCursor());
+        json.endObject();
+        return 200;
+    }
+
+    private static int strings(JsonWriter json, List<String> items) {
+        if (items == null) {
+            return notFound(json);
+        }
+        json.beginObject().name("items").beginArray();
+        for (String item : items) {
+            json.value(item);
+        }
+        json.endArray().endObject();
+        return 200;
+    }
+
+    private static int ok(JsonWriter json, boolean ok) {
+        json.beginObject().name("ok").value(ok).endObject();
+        return 200;
+    }
+
+    private static int status(JsonWriter json, int status, String name, String value) {
+        json.beginObject().name(name).value(value).endObject();
+        return status;
+    }
+
+    private static int error(JsonWriter json, int status, String message) {
+        json.reset();
+        return status(json, status, "error", message == null ? "Internal error" : message);
+    }
+
+    private static int notFound(JsonWriter json) {
+        return error(json, 404, "Not found");
+    }
+
+    private static int notAllowed(JsonWriter json) {
+        return error(json, 405, "Method not allowed");
+    }
+
+    /**
+     * Läser parametrarna från frågesträngen och, för formulärdata, från
+     * anropets kropp. Kroppen läses alltid till slut så att anslutningen kan
+     * återanvändas, utom när den är större än MAX_BODY_SIZE.
+     *
+     * @return parametrarna, eller null ifall kroppen är för stor
+     */
+    private static Map<String, String> parameters(HttpExchange exchange) throws IOException {
+        String declared = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (declared != null) {
+            try {
+                if (Long.parseLong(declared.trim()) > MAX_BODY_SIZE) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid Content-Length: " + declared);
+            }
+        }
+        Map<String, String> params = new HashMap<>();
+        parse(exchange.getRequestURI().getRawQuery(), params);
+        try (InputStream in = exchange.getRequestBody()) {
+            // Kroppen kan sakna längd (chunked), så högst en byte för mycket läses
+            byte[] body = in.readNBytes(MAX_BODY_SIZE + 1);
+            if (body.length > MAX_BODY_SIZE) {
+                return null;
+            }
+            String type = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (body.length > 0 && type != null && type.startsWith("application/x-www-form-urlencoded")) {
+                parse(new String(body, StandardCharsets.UTF_8), params);
+            }
+        }
+        return params;
+    }
+
+    private static void parse(String query, Map<String, String> params) {
+        if (query == null || query.isEmpty()) {
+            return;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Returnerar en obligatorisk textparameter, högst MAX_TEXT_LENGTH tecken.
+     */
+    private static String text(Map<String, String> params, String name) {
+        return checkLength(required(params, name), name);
+    }
+
+    private static String checkLength(String value, String name) {
+        if (value.length() > MAX_TEXT_LENGTH) {
+            throw new IllegalArgumentException("Too long " + name + ": " + value.length() + " characters");
+        }
+        return value;
+    }
+
+    private static int integer(String value, String name) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    private static float decimal(String value) {
+        try {
+            float amount = Float.parseFloat(value);
+            if (!Float.isFinite(amount)) {
+                throw new NumberFormatException();
+            }
+            return amount;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid amount: " + value);
+        }
+    }
+
+    private static int pageSize(Map<String, String> params) {
+        String limit = params.get("limit");
+        int size = limit == null ? DEFAULT_PAGE_SIZE : integer(limit, "limit");
+        if (size <= 0 || size > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Invalid limit: " + limit);
+        }
+        return size;
+    }
+
+    /**
+     * Kontrollerar att filnamnet inte pekar ut ur bankens filkatalog.
+     */
+    private static String fileName(String file) {
+        if (!FILE_NAME.matcher(file).matches() || file.contains("..")) {
+            throw new IllegalArgumentException("Invalid file name: " + file);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,536 @@
+package src.oscekb5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Klassen representerar en sparad ögonblicksbild av banken i ett kompakt,
+ * versionerat binärformat.
+ *
+ * Filen består av ett huvud (magiskt tal, version, nästa kontonummer, antal
+ * kunder, position för strängtabellen, historikarkivets katalog och
+ * blockstorlek samt en slumpad generation som deltafiler refererar till),
+ * en post per kund med längdprefix och sist en strängtabell.
+ * Kontots historik lagras kodad som i CompactLedger, med tal av variabel
+ * längd, och saldot i ören (version 1 lagrade historiken som strängar,
+ * version 2-5 kolumnvis som primitiva värden och version 1-2 saldot som
+ * flyttal, samtliga kan fortfarande läsas). Personnumret lagras med en
+ * längd på fyra byte (två byte före version 7, vilket inte räckte för
+ * strängar på 64 KiB eller mer). Namn och kontotyper upprepas ofta och
+ * lagras därför en gång i strängtabellen och refereras med index. Filen
+ * skrivs med en FileChannel och läses genom att mappas in i minnet.
+ *
+ * För konton vars historik arkiveras i ett HistoryArchive (från version 4)
+ * lagras bara positionerna för de arkiverade blocken samt transaktionerna som
+ * ligger i minnet, eftersom arkiverade block aldrig skrivs om. Arkivet tvingas
+ * ner till disk innan filen flyttas på plats.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class BankSnapshot {
+    static final int MAGIC = 0x424B5331; // "BKS1"
+    static final int VERSION = 7;
+
+    private static final int HEADER_SIZE = 40;
+    private static final int LEGACY_HEADER_SIZE = 24;
+    private static final byte SAVINGS = 0;
+    private static final byte CREDIT = 1;
+    /** Förloppet rapporteras var 256:e kund */
+    private static final int PROGRESS_INTERVAL = 0xFF;
+
+    private final List<Customer> customers;
+    private int nextAccountNumber;
+    private final long generation;
+
+    private BankSnapshot(List<Customer> customers, int nextAccountNumber, long generation) {
+        this.customers = customers;
+        this.nextAccountNumber = nextAccountNumber;
+        this.generation = generation;
+    }
+
+    /**
+     * Returnerar kunderna som lästes in, med tillhörande konton.
+     *
+     * @return lista med kunder
+     */
+    public List<Customer> getCustomers() {
+        return customers;
+    }
+
+    /**
+     * Returnerar det senast utdelade kontonumret.
+     *
+     * @return kontonummer
+     */
+    public int getNextAccountNumber() {
+        return nextAccountNumber;
+    }
+
+    /**
+     * Sätter det senast utdelade kontonumret, används när deltafiler läggs
+     * ovanpå ögonblicksbilden.
+     *
+     * @param nextAccountNumber kontonummer
+     */
+    void setNextAccountNumber(int nextAccountNumber) {
+        this.nextAccountNumber = nextAccountNumber;
+    }
+
+    /**
+     * Returnerar filens generation, som deltafiler använder för att referera
+     * till den.
+     *
+     * @return generation, 0 för filer sparade före version 5
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Kontrollerar om en fil är skriven i ögonblicksbildsformatet.
+     *
+     * @param path sökväg till filen
+     * @return true ifall filen börjar med formatets magiska tal
+     * @throws IOException ifall filen inte kunde läsas
+     */
+    public static boolean isSnapshot(Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && in.read(magic) >= 0) {
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Skriver bankens kunder och konton till fil. Filen skrivs först till en
+     * temporär fil som sedan flyttas på plats, så att en tidigare sparad bank
+     * inte förstörs ifall skrivningen avbryts.
+     *
+     * @param path              sökväg till filen
+     * @param customers         bankens kunder
+     * @param nextAccountNumber det senast utdelade kontonumret
+     * @return den skrivna filens generation
+     * @throws IOException ifall filen inte kunde skrivas
+     */
+    public static long write(Path path, List<Customer> customers, int nextAccountNumber) throws IOException {
+        return write(path, customers, nextAccountNumber, null);
+    }
+
+    /**
+     * Skriver bankens kunder och konton till fil. Historik som hör till archive
+     * lagras som referenser till arkivets block. För varje konto noteras hur
+     * många transaktioner som sparades, så att en efterföljande deltafil bara
+     * behöver innehålla nyare transaktioner.
+     *
+     * @param path              sökväg till filen
+     * @param customers         bankens kunder
+     * @param nextAccountNumber det senast utdelade kontonumret
+     * @param archive           bankens historikarkiv, eller null
+     * @return den skrivna filens generation
+     * @throws IOException ifall filen inte kunde skrivas
+     */
+    public static long write(Path path, List<Customer> customers, int nextAccountNumber, HistoryArchive archive)
+            throws IOException {
+        return write(path, customers, nextAccountNumber, archive, Progress.NONE);
+    }
+
+    /**
+     * Skriver bankens kunder och konton till fil och rapporterar förloppet per
+     * kund. Ifall skrivningen avbryts tas den temporära filen bort, så att en
+     * tidigare sparad bank lämnas orörd.
+     *
+     * @param path              sökväg till filen
+     * @param customers         bankens kunder
+     * @param nextAccountNumber det senast utdelade kontonumret
+     * @param archive           bankens historikarkiv, eller null
+     * @param progress          förloppet som rapporteras och kan avbryta
+     * @return den skrivna filens generation
+     * @throws IOException           ifall filen inte kunde skrivas
+     * @throws CancellationException ifall skrivningen avbröts
+     */
+    public static long write(Path path, List<Customer> customers, int nextAccountNumber, HistoryArchive archive,
+            Progress progress) throws IOException {
+        return write(path, customers, nextAccountNumber, archive, progress, true);
+    }
+
+    /**
+     * Skriver bankens kunder och konton till fil. En kopia av banken som inte
+     * är en bas för deltafiler, t.ex. en kontrollpunkt i händelsebaserat läge,
+     * skrivs med markSaved false så att nästa deltafil fortfarande innehåller
+     * transaktionerna som gjorts sedan den senaste sparningen.
+     *
+     * @param path              sökväg till filen
+     * @param customers         bankens kunder
+     * @param nextAccountNumber det senast utdelade kontonumret
+     * @param archive           bankens historikarkiv, eller null
+     * @param progress          förloppet som rapporteras och kan avbryta
+     * @param markSaved         true för att notera för varje konto hur många
+     *                          transaktioner som sparades
+     * @return den skrivna filens generation
+     * @throws IOException           ifall filen inte kunde skrivas
+     * @throws CancellationException ifall skrivningen avbröts
+     */
+    public static long write(Path path, List<Customer> customers, int nextAccountNumber, HistoryArchive archive,
+            Progress progress, boolean markSaved) throws IOException {
+        long generation = ThreadLocalRandom.current().nextLong();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new Writer(out);
+            writer.buffer.position(HEADER_SIZE);
+
+            ByteBuffer record = ByteBuffer.allocate(4096);
+            int done = 0;
+            for (Customer customer : customers) {
+                if ((done++ & PROGRESS_INTERVAL) == 0) {
+                    progress.checkpoint(done - 1, customers.size());
+                }
+                record.clear();
+                record = putString(record, customer.getpNo());
+                record = ensure(record, 12);
+                record.putInt(stringId(customer.getName(), stringIds, strings));
+                record.putInt(stringId(customer.getSurname(), stringIds, strings));
+                List<Account> accounts = customer.getAccounts();
+                record.putInt(accounts.size());
+                for (Account account : accounts) {
+                    record = ensure(record, 25);
+                    record.put(account instanceof SavingsAccount ? SAVINGS : CREDIT);
+                    record.putInt(account.getAccountNumber());
+                    record.putInt(stringId(account.getAccountType(), stringIds, strings));
+                    record.putLong(account.getMinorBalance());
+                    record.putInt(account instanceof SavingsAccount
+                            ? ((SavingsAccount) account).getWithdrawalCounter()
+                            : 0);
+                    TransactionHistory ledger = account.getLedger();
+                    synchronized (ledger) {
+                        long[] chunks = archive != null && archive.owns(ledger)
+                                ? ((TieredHistory) ledger).getChunks()
+                                : new long[0];
+                        int first = chunks.length == 0 ? 0 : chunks.length * archive.getChunkSize();
+                        int transactionCount = ledger.size() - first;
+                        record = ensure(record, 8 + chunks.length * 8);
+                        record.putInt(chunks.length);
+                        for (long chunk : chunks) {
+                            record.putLong(chunk);
+                        }
+                        record.putInt(transactionCount);
+                        record = CompactLedger.write(record, ledger, first, first + transactionCount);
+                        if (markSaved) {
+                            account.setSavedTransactions(first + transactionCount);
+                        }
+                    }
+                }
+                record.flip();
+                writer.ensure(4);
+                writer.buffer.putInt(record.remaining());
+                writer.put(record);
+            }
+
+            int archiveId = archive == null ? -1 : stringId(archive.getDirectory().toString(), stringIds, strings);
+            int chunkSize = archive == null ? 0 : archive.getChunkSize();
+            long stringTableOffset = writer.position();
+            writer.ensure(4);
+            writer.buffer.putInt(strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                writer.ensure(4);
+                writer.buffer.putInt(bytes.length);
+                // En sträng kan vara större än skrivbufferten
+                writer.put(ByteBuffer.wrap(bytes));
+            }
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(nextAccountNumber);
+            header.putInt(customers.size());
+            header.putLong(stringTableOffset);
+            header.putInt(archiveId);
+            header.putInt(chunkSize);
+            header.putLong(generation);
+            header.flip();
+            while (header.hasRemaining()) {
+                out.write(header, header.position());
+            }
+            out.force(false);
+        } catch (CancellationException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        progress.update(customers.size(), customers.size());
+        if (archive != null) {
+            archive.sync();
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return generation;
+    }
+
+    /**
+     * Läser in en sparad bank från fil.
+     *
+     * @param path sökväg till filen
+     * @return den inlästa ögonblicksbilden
+     * @throws IOException ifall filen inte kunde läsas eller har fel format
+     */
+    public static BankSnapshot read(Path path) throws IOException {
+        return read(path, null);
+    }
+
+    /**
+     * Läser in en sparad bank från fil. Arkiverad historik som hör till archive
+     * refereras direkt, övrig arkiverad historik läses in i minnet.
+     *
+     * @param path    sökväg till filen
+     * @param archive bankens historikarkiv, eller null
+     * @return den inlästa ögonblicksbilden
+     * @throws IOException ifall filen inte kunde läsas eller har fel format
+     */
+    public static BankSnapshot read(Path path, HistoryArchive archive) throws IOException {
+        return read(path, archive, Progress.NONE);
+    }
+
+    /**
+     * Läser in en sparad bank från fil och rapporterar förloppet per kund.
+     *
+     * @param path     sökväg till filen
+     * @param archive  bankens historikarkiv, eller null
+     * @param progress förloppet som rapporteras och kan avbryta
+     * @return den inlästa ögonblicksbilden
+     * @throws IOException           ifall filen inte kunde läsas eller har fel
+     *                               format
+     * @throws CancellationException ifall inläsningen avbröts
+     */
+    public static BankSnapshot read(Path path, HistoryArchive archive, Progress progress) throws IOException {
+        HistoryArchive source = null;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (in.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map");
+            }
+            ByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (data.remaining() < LEGACY_HEADER_SIZE || data.getInt() != MAGIC) {
+                throw new IOException("Not a bank snapshot");
+            }
+            int version = data.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version: " + version);
+            }
+            int nextAccountNumber = data.getInt();
+            int customerCount = data.getInt();
+            long stringTableOffset = data.getLong();
+            int archiveId = version >= 4 ? data.getInt() : -1;
+            int chunkSize = version >= 4 ? data.getInt() : 0;
+            long generation = version >= 5 ? data.getLong() : 0;
+
+            ByteBuffer table = data.duplicate().position((int) stringTableOffset);
+            String[] strings = new String[table.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(table, table.getInt());
+            }
+
+            Path archiveDirectory = archiveId < 0 ? null : Paths.get(strings[archiveId]);
+            boolean shared = archive != null && archive.getDirectory().equals(archiveDirectory)
+                    && archive.getChunkSize() == chunkSize;
+
+            NumberFormat nf = Account.getCurrencyFormat();
+            List<Customer> customers = new ArrayList<>(customerCount);
+            for (int i = 0; i < customerCount; i++) {
+                if ((i & PROGRESS_INTERVAL) == 0) {
+                    progress.checkpoint(i, customerCount);
+                }
+                int length = data.getInt();
+                ByteBuffer record = data.slice(data.position(), length);
+                data.position(data.position() + length);
+
+                String pNo = readString(record, version >= 7 ? record.getInt() : record.getShort() & 0xFFFF);
+                String name = lookup(strings, record.getInt());
+                Customer customer = new Customer(pNo, name, lookup(strings, record.getInt()));
+                int accountCount = record.getInt();
+                for (int j = 0; j < accountCount; j++) {
+                    byte type = record.get();
+                    int accountNumber = record.getInt();
+                    String accountType = lookup(strings, record.getInt());
+                    Account account = type == SAVINGS
+                            ? new SavingsAccount(accountNumber, accountType)
+                            : new CreditAccount(accountNumber, accountType);
+                    if (version < 3) {
+                        account.setBalance(record.getFloat());
+                    } else {
+                        account.setMinorBalance(record.getLong());
+                    }
+                    int withdrawalCounter = record.getInt();
+                    if (account instanceof SavingsAccount) {
+                        ((SavingsAccount) account).setWithdrawalCounter(withdrawalCounter);
+                    }
+                    long[] chunks = new long[version >= 4 ? record.getInt() : 0];
+                    for (int k = 0; k < chunks.length; k++) {
+                        chunks[k] = record.getLong();
+                    }
+                    if (chunks.length > 0) {
+                        if (shared) {
+                            account.replaceHistory(archive.restore(accountNumber, chunks));
+                        } else {
+                            // Arkivet är inte bankens, så historiken läses in i minnet
+                            if (source == null) {
+                                source = openArchive(archiveDirectory, chunkSize);
+                            }
+                            TieredHistory archived = source.restore(accountNumber, chunks);
+                            TransactionHistory ledger = account.getLedger();
+                            for (int k = 0; k < archived.size(); k++) {
+                                ledger.append(archived.getTime(k), archived.getAmount(k), archived.getBalance(k));
+                            }
+                        }
+                    }
+                    int transactionCount = record.getInt();
+                    if (version == 1) {
+                        for (int k = 0; k < transactionCount; k++) {
+                            account.restoreTransaction(readString(record, record.getShort() & 0xFFFF), nf);
+                        }
+                    } else if (version < 6) {
+                        readLedger(record, transactionCount, account.getLedger());
+                    } else {
+                        CompactLedger.read(record, transactionCount, account.getLedger());
+                    }
+                    customer.restoreAccount(account);
+                }
+                customers.add(customer);
+            }
+            progress.update(customerCount, customerCount);
+            return new BankSnapshot(customers, nextAccountNumber, generation);
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Öppnar ett historikarkiv som en sparad bank refererar till.
+     */
+    private static HistoryArchive openArchive(Path directory, int chunkSize) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            throw new IOException("History archive not found: " + directory);
+        }
+        return new HistoryArchive(directory, chunkSize * 2);
+    }
+
+    /**
+     * Returnerar index i strängtabellen för angiven sträng, och lägger till den
+     * ifall den inte redan finns. Null lagras som -1.
+     */
+    private static int stringId(String value, Map<String, Integer> stringIds, List<String> strings) {
+        if (value == null) {
+            return -1;
+        }
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = strings.size();
+            strings.add(value);
+            stringIds.put(value, id);
+        }
+        return id;
+    }
+
+    /**
+     * Läser en historik som lagrats kolumnvis: först alla tidpunkter, sedan alla
+     * belopp och sist alla saldon.
+     */
+    private static void readLedger(ByteBuffer record, int count, TransactionHistory ledger) {
+        int start = record.position();
+        for (int k = 0; k < count; k++) {
+            ledger.append(record.getLong(start + k * 8), record.getLong(start + (count + k) * 8),
+                    record.getLong(start + (2 * count + k) * 8));
+        }
+        record.position(start + count * 24);
+    }
+
+    private static String lookup(String[] strings, int id) {
+        return id < 0 ? null : strings[id];
+    }
+
+    static ByteBuffer putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer = ensure(buffer, 4 + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    /**
+     * Buffrad skrivning till en FileChannel genom en direkt ByteBuffer.
+     */
+    static class Writer {
+        private final FileChannel out;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        private long written = 0;
+
+        Writer(FileChannel out) {
+            this.out = out;
+        }
+
+        long position() {
+            return written + buffer.position();
+        }
+
+        void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void put(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(buffer.remaining(), data.remaining());
+                buffer.put(buffer.position(), data, data.position(), n);
+                buffer.position(buffer.position() + n);
+                data.position(data.position() + n);
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            written += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package src.oscekb5;
+
+/**
+ * Klassen representerar en enskild insättning eller ett enskilt uttag i en
+ * batch som körs med BankLogic.applyBatch.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class BatchOperation {
+    /**
+     * Typ av operation
+     */
+    public enum Type {
+        DEPOSIT, WITHDRAW
+    }
+
+    private final Type type;
+    private final String pNo;
+    private final int accountId;
+    // Summan i ören, så att även stora uttag lagras exakt
+    private final long minorAmount;
+
+    private BatchOperation(Type type, String pNo, int accountId, long minorAmount) {
+        this.type = type;
+        this.pNo = pNo;
+        this.accountId = accountId;
+        this.minorAmount = minorAmount;
+    }
+
+    /**
+     * Skapar en insättning.
+     *
+     * @param pNo       kundens personnummer
+     * @param accountId önskat bankkonto
+     * @param amount    summa
+     * @return operationen
+     */
+    public static BatchOperation deposit(String pNo, int accountId, float amount) {
+        return new BatchOperation(Type.DEPOSIT, pNo, accountId, Account.toMinorUnits(amount));
+    }
+
+    /**
+     * Skapar ett uttag.
+     *
+     * @param pNo       kundens personnummer
+     * @param accountId önskat bankkonto
+     * @param amount    summa
+     * @return operationen
+     */
+    public static BatchOperation withdraw(String pNo, int accountId, int amount) {
+        return new BatchOperation(Type.WITHDRAW, pNo, accountId, amount * 100L);
+    }
+
+    /**
+     * Returnerar typen av operation.
+     *
+     * @return insättning eller uttag
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returnerar kundens personnummer.
+     *
+     * @return personnummer
+     */
+    public String getpNo() {
+        return pNo;
+    }
+
+    /**
+     * Returnerar kontonumret.
+     *
+     * @return kontonummer
+     */
+    public int getAccountId() {
+        return accountId;
+    }
+
+    /**
+     * Returnerar summan i ören.
+     *
+     * @return summa i ören
+     */
+    public long getMinorAmount() {
+        return minorAmount;
+    }
+}
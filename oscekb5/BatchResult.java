@@ -0,0 +1,101 @@
+package src.oscekb5;
+
+/**
+ * Klassen representerar resultatet av en batch som körts med
+ * BankLogic.applyBatch.
+ *
+ * Resultatet lagras som en kod per operation i en byte-array, i samma ordning
+ * som operationerna skickades in.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class BatchResult {
+    /** Operationen genomfördes */
+    public static final byte OK = 0;
+    /** Kunden eller kontot finns inte, eller kontot tillhör en annan kund */
+    public static final byte UNKNOWN_ACCOUNT = 1;
+    /** Summan är ogiltig (<= 0) */
+    public static final byte INVALID_AMOUNT = 2;
+    /** Sparkontots saldo räcker inte till uttaget och avgiften */
+    public static final byte INSUFFICIENT_FUNDS = 3;
+    /** Uttaget skulle överskrida kreditkontots kreditgräns */
+    public static final byte CREDIT_LIMIT = 4;
+
+    private final byte[] codes;
+    private int failures = 0;
+
+    BatchResult(int size) {
+        this.codes = new byte[size];
+    }
+
+    void set(int index, byte code) {
+        if (codes[index] != OK) {
+            failures--;
+        }
+        codes[index] = code;
+        if (code != OK) {
+            failures++;
+        }
+    }
+
+    /**
+     * Returnerar antalet operationer i batchen.
+     *
+     * @return antal operationer
+     */
+    public int size() {
+        return codes.length;
+    }
+
+    /**
+     * Returnerar resultatkoden för angiven operation.
+     *
+     * @param index operationens position i batchen
+     * @return resultatkod, t.ex. OK eller CREDIT_LIMIT
+     */
+    public byte getCode(int index) {
+        return codes[index];
+    }
+
+    /**
+     * Returnerar om angiven operation genomfördes.
+     *
+     * @param index operationens position i batchen
+     * @return true ifall operationen lyckades
+     */
+    public boolean isSuccess(int index) {
+        return codes[index] == OK;
+    }
+
+    /**
+     * Returnerar antalet misslyckade operationer.
+     *
+     * @return antal misslyckade operationer
+     */
+    public int getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * Returnerar en beskrivning av en resultatkod.
+     *
+     * @param code resultatkod
+     * @return beskrivning av koden
+     */
+    public static String describe(byte code) {
+        switch (code) {
+            case OK:
+                return "Genomförd";
+            case UNKNOWN_ACCOUNT:
+                return "Kund eller konto hittades ej";
+            case INVALID_AMOUNT:
+                return "Ogiltigt belopp";
+            case INSUFFICIENT_FUNDS:
+                return "Otillräckligt saldo";
+            case CREDIT_LIMIT:
+                return "Kreditgränsen överskrids";
+            default:
+                return "Okänd kod";
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package src.oscekb5;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Klassen håller reda på vilka kunder och konton som har ändrats sedan banken
+ * senast sparades, så att nästa sparning kan skriva enbart ändringarna.
+ *
+ * Ändringar markeras efter att de har genomförts. När ändringarna hämtas tas
+ * markeringen bort innan kundens eller kontots tillstånd läses, så en ändring
+ * som sker under sparningen hamnar alltid antingen i den pågående eller i
+ * nästa sparning. Ett konto markeras med en flagga i kontot och läggs bara i
+ * kön första gången det ändras, så insättningar och uttag på ett redan ändrat
+ * konto kostar bara en läsning av flaggan.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class ChangeTracker {
+    private final Set<String> customers = ConcurrentHashMap.newKeySet();
+    private final LinkedBlockingQueue<Account> accounts = new LinkedBlockingQueue<>();
+
+    /**
+     * Markerar en kund som skapad, ändrad eller raderad.
+     *
+     * @param pNo kundens personnummer
+     */
+    void customerChanged(String pNo) {
+        customers.add(pNo);
+    }
+
+    /**
+     * Markerar ett konto som skapat, ändrat eller stängt.
+     *
+     * @param account kontot
+     */
+    void accountChanged(Account account) {
+        if (account.markDirty()) {
+            accounts.add(account);
+        }
+    }
+
+    /**
+     * Hämtar och tar bort markeringen för samtliga ändrade kunder.
+     *
+     * @return personnummer för ändrade kunder
+     */
+    List<String> drainCustomers() {
+        List<String> changed = new ArrayList<>();
+        for (Iterator<String> it = customers.iterator(); it.hasNext();) {
+            changed.add(it.next());
+            it.remove();
+        }
+        return changed;
+    }
+
+    /**
+     * Hämtar och tar bort markeringen för samtliga ändrade konton.
+     *
+     * @return ändrade konton
+     */
+    List<Account> drainAccounts() {
+        List<Account> changed = new ArrayList<>();
+        accounts.drainTo(changed);
+        for (Account account : changed) {
+            account.markClean();
+        }
+        return changed;
+    }
+
+    /**
+     * Glömmer samtliga ändringar, t.ex. efter att hela banken har sparats
+     * eller lästs in.
+     */
+    void clear() {
+        drainCustomers();
+        drainAccounts();
+    }
+}
@@ -0,0 +1,274 @@
+package src.oscekb5;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Klassen representerar transaktionshistoriken för ett konto, lagrad
+ * komprimerad på heapen.
+ *
+ * Transaktionerna kodas efter varandra i en bytearray. Varje transaktion
+ * lagras som tre tal med variabel längd (7 bitar per byte) i zig-zag-kodning,
+ * så att små negativa tal också blir korta:
+ *
+ * <ul>
+ * <li>tidpunkten som skillnad mot föregående transaktion</li>
+ * <li>beloppet i ören</li>
+ * <li>saldot som skillnad mot föregående saldo plus beloppet, vilket oftast
+ * är 0 och då tar en byte</li>
+ * </ul>
+ *
+ * En vanlig transaktion tar därmed 6-12 byte i stället för 24 byte som i
+ * TransactionLedger. Var BLOCK_SIZE:e transaktion påbörjar ett block, och för
+ * varje block sparas dess position samt tidpunkt och saldo före blocket, så
+ * att en transaktion kan läsas utan att hela historiken avkodas. Blocken
+ * avkodas först när de läses, t.ex. när getTransactions anropas, till en
+ * cache per tråd så att transaktionerna i ett block kan läsas i följd utan
+ * att blocket avkodas på nytt.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class CompactLedger implements TransactionHistory {
+    /** Antal transaktioner per block */
+    static final int BLOCK_SIZE = 32;
+    /** Max antal byte för en transaktion, tre tal om högst 10 byte */
+    static final int MAX_RECORD_SIZE = 30;
+
+    private static final ThreadLocal<BlockCache> CACHES = ThreadLocal.withInitial(BlockCache::new);
+
+    private byte[] data;
+    private int length = 0;
+    private int size = 0;
+    // Per block: position i data samt tidpunkt och saldo före blocket
+    private int[] offsets = new int[1];
+    private long[] baseTimes = new long[1];
+    private long[] baseBalances = new long[1];
+    private long lastTime = 0;
+    private long lastBalance = 0;
+
+    /**
+     * Konstruktor som skapar en tom historik.
+     */
+    public CompactLedger() {
+        this(2);
+    }
+
+    /**
+     * Konstruktor som skapar en tom historik med plats för ungefär angivet
+     * antal transaktioner.
+     *
+     * @param capacity antal transaktioner som får plats innan bytearrayen växer
+     */
+    public CompactLedger(int capacity) {
+        data = new byte[Math.max(1, capacity) * 8];
+    }
+
+    @Override
+    public void append(long time, long amount, long balance) {
+        if (size % BLOCK_SIZE == 0) {
+            int block = size / BLOCK_SIZE;
+            if (block == offsets.length) {
+                int capacity = block * 2;
+                offsets = Arrays.copyOf(offsets, capacity);
+                baseTimes = Arrays.copyOf(baseTimes, capacity);
+                baseBalances = Arrays.copyOf(baseBalances, capacity);
+            }
+            offsets[block] = length;
+            baseTimes[block] = lastTime;
+            baseBalances[block] = lastBalance;
+        }
+        if (length + MAX_RECORD_SIZE > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + MAX_RECORD_SIZE));
+        }
+        putVarLong(zigZag(time - lastTime));
+        putVarLong(zigZag(amount));
+        putVarLong(zigZag(balance - lastBalance - amount));
+        lastTime = time;
+        lastBalance = balance;
+        size++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long getTime(int index) {
+        return block(index).times[index % BLOCK_SIZE];
+    }
+
+    @Override
+    public long getAmount(int index) {
+        return block(index).amounts[index % BLOCK_SIZE];
+    }
+
+    @Override
+    public long getBalance(int index) {
+        return block(index).balances[index % BLOCK_SIZE];
+    }
+
+    /**
+     * Returnerar antalet byte som de kodade transaktionerna upptar, vilket
+     * även är storleken på historiken i en sparad bank (se BankSnapshot).
+     *
+     * @return antal byte
+     */
+    public int getEncodedSize() {
+        return length;
+    }
+
+    /**
+     * Returnerar trådens cache med blocket som innehåller angiven transaktion,
+     * avkodat åtminstone till och med transaktionen. Ett block ändras aldrig
+     * när det väl skrivits, så bara det sista blocket kan behöva avkodas vidare.
+     */
+    private BlockCache block(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Transaction index " + index + " out of bounds for " + size);
+        }
+        BlockCache cache = CACHES.get();
+        int block = index / BLOCK_SIZE;
+        if (cache.ledger != this || cache.block != block) {
+            cache.ledger = this;
+            cache.block = block;
+            cache.count = 0;
+            cache.position = offsets[block];
+            cache.time = baseTimes[block];
+            cache.balance = baseBalances[block];
+        }
+        int last = index % BLOCK_SIZE;
+        while (cache.count <= last) {
+            long time = cache.time + unZigZag(getVarLong(cache));
+            long amount = unZigZag(getVarLong(cache));
+            long balance = cache.balance + amount + unZigZag(getVarLong(cache));
+            cache.times[cache.count] = time;
+            cache.amounts[cache.count] = amount;
+            cache.balances[cache.count] = balance;
+            cache.time = time;
+            cache.balance = balance;
+            cache.count++;
+        }
+        return cache;
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            data[length++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte) value;
+    }
+
+    private long getVarLong(BlockCache cache) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[cache.position++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Skriver transaktionerna från och med from till och med to (exklusiv) i
+     * samma kodning som CompactLedger, med tidpunkt och saldo 0 före den
+     * första transaktionen.
+     *
+     * @param buffer  bufferten som transaktionerna skrivs till
+     * @param history historiken, vars lås anroparen måste hålla
+     * @param from    första transaktionens position
+     * @param to      position efter den sista transaktionen
+     * @return bufferten, eller en större kopia ifall den inte räckte till
+     */
+    static ByteBuffer write(ByteBuffer buffer, TransactionHistory history, int from, int to) {
+        if (from == 0 && to == history.size() && history instanceof CompactLedger) {
+            // Redan kodad på samma sätt, så bytearrayen kan kopieras direkt
+            CompactLedger ledger = (CompactLedger) history;
+            buffer = BankSnapshot.ensure(buffer, ledger.length);
+            buffer.put(ledger.data, 0, ledger.length);
+            return buffer;
+        }
+        long lastTime = 0;
+        long lastBalance = 0;
+        for (int k = from; k < to; k++) {
+            long time = history.getTime(k);
+            long amount = history.getAmount(k);
+            long balance = history.getBalance(k);
+            buffer = BankSnapshot.ensure(buffer, MAX_RECORD_SIZE);
+            putVarLong(buffer, zigZag(time - lastTime));
+            putVarLong(buffer, zigZag(amount));
+            putVarLong(buffer, zigZag(balance - lastBalance - amount));
+            lastTime = time;
+            lastBalance = balance;
+        }
+        return buffer;
+    }
+
+    /**
+     * Läser transaktioner som skrivits med write och lägger till dem i en
+     * historik.
+     *
+     * @param buffer  bufferten som transaktionerna läses från
+     * @param count   antal transaktioner
+     * @param history historiken som transaktionerna läggs till i
+     */
+    static void read(ByteBuffer buffer, int count, TransactionHistory history) {
+        long time = 0;
+        long balance = 0;
+        for (int k = 0; k < count; k++) {
+            time += unZigZag(getVarLong(buffer));
+            long amount = unZigZag(getVarLong(buffer));
+            balance += amount + unZigZag(getVarLong(buffer));
+            history.append(time, amount, balance);
+        }
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) {
+                throw new IllegalArgumentException("Malformed transaction encoding");
+            }
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static long zigZag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    private static long unZigZag(long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    /**
+     * Ett avkodat block, ett per tråd.
+     */
+    private static final class BlockCache {
+        final long[] times = new long[BLOCK_SIZE];
+        final long[] amounts = new long[BLOCK_SIZE];
+        final long[] balances = new long[BLOCK_SIZE];
+        CompactLedger ledger;
+        int block = -1;
+        int count;
+        int position;
+        long time;
+        long balance;
+    }
+}
@@ -1,21 +1,24 @@
 package src.oscekb5;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 
 /**
  * Klassen skapar en instans av ett konto som associeras till kund (Customer).
  * Kontot är av typen kreditkonto
  * 
+ * Uttag görs med kontots lås, där kreditgränsen kontrolleras mot saldot som
+ * ändras.
+ * 
  * @author Oscar Ekberg, oscekb-5
  */
 public class CreditAccount extends Account {
+    private static final long serialVersionUID = -4551355296346286666L;
+
     private final int MAX_CREDIT = -5000;
     private final float INTEREST_IF_POS = 0.011f;
     private final float INTEREST_IF_NEG = 0.05f;
 
-    private final List<String> history = new ArrayList<>();
-
     /**
      * Konstruktor för klassen
      * 
@@ -27,36 +30,30 @@ public class CreditAccount extends Account {
     }
 
     @Override
-    protected boolean withdraw(int amount) {
-        if (getBalance() - amount < MAX_CREDIT) {
-            return false;
+    protected long withdrawMinor(int amount, long time) {
+        long total = amount * 100L;
+        synchronized (historyLock()) {
+            long balance = loadBalance();
+            if (balance == CLOSED || balance - total < MAX_CREDIT * 100L || !storeBalance(balance - total)) {
+                return FAILED;
+            }
+            recordTransaction(time, -total, balance - total);
+            return total;
         }
-        setBalance(getBalance() - amount);
-        history.add(getCurrentFormattedDateTime() + " -" + getFormattedAmount(amount) + " Saldo: "
-                + getFormattedAmount(getBalance()));
-        return true;
     }
 
     @Override
-    protected void deposit(float amount) {
-        setBalance(getBalance() + amount);
-        history.add(getCurrentFormattedDateTime() + " " + getFormattedAmount(amount) + " Saldo: "
-                + getFormattedAmount(getBalance()));
-    }
-
-    @Override
-    protected List<String> getTransactions() {
-        return history;
+    protected float calcFinalInterest() {
+        return calcInterest(getMinorBalance()) / 100f;
     }
 
     @Override
-    protected float calcFinalInterest() {
-        if (getBalance() >= 0) {
-            return getBalance() * INTEREST_IF_POS;
+    protected long calcInterest(long balance) {
+        if (balance >= 0) {
+            return Math.round(balance * (double) INTEREST_IF_POS);
         } else {
-            return getBalance() * INTEREST_IF_NEG;
+            return Math.round(balance * (double) INTEREST_IF_NEG);
         }
-
     }
 
     @Override
@@ -67,4 +64,13 @@ public class CreditAccount extends Account {
             return " 5 %";
         }
     }
+
+    /**
+     * Läser in kontot via Java-serialisering, inklusive historik från banker
+     * sparade i det äldre formatet
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        restoreLegacyHistory(fields);
+    }
 }
@@ -11,13 +11,18 @@ import java.util.Locale;
  * Objektet innehåller variabler för förnamn, efternamn, personnummer,
  * kontoräknare och en lista med aktiva konton.
  * 
+ * Kundens namn och kontolista skyddas av kundobjektets lås. Saldon
+ * uppdateras av respektive konto, med kontots egna lås.
+ * 
  * @author Oscar Ekberg, oscekb-5
  */
 public class Customer implements Serializable {
+    private static final long serialVersionUID = 154566253114266528L;
     private String name;
     private String surName;
     private final String pNo;
     private final ArrayList<Account> accounts = new ArrayList<>();
+    private transient boolean deleted;
 
     /**
      * Konstruktor för klassen Customer.
@@ -40,7 +45,7 @@ public class Customer implements Serializable {
      *         efternamn
      */
     @Override
-    public String toString() {
+    public synchronized String toString() {
         return pNo + " " + name + " " + surName;
     }
 
@@ -50,7 +55,7 @@ public class Customer implements Serializable {
      * @param accountNumber numret för kontonumret
      * @return kontonumret som det nyöppnade kontot skapats med
      */
-    public int addCreditAccount(int accountNumber) {
+    public synchronized int addCreditAccount(int accountNumber) {
         Account temp = new CreditAccount((accountNumber), "Kreditkonto");
         accounts.add(temp);
         return accountNumber;
@@ -62,19 +67,28 @@ public class Customer implements Serializable {
      * @param accountNumber numret för kontonumret
      * @return kontonumret som det nyöppnade kontot skapats med
      */
-    public int addSavingsAccount(int accountNumber) {
+    public synchronized int addSavingsAccount(int accountNumber) {
         Account temp = new SavingsAccount((accountNumber), "Sparkonto");
         accounts.add(temp);
         return accountNumber;
     }
 
+    /**
+     * Lägger till ett befintligt konto, används vid inläsning av en sparad bank.
+     * 
+     * @param account kontot som ska läggas till
+     */
+    synchronized void restoreAccount(Account account) {
+        accounts.add(account);
+    }
+
     /**
      * Returnerar konto-objekt för aktuellt kontonummer
      * 
      * @param accountId
      * @return
      */
-    public Account getAccountFromId(int accountId) {
+    public synchronized Account getAccountFromId(int accountId) {
         for (Account account : accounts) {
             if (account.getAccountNumber() == accountId) {
                 return account;
@@ -92,23 +106,31 @@ public class Customer implements Serializable {
      * @return sträng som skriver ut det stängda kontots detaljer
      */
     public String closeAccount(int accountId) {
-        for (Account account : accounts) {
-            if (account.getAccountNumber() == accountId) {
-                NumberFormat nf = NumberFormat.getCurrencyInstance(Locale.of("sv", "SE"));
+        return closeAccount(getAccountFromId(accountId));
+    }
 
-                nf.setMinimumFractionDigits(2);
-                nf.setMaximumFractionDigits(2);
+    /**
+     * Avslutar/stänger ett befintligt konto som redan slagits upp.
+     * 
+     * @param account kontot som önskas tas bort
+     * @return sträng som skriver ut det stängda kontots detaljer, null ifall
+     *         kontot inte tillhör kunden
+     */
+    public synchronized String closeAccount(Account account) {
+        if (account == null || !accounts.remove(account)) {
+            return null;
+        }
+        NumberFormat nf = NumberFormat.getCurrencyInstance(Locale.of("sv", "SE"));
 
-                String nfBalance = nf.format(account.getBalance());
-                float interest = account.calcFinalInterest();
-                String nfInterest = nf.format(interest);
+        nf.setMinimumFractionDigits(2);
+        nf.setMaximumFractionDigits(2);
 
-                accounts.remove(account);
+        account.close();
+        String nfBalance = nf.format(account.getMinorBalance() / 100.0);
+        float interest = account.calcFinalInterest();
+        String nfInterest = nf.format(interest);
 
-                return accountId + " " + nfBalance + " " + account.getAccountType() + " " + nfInterest;
-            }
-        }
-        return null;
+        return account.getAccountNumber() + " " + nfBalance + " " + account.getAccountType() + " " + nfInterest;
     }
 
     /**
@@ -116,7 +138,7 @@ public class Customer implements Serializable {
      * 
      * @return lista med information om konton
      */
-    public List<Account> getAccounts() {
+    public synchronized List<Account> getAccounts() {
         List<Account> list = new ArrayList<>();
         for (Account account : accounts) {
             list.add(account);
@@ -133,6 +155,40 @@ public class Customer implements Serializable {
         return pNo;
     }
 
+    /**
+     * Markerar kunden som raderad, så att inga nya konton kan öppnas.
+     */
+    synchronized void markDeleted() {
+        deleted = true;
+    }
+
+    /**
+     * Returnerar om kunden har raderats ur banken.
+     * 
+     * @return true ifall kunden raderats
+     */
+    synchronized boolean isDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Returnerar förnamnet för aktuell kund.
+     * 
+     * @return förnamn
+     */
+    public synchronized String getName() {
+        return name;
+    }
+
+    /**
+     * Returnerar efternamnet för aktuell kund.
+     * 
+     * @return efternamn
+     */
+    public synchronized String getSurname() {
+        return surName;
+    }
+
     /**
      * Adderar vald summa till saldot.
      * Summan är ogiltig ifall den är <= 0.
@@ -145,16 +201,22 @@ public class Customer implements Serializable {
      * @return true vid lyckad insättning, annars false
      */
     public boolean deposit(int accountId, float amount) {
-        if (amount <= 0) {
+        return deposit(getAccountFromId(accountId), amount);
+    }
+
+    /**
+     * Adderar vald summa till saldot på ett konto som redan slagits upp.
+     * Summan är ogiltig ifall den är <= 0.
+     * 
+     * @param account kontot, null ger misslyckad insättning
+     * @param amount  summa som önskas sättas in
+     * @return true vid lyckad insättning, annars false
+     */
+    public boolean deposit(Account account, float amount) {
+        if (amount <= 0 || account == null) {
             return false;
         }
-        for (Account account : accounts) {
-            if (account != null && account.getAccountNumber() == accountId) {
-                account.deposit(amount);
-                return true;
-            }
-        }
-        return false;
+        return account.deposit(amount);
     }
 
     /**
@@ -169,16 +231,22 @@ public class Customer implements Serializable {
      * @return true vid lyckat uttag, annars false
      */
     public boolean withdraw(int accountId, int amount) {
-        if (amount <= 0) {
-            return false;
-        }
+        return withdraw(getAccountFromId(accountId), amount);
+    }
 
-        for (Account account : accounts) {
-            if (account.getAccountNumber() == accountId) {
-                return account.withdraw(amount);
-            }
+    /**
+     * Subtraherar vald summa från saldot på ett konto som redan slagits upp.
+     * Summan är ogiltig ifall den är <= 0.
+     * 
+     * @param account kontot, null ger misslyckat uttag
+     * @param amount  summa som önskas tas ut
+     * @return true vid lyckat uttag, annars false
+     */
+    public boolean withdraw(Account account, int amount) {
+        if (amount <= 0 || account == null) {
+            return false;
         }
-        return false;
+        return account.withdraw(amount);
     }
 
     /**
@@ -192,7 +260,7 @@ public class Customer implements Serializable {
      * @return en flagga som returnerar ett booleskt värde, true vid lyckad ändring,
      *         annars false
      */
-    public boolean setName(String name, String surname) {
+    public synchronized boolean setName(String name, String surname) {
         boolean isChanged = false;
         if (name != null & !name.isEmpty()) {
             this.name = name;
@@ -210,7 +278,7 @@ public class Customer implements Serializable {
      * 
      * @return lista med info om stängda konton
      */
-    public List<String> closeAllAccounts() {
+    public synchronized List<String> closeAllAccounts() {
         List<String> closedAccounts = new ArrayList<>();
 
         List<Account> temp = new ArrayList<>(accounts);
@@ -226,7 +294,7 @@ public class Customer implements Serializable {
      * @param accountId det aktuella kontot
      * @return sträng med kontoinformation
      */
-    public String getAccountInfo(int accountId) {
+    public synchronized String getAccountInfo(int accountId) {
         for (Account account : accounts) {
             if (account.getAccountNumber() == accountId) {
                 return account.toString();
@@ -241,7 +309,7 @@ public class Customer implements Serializable {
      * @param accountId kontonummer för aktuellt konto
      * @return lista med transaktioner i strängformat
      */
-    public List<String> getTransactions(int accountId) {
+    public synchronized List<String> getTransactions(int accountId) {
         for (Account account : accounts) {
             if (account.getAccountNumber() == accountId) {
                 return account.getTransactions();
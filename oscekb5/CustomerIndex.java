@@ -0,0 +1,355 @@
+package src.oscekb5;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Klassen representerar ett index över bankens kunder, nycklat på
+ * personnummer.
+ *
+ * Personnumret packas till en primitiv long-nyckel som slås upp i en
+ * hashtabell med öppen adressering. Kunderna lagras samtidigt i
+ * insättningsordning så att iteration sker i samma ordning som kunderna
+ * skapades. Varje kund får dessutom ett löpnummer som aldrig återanvänds,
+ * vilket gör att en listning kan fortsätta efter en viss kund även om kunder
+ * läggs till eller raderas mellan anropen.
+ *
+ * Indexet är trådsäkert. Ändringar görs under ett skrivlås medan
+ * uppslagningar först görs optimistiskt utan lås och bara tar ett läslås
+ * ifall en samtidig ändring upptäcks.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class CustomerIndex {
+    private static final int EMPTY = -1;
+    private static final int DELETED = -2;
+
+    // Hashtabell: nyckel och position i ordningslistan
+    private long[] keys = new long[16];
+    private int[] slots = newSlots(16);
+
+    // Kunder i insättningsordning, raderade kunder lämnar ett hål (null)
+    private Customer[] order = new Customer[16];
+    private long[] sequences = new long[16];
+    private long nextSequence = 0;
+    private int orderSize = 0;
+    private int size = 0;
+    private int used = 0;
+
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Packar ett personnummer till en long-nyckel.
+     * Personnummer med enbart siffror och högst 16 tecken packas till sitt
+     * numeriska värde (under 2^54) med längden i bitarna ovanför, så att
+     * inledande nollor bevaras och två sådana personnummer aldrig får samma
+     * nyckel. Övriga strängar hashas och får den högsta biten satt, så att de
+     * inte kan krocka med ett packat personnummer.
+     *
+     * @param pNo personnummer
+     * @return nyckel för personnumret
+     */
+    static long keyOf(String pNo) {
+        int length = pNo.length();
+        if (length > 0 && length <= 16) {
+            long value = 0;
+            boolean numeric = true;
+            for (int i = 0; i < length; i++) {
+                char c = pNo.charAt(i);
+                if (c < '0' || c > '9') {
+                    numeric = false;
+                    break;
+                }
+                value = value * 10 + (c - '0');
+            }
+            if (numeric) {
+                return ((long) length << 54) | value;
+            }
+        }
+        long h = pNo.hashCode() * 0x9E3779B97F4A7C15L;
+        return h | Long.MIN_VALUE;
+    }
+
+    /**
+     * Returnerar kunden med angivet personnummer.
+     *
+     * @param pNo personnummer
+     * @return kunden, eller null ifall den ej finns
+     */
+    public Customer get(String pNo) {
+        if (pNo == null) {
+            return null;
+        }
+        long key = keyOf(pNo);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Customer customer = find(pNo, key);
+                if (lock.validate(stamp)) {
+                    return customer;
+                }
+            } catch (RuntimeException e) {
+                // En samtidig ändring gav en inkonsekvent vy, läs om under lås
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return find(pNo, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Letar upp kunden i hashtabellen. Antalet steg begränsas av tabellens storlek
+     * så att en optimistisk läsning aldrig fastnar i en inkonsekvent tabell.
+     */
+    private Customer find(String pNo, long key) {
+        long[] keys = this.keys;
+        int[] slots = this.slots;
+        Customer[] order = this.order;
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        for (int probes = 0; probes < slots.length; probes++, i = (i + 1) & mask) {
+            int slot = slots[i];
+            if (slot == EMPTY) {
+                return null;
+            }
+            if (slot != DELETED && keys[i] == key) {
+                Customer customer = order[slot];
+                if (customer != null && customer.getpNo().equals(pNo)) {
+                    return customer;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lägger till kunden i indexet ifall personnumret inte redan finns.
+     *
+     * @param customer kunden som ska läggas till
+     * @return true ifall kunden lades till, annars false
+     */
+    public boolean add(Customer customer) {
+        long stamp = lock.writeLock();
+        try {
+            return insertCustomer(customer);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private boolean insertCustomer(Customer customer) {
+        if (find(customer.getpNo(), keyOf(customer.getpNo())) != null) {
+            return false;
+        }
+        if ((used + 1) * 4 > keys.length * 3) {
+            rehash(size + 1);
+        }
+        if (orderSize == order.length) {
+            compactOrGrow();
+        }
+        order[orderSize] = customer;
+        sequences[orderSize] = nextSequence++;
+        insert(keyOf(customer.getpNo()), orderSize);
+        orderSize++;
+        size++;
+        return true;
+    }
+
+    /**
+     * Tar bort kunden med angivet personnummer.
+     *
+     * @param pNo personnummer
+     * @return den borttagna kunden, eller null ifall den ej finns
+     */
+    public Customer remove(String pNo) {
+        if (pNo == null) {
+            return null;
+        }
+        long key = keyOf(pNo);
+        long stamp = lock.writeLock();
+        try {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+                int slot = slots[i];
+                if (slot == EMPTY) {
+                    return null;
+                }
+                if (slot != DELETED && keys[i] == key && order[slot].getpNo().equals(pNo)) {
+                    Customer customer = order[slot];
+                    order[slot] = null;
+                    slots[i] = DELETED;
+                    size--;
+                    return customer;
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Tömmer indexet.
+     */
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            keys = new long[16];
+            slots = newSlots(16);
+            order = new Customer[16];
+            sequences = new long[16];
+            orderSize = 0;
+            size = 0;
+            used = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returnerar antalet kunder i indexet.
+     *
+     * @return antal kunder
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returnerar samtliga kunder i insättningsordning.
+     *
+     * @return lista med kunder
+     */
+    public List<Customer> values() {
+        long stamp = lock.readLock();
+        try {
+            List<Customer> list = new ArrayList<>(size);
+            for (int i = 0; i < orderSize; i++) {
+                if (order[i] != null) {
+                    list.add(order[i]);
+                }
+            }
+            return list;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Hämtar upp till limit kunder i insättningsordning, med start efter kunden
+     * med angivet löpnummer.
+     *
+     * @param afterSequence löpnumret som listningen fortsätter efter, -1 för
+     *                      att börja från början
+     * @param limit         max antal kunder
+     * @param out           lista som kunderna läggs till i
+     * @return löpnumret för den sista kunden i out ifall fler kunder finns,
+     *         annars -1
+     */
+    public long page(long afterSequence, int limit, List<Customer> out) {
+        long stamp = lock.readLock();
+        try {
+            // Löpnumren är stigande i ordningslistan, även efter packning
+            int i = Arrays.binarySearch(sequences, 0, orderSize, afterSequence + 1);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            long last = -1;
+            int added = 0;
+            for (; i < orderSize; i++) {
+                if (order[i] == null) {
+                    continue;
+                }
+                if (added == limit) {
+                    return last;
+                }
+                out.add(order[i]);
+                last = sequences[i];
+                added++;
+            }
+            return -1;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Lägger in en nyckel i hashtabellen som pekar på angiven position.
+     */
+    private void insert(long key, int position) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (slots[i] >= 0) {
+            i = (i + 1) & mask;
+        }
+        if (slots[i] == EMPTY) {
+            used++;
+        }
+        keys[i] = key;
+        slots[i] = position;
+    }
+
+    /**
+     * Packar ordningslistan så att hålen efter raderade kunder försvinner, eller
+     * utökar den ifall den är full.
+     */
+    private void compactOrGrow() {
+        if (size * 2 <= orderSize) {
+            int j = 0;
+            for (int i = 0; i < orderSize; i++) {
+                if (order[i] != null) {
+                    sequences[j] = sequences[i];
+                    order[j++] = order[i];
+                }
+            }
+            for (int i = j; i < orderSize; i++) {
+                order[i] = null;
+            }
+            orderSize = j;
+            rehash(size);
+        } else {
+            Customer[] grown = new Customer[order.length * 2];
+            System.arraycopy(order, 0, grown, 0, orderSize);
+            order = grown;
+            sequences = Arrays.copyOf(sequences, grown.length);
+        }
+    }
+
+    /**
+     * Bygger om hashtabellen, med plats för minst angivet antal kunder.
+     */
+    private void rehash(int expected) {
+        int capacity = 16;
+        while (capacity * 3 < expected * 4 * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        slots = newSlots(capacity);
+        used = 0;
+        for (int i = 0; i < orderSize; i++) {
+            if (order[i] != null) {
+                insert(keyOf(order[i].getpNo()), i);
+            }
+        }
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] s = new int[capacity];
+        Arrays.fill(s, EMPTY);
+        return s;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
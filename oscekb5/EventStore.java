@@ -0,0 +1,270 @@
+package src.oscekb5;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Klassen representerar händelseloggen för BankLogic i händelsebaserat läge,
+ * där loggen och inte objekten i minnet är bankens egentliga tillstånd.
+ *
+ * Händelserna är journalposter (se Journal) och delas upp i segment,
+ * events-1.journal, events-2.journal osv. i en egen katalog. Ett segment
+ * skrivs bara till i slutet och töms aldrig. Vid en kontrollpunkt påbörjas ett
+ * nytt segment n och banken sparas som checkpoint-n.bin (se BankSnapshot), som
+ * då innehåller samtliga händelser i segmenten före n. Vid uppstart läses den
+ * senaste kontrollpunkten in och bara segmenten från och med dess nummer
+ * spelas upp, så återställningens tid beror på hur många händelser som
+ * loggats sedan kontrollpunkten och inte på hela historiken.
+ *
+ * De två senaste kontrollpunkterna sparas, så att en skadad kontrollpunkt kan
+ * ersättas av den föregående och fler segment. Äldre kontrollpunkter tas bort
+ * men segmenten sparas, så banken kan alltid byggas upp på nytt från den
+ * första händelsen.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class EventStore implements AutoCloseable {
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+    private static final String CHECKPOINT_SUFFIX = ".bin";
+
+    /** Antal kontrollpunkter som sparas */
+    static final int KEPT_CHECKPOINTS = 2;
+    /** Hur ofta bakgrundstråden kontrollerar om en kontrollpunkt behövs */
+    private static final long POLL_MILLIS = 100;
+
+    private final Path directory;
+    private final Journal.SyncPolicy policy;
+    private final int batchSize;
+    private long segment;
+    private Journal journal;
+    // Händelser i segmenten efter senaste kontrollpunkten som loggades innan
+    // journalen öppnades, dvs. som spelades upp vid uppstart
+    private long replayed;
+    private ScheduledExecutorService checkpointer;
+
+    /**
+     * Öppnar (eller skapar) en händelselogg i angiven katalog.
+     *
+     * @param directory katalogen för segment och kontrollpunkter
+     * @param policy    hur ofta segmenten skrivs ner till disk
+     * @param batchSize antal poster mellan varje fsync vid SyncPolicy.BATCHED
+     * @throws IOException ifall katalogen inte kunde skapas eller läsas
+     */
+    EventStore(Path directory, Journal.SyncPolicy policy, int batchSize) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        this.batchSize = batchSize;
+        Files.createDirectories(directory);
+        List<Long> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        List<Long> checkpoints = list(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+        segment = 1;
+        if (!segments.isEmpty()) {
+            segment = Math.max(segment, segments.get(segments.size() - 1));
+        }
+        if (!checkpoints.isEmpty()) {
+            segment = Math.max(segment, checkpoints.get(checkpoints.size() - 1));
+        }
+    }
+
+    /**
+     * Returnerar numren på de befintliga kontrollpunkterna, senaste först.
+     *
+     * @return kontrollpunkternas nummer
+     * @throws IOException ifall katalogen inte kunde läsas
+     */
+    List<Long> checkpoints() throws IOException {
+        List<Long> checkpoints = list(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+        Collections.reverse(checkpoints);
+        return checkpoints;
+    }
+
+    /**
+     * Returnerar sökvägarna till segmenten från och med angivet nummer, i
+     * ordning.
+     *
+     * @param from första segmentets nummer
+     * @return segmentens sökvägar
+     * @throws IOException ifall katalogen inte kunde läsas
+     */
+    List<Path> segmentsFrom(long from) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        for (long number : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (number >= from) {
+                paths.add(segmentPath(number));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Returnerar sökvägen till en kontrollpunkt.
+     *
+     * @param number kontrollpunktens nummer
+     * @return sökväg till kontrollpunkten
+     */
+    Path checkpointPath(long number) {
+        return directory.resolve(CHECKPOINT_PREFIX + number + CHECKPOINT_SUFFIX);
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Öppnar det senaste segmentet för nya händelser. Anropas när segmenten
+     * har spelats upp.
+     *
+     * @param replayed antal händelser som spelades upp
+     * @return journalen som nya händelser loggas i
+     * @throws IOException ifall segmentet inte kunde öppnas
+     */
+    synchronized Journal open(long replayed) throws IOException {
+        this.replayed = replayed;
+        journal = new Journal(segmentPath(segment), policy, batchSize);
+        return journal;
+    }
+
+    /**
+     * Stänger det aktuella segmentet och påbörjar nästa. Anropas med bankens
+     * exklusiva lås, så att ingen händelse loggas under tiden.
+     *
+     * @return numret på det nya segmentet, dvs. kontrollpunkten som ska sparas
+     * @throws IOException ifall segmentet inte kunde skapas
+     */
+    synchronized long roll() throws IOException {
+        journal.close();
+        journal = new Journal(segmentPath(segment + 1), policy, batchSize);
+        segment++;
+        replayed = 0;
+        return segment;
+    }
+
+    /**
+     * Returnerar journalen för det aktuella segmentet.
+     *
+     * @return journalen
+     */
+    synchronized Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Tar bort kontrollpunkter utöver de KEPT_CHECKPOINTS senaste.
+     *
+     * @throws IOException ifall en kontrollpunkt inte kunde tas bort
+     */
+    synchronized void pruneCheckpoints() throws IOException {
+        List<Long> checkpoints = checkpoints();
+        for (int i = KEPT_CHECKPOINTS; i < checkpoints.size(); i++) {
+            Files.deleteIfExists(checkpointPath(checkpoints.get(i)));
+        }
+    }
+
+    /**
+     * Returnerar numret på det segment som händelser loggas i.
+     *
+     * @return segmentets nummer
+     */
+    public synchronized long getSegment() {
+        return segment;
+    }
+
+    /**
+     * Returnerar antalet händelser som loggats sedan den senaste
+     * kontrollpunkten, dvs. hur många som skulle spelas upp vid uppstart.
+     *
+     * @return antal händelser
+     */
+    public synchronized long getEventsSinceCheckpoint() {
+        return journal == null ? replayed : replayed + journal.getRecordCount();
+    }
+
+    /**
+     * Startar en bakgrundstråd som anropar checkpoint när angivet antal
+     * händelser har loggats sedan den senaste kontrollpunkten.
+     *
+     * @param interval   antal händelser mellan kontrollpunkterna
+     * @param checkpoint sparar en kontrollpunkt
+     */
+    synchronized void startCheckpoints(long interval, Runnable checkpoint) {
+        stopCheckpoints();
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bank-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> {
+            if (getEventsSinceCheckpoint() < interval) {
+                return;
+            }
+            try {
+                checkpoint.run();
+            } catch (RuntimeException e) {
+                // Försöker igen vid nästa kontroll, händelserna finns kvar i
+                // segmenten
+                System.err.println("Could not write checkpoint: " + e.getMessage());
+            }
+        }, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stoppar bakgrundstråden och väntar tills en pågående kontrollpunkt är
+     * klar.
+     */
+    void stopCheckpoints() {
+        ScheduledExecutorService checkpointer;
+        synchronized (this) {
+            checkpointer = this.checkpointer;
+            this.checkpointer = null;
+        }
+        if (checkpointer == null) {
+            return;
+        }
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        stopCheckpoints();
+        synchronized (this) {
+            if (journal != null) {
+                journal.close();
+            }
+        }
+    }
+
+    /**
+     * Returnerar numren på filerna med angivet prefix och suffix, i stigande
+     * ordning.
+     */
+    private List<Long> list(String prefix, String suffix) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // Inte en fil som händelseloggen skapat
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+}
@@ -1,15 +1,49 @@
 package src.oscekb5;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.BorderLayout;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Klassen skapar en instans av ett GUI som tillhandahåller ett grafisk
  * användargränssnitt för banksystemet.
  * 
+ * Operationer som kan ta tid, t.ex. att spara, läsa in eller exportera
+ * banken, körs i bakgrunden med SwingWorker så att gränssnittet inte fryser.
+ * Resultatet visas på händelsetråden när operationen är klar. Sparning,
+ * inläsning och export visar en förloppsdialog där operationen kan avbrytas.
+ * 
+ * Mätvärden för bankens operationer slås bara på ifall GUI:t startas med
+ * -Dbank.metrics=true. De visas då via JMX och skrivs ut varje minut.
+ * 
  * @author Oscar Ekberg, oscekb-5
  */
 public class GUI extends JFrame {
+    // Antal rader som visas per sida i listningar
+    private static final int PAGE_SIZE = 25;
+
+    // Hur ofta förloppsdialogen kontrolleras för avbrott, i millisekunder
+    private static final int CANCEL_POLL_MILLIS = 100;
+
+    // Max antal träffar i kundsökningen
+    private static final int SEARCH_LIMIT = 50;
+
+    // Tid efter senaste tangenttryckning innan kundsökningen körs, i
+    // millisekunder
+    private static final int SEARCH_DELAY_MILLIS = 150;
+
+    // Systemegenskap som slår på mätvärden för bankens operationer
+    private static final String METRICS_PROPERTY = "bank.metrics";
+
     // Banklogik som GUI:t ska använda sig av
     private BankLogic bankLogic;
 
@@ -43,6 +77,14 @@ public class GUI extends JFrame {
         bankLogic = new BankLogic();
         accountBook = new AccountBook();
 
+        // Mätvärden för bankens operationer visas via JMX och skrivs ut varje
+        // minut, men bara om de slagits på
+        if (Boolean.getBoolean(METRICS_PROPERTY)) {
+            BankMetrics metrics = bankLogic.enableMetrics();
+            metrics.registerMBeans("GUI");
+            metrics.startDump(1, TimeUnit.MINUTES, System.out);
+        }
+
         // Menyns dimensioner
         final int FRAME_WIDTH = 400;
         final int FRAME_HEIGHT = 400;
@@ -70,6 +112,10 @@ public class GUI extends JFrame {
         customerMenu.add(getCustomer);
         getCustomer.addActionListener(event -> getCustomer());
 
+        JMenuItem searchCustomers = new JMenuItem("Sök kund på namn");
+        customerMenu.add(searchCustomers);
+        searchCustomers.addActionListener(event -> searchCustomers());
+
         JMenuItem getAllCustomers = new JMenuItem("Hämta alla kunder");
         customerMenu.add(getAllCustomers);
         getAllCustomers.addActionListener(event -> getAllCustomers());
@@ -124,6 +170,14 @@ public class GUI extends JFrame {
         bankMenu.add(saveTransactions);
         saveTransactions.addActionListener(e -> saveTransactions());
 
+        JMenuItem exportBank = new JMenuItem("Exportera alla transaktioner");
+        bankMenu.add(exportBank);
+        exportBank.addActionListener(e -> exportBank());
+
+        JMenuItem postInterest = new JMenuItem("Bokför ränta");
+        bankMenu.add(postInterest);
+        postInterest.addActionListener(e -> postInterest());
+
         // Ange dimensioner, title, skapa stäng-knapp, skapa layout
         setBounds(0, 0, FRAME_WIDTH, FRAME_HEIGHT);
         setTitle("Start");
@@ -179,14 +233,62 @@ public class GUI extends JFrame {
      * Kallar på aktuell metod inom BankLogic
      */
     public void getAllCustomers() {
-        List<String> customers = bankLogic.getAllCustomers();
+        runInBackground(() -> bankLogic.getCustomers(null, PAGE_SIZE), customers -> {
+            if (customers.getItems().isEmpty()) {
+                JOptionPane.showMessageDialog(this, "Det finns inga kunder");
+                return;
+            }
+            showPages("Kunder", customers, cursor -> bankLogic.getCustomers(cursor, PAGE_SIZE));
+        }, "Kunde inte hämta kunder");
+    }
 
-        if (customers == null || customers.size() == 0) {
-            JOptionPane.showMessageDialog(this, "Det finns inga kunder");
-            return;
-        }
+    /**
+     * Visar en sökruta där kunder söks fram på namn medan användaren skriver
+     * Sökningen körs i bakgrunden en kort stund efter senaste tangenttryckningen
+     */
+    public void searchCustomers() {
+        JDialog dialog = new JDialog(this, "Sök kund", false);
+        JTextField field = new JTextField();
+        DefaultListModel<String> results = new DefaultListModel<>();
+
+        Timer delay = new Timer(SEARCH_DELAY_MILLIS, event -> {
+            String prefix = field.getText();
+            if (prefix.isBlank()) {
+                results.clear();
+                return;
+            }
+            runInBackground(() -> bankLogic.searchCustomers(prefix, SEARCH_LIMIT), found -> {
+                // Resultat från en äldre sökning som blev klar sent ignoreras
+                if (prefix.equals(field.getText())) {
+                    results.clear();
+                    results.addAll(found);
+                }
+            }, "Kunde inte söka efter kunder");
+        });
+        delay.setRepeats(false);
+
+        field.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                delay.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                delay.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                delay.restart();
+            }
+        });
 
-        JOptionPane.showMessageDialog(this, String.join("\n", customers));
+        dialog.add(field, BorderLayout.NORTH);
+        dialog.add(new JScrollPane(new JList<>(results)), BorderLayout.CENTER);
+        dialog.setSize(350, 300);
+        dialog.setLocationRelativeTo(this);
+        dialog.setVisible(true);
     }
 
     /**
@@ -406,16 +508,134 @@ public class GUI extends JFrame {
                 return;
             }
 
-            List<String> result = bankLogic.getTransactions(pNo, accountId);
+            runInBackground(() -> bankLogic.getTransactions(pNo, accountId, null, PAGE_SIZE), result -> {
+                if (result != null && !result.getItems().isEmpty()) {
+                    showPages("Transaktioner", result,
+                            cursor -> bankLogic.getTransactions(pNo, accountId, cursor, PAGE_SIZE));
+                } else {
+                    JOptionPane.showMessageDialog(this, "Kund och konto hittades ej");
+                }
+            }, "Kunde inte hämta transaktioner");
+        }
+    }
 
-            if (result != null && !result.isEmpty()) {
-                JOptionPane.showMessageDialog(this, String.join("\n", result));
-            } else {
-                JOptionPane.showMessageDialog(this, "Kund och konto hittades ej");
-            }
+    /**
+     * Visar en listning en sida i taget, där användaren kan bläddra till nästa
+     * sida så länge det finns fler. Nästa sida hämtas i bakgrunden
+     * 
+     * @param title  dialogens titel
+     * @param page   sidan som visas
+     * @param loader hämtar sidan som följer efter angiven markör
+     */
+    private void showPages(String title, Page<String> page, Function<String, Page<String>> loader) {
+        if (page == null) {
+            return;
+        }
+        if (!page.hasNext()) {
+            JOptionPane.showMessageDialog(this, String.join("\n", page.getItems()), title,
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        Object[] options = { "Nästa sida", "Stäng" };
+        int choice = JOptionPane.showOptionDialog(this, String.join("\n", page.getItems()), title,
+                JOptionPane.DEFAULT_OPTION, JOptionPane.INFORMATION_MESSAGE, null, options, options[0]);
+        if (choice == 0) {
+            String cursor = page.getNextCursor();
+            runInBackground(() -> loader.apply(cursor), next -> showPages(title, next, loader),
+                    "Kunde inte hämta nästa sida");
         }
     }
 
+    /**
+     * Kör en operation i bakgrunden och visar resultatet på händelsetråden
+     * 
+     * @param work         operationen som körs i bakgrunden
+     * @param onDone       tar emot resultatet på händelsetråden
+     * @param errorMessage meddelande som visas ifall operationen misslyckas
+     */
+    private <T> void runInBackground(Supplier<T> work, Consumer<T> onDone, String errorMessage) {
+        new SwingWorker<T, Void>() {
+            @Override
+            protected T doInBackground() {
+                return work.get();
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    onDone.accept(get());
+                } catch (ExecutionException e) {
+                    JOptionPane.showMessageDialog(GUI.this, errorMessage);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Kör en operation i bakgrunden med en förloppsdialog där användaren kan
+     * avbryta operationen. Dialogen kontrolleras regelbundet på händelsetråden
+     * och ett avbrott förmedlas till operationen via Progress. Resultatet visas
+     * på händelsetråden först när operationen har avslutats
+     * 
+     * @param message      text i förloppsdialogen
+     * @param work         operationen, som rapporterar förloppet och avbryts
+     *                     via angiven Progress
+     * @param onDone       tar emot resultatet på händelsetråden
+     * @param errorMessage meddelande som visas ifall operationen misslyckas
+     */
+    private <T> void runWithProgress(String message, Function<Progress, T> work, Consumer<T> onDone,
+            String errorMessage) {
+        ProgressMonitor monitor = new ProgressMonitor(this, message, null, 0, 100);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Timer poll = new Timer(CANCEL_POLL_MILLIS, event -> {
+            if (monitor.isCanceled()) {
+                cancelled.set(true);
+            }
+        });
+        SwingWorker<T, Void> worker = new SwingWorker<T, Void>() {
+            @Override
+            protected T doInBackground() {
+                return work.apply(new Progress() {
+                    @Override
+                    public void update(int done, int total) {
+                        setProgress(total <= 0 ? 100 : (int) (100L * Math.min(done, total) / total));
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return cancelled.get();
+                    }
+                });
+            }
+
+            @Override
+            protected void done() {
+                poll.stop();
+                monitor.close();
+                try {
+                    onDone.accept(get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof CancellationException) {
+                        JOptionPane.showMessageDialog(GUI.this, "Avbrutet");
+                    } else {
+                        JOptionPane.showMessageDialog(GUI.this, errorMessage);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        worker.addPropertyChangeListener(event -> {
+            if ("progress".equals(event.getPropertyName())) {
+                monitor.setProgress((Integer) event.getNewValue());
+            }
+        });
+        poll.start();
+        worker.execute();
+    }
+
     /* Metoder för inlämningsuppgift 4 */
     public void saveBank() {
         List<Customer> allCustomers = bankLogic.getAllCustomerObjs();
@@ -432,13 +652,10 @@ public class GUI extends JFrame {
             return;
         }
 
-        try {
-            bankLogic.saveBankToFile(fileName);
-            JOptionPane.showMessageDialog(this, "Bank sparad");
-
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this, "Kunde inte spara bank från fil");
-        }
+        runWithProgress("Sparar bank", progress -> {
+            bankLogic.saveBankToFile(fileName, progress);
+            return null;
+        }, result -> JOptionPane.showMessageDialog(this, "Bank sparad"), "Kunde inte spara bank från fil");
     }
 
     /**
@@ -453,12 +670,11 @@ public class GUI extends JFrame {
             return;
         }
 
-        try {
-            bankLogic.loadBankToFile(path);
-            JOptionPane.showMessageDialog(this, "Bank laddad från fil");
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this, "Kunde inte ladda in bank från fil");
-        }
+        runWithProgress("Laddar in bank", progress -> {
+            bankLogic.loadBankToFile(path, progress);
+            return null;
+        }, result -> JOptionPane.showMessageDialog(this, "Bank laddad från fil"),
+                "Kunde inte ladda in bank från fil");
     }
 
     /**
@@ -475,22 +691,44 @@ public class GUI extends JFrame {
             return;
         }
 
-        accountBook.addTransactions(customer);
-
         String fileName = JOptionPane.showInputDialog(this, "Ange filnamn");
 
         if (fileName == null || fileName.isEmpty()) {
             JOptionPane.showMessageDialog(this, "Ogiltigt filnamn");
             return;
         } else {
-            if (!fileName.endsWith(".txt")) {
-                fileName = fileName + ".txt";
-            }
-            try {
-                accountBook.save(fileName);
-            } catch (Exception e) {
-                JOptionPane.showMessageDialog(this, "Kunde inte spara transaktioner till fil");
-            }
+            String target = fileName.endsWith(".txt") ? fileName : fileName + ".txt";
+            runInBackground(() -> {
+                accountBook.exportCustomer(customer, target);
+                return null;
+            }, result -> {
+            }, "Kunde inte spara transaktioner till fil");
+        }
+    }
+
+    /**
+     * Beräknar och bokför ränta på bankens samtliga konton
+     * Visar en rapport över körningen
+     */
+    public void postInterest() {
+        runInBackground(() -> new InterestEngine(bankLogic).run(),
+                report -> JOptionPane.showMessageDialog(this, report.toString()), "Kunde inte bokföra ränta");
+    }
+
+    /**
+     * Bygger ett input-fält för filnamn
+     * Exporterar transaktionerna för bankens samtliga kunder till fil
+     */
+    public void exportBank() {
+        String fileName = JOptionPane.showInputDialog(this, "Ange filnamn");
+
+        if (fileName == null || fileName.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Ogiltigt filnamn");
+            return;
         }
+        String target = fileName.endsWith(".txt") ? fileName : fileName + ".txt";
+        runWithProgress("Exporterar transaktioner", progress -> accountBook.exportBank(bankLogic, target, progress),
+                count -> JOptionPane.showMessageDialog(this, "Transaktioner för " + count + " kunder sparade till fil"),
+                "Kunde inte spara transaktioner till fil");
     }
 }
@@ -0,0 +1,254 @@
+package src.oscekb5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Klassen representerar ett arkiv för äldre transaktioner, lagrade på disk i
+ * segmentfiler som bara läggs till i slutet.
+ *
+ * Kontonas historik (TieredHistory) håller de senaste transaktionerna i minnet
+ * och flyttar äldre transaktioner hit i block (chunks) med ett fast antal
+ * transaktioner. Kontona fördelas på ett antal segmentfiler (shards) utifrån
+ * kontonumret, så att skrivningar för olika konton sällan konkurrerar om
+ * samma fil. Ett block skrivs aldrig om, så en ögonblicksbild av banken kan
+ * referera till redan arkiverade block i stället för att skriva dem igen.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class HistoryArchive implements AutoCloseable {
+    static final int RECORD_SIZE = 24;
+
+    private static final int SHARDS = 16;
+    private static final int MAGIC = 0x424B4831; // "BKH1"
+    private static final int HEADER_SIZE = 8;
+
+    private final Path directory;
+    private final int memoryCapacity;
+    private final int chunkSize;
+    private final FileChannel[] channels = new FileChannel[SHARDS];
+    private final long[] sizes = new long[SHARDS];
+    private final ThreadLocal<ChunkCache> caches;
+
+    /**
+     * Öppnar (eller skapar) ett arkiv i angiven katalog.
+     *
+     * @param directory      katalog för segmentfilerna
+     * @param memoryCapacity max antal transaktioner per konto som hålls i
+     *                       minnet, minst 2
+     * @throws IOException ifall katalogen eller segmentfilerna inte kunde öppnas,
+     *                     eller ifall en befintlig segmentfil inte är ett arkiv
+     *                     med samma blockstorlek
+     */
+    public HistoryArchive(Path directory, int memoryCapacity) throws IOException {
+        if (memoryCapacity < 2) {
+            throw new IllegalArgumentException("Invalid memory capacity: " + memoryCapacity);
+        }
+        this.directory = directory.toAbsolutePath().normalize();
+        this.memoryCapacity = memoryCapacity;
+        this.chunkSize = memoryCapacity / 2;
+        this.caches = ThreadLocal.withInitial(() -> new ChunkCache(chunkSize));
+        Files.createDirectories(this.directory);
+        try {
+            for (int i = 0; i < SHARDS; i++) {
+                Path segment = this.directory.resolve(String.format("history-%02d.seg", i));
+                channels[i] = FileChannel.open(segment,
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                sizes[i] = channels[i].size();
+                if (sizes[i] < HEADER_SIZE) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(chunkSize).flip();
+                    write(channels[i], header, 0);
+                    sizes[i] = HEADER_SIZE;
+                } else {
+                    checkHeader(channels[i], segment);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (FileChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returnerar arkivets katalog.
+     *
+     * @return absolut sökväg till katalogen
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returnerar antalet transaktioner i varje arkiverat block.
+     *
+     * @return antal transaktioner per block
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Skapar en tom historik för angivet konto.
+     *
+     * @param accountNumber kontonummer
+     * @return historiken
+     */
+    public TieredHistory create(int accountNumber) {
+        return new TieredHistory(this, accountNumber, memoryCapacity, new long[0]);
+    }
+
+    /**
+     * Återskapar en historik vars äldre transaktioner redan finns i arkivet.
+     * Transaktionerna som låg i minnet läggs sedan till med append.
+     *
+     * @param accountNumber kontonummer
+     * @param chunks        positioner för kontots arkiverade block, äldst först
+     * @return historiken
+     */
+    TieredHistory restore(int accountNumber, long[] chunks) {
+        return new TieredHistory(this, accountNumber, memoryCapacity, chunks);
+    }
+
+    /**
+     * Returnerar om angiven historik hör till detta arkiv.
+     *
+     * @param history historiken
+     * @return true ifall historiken arkiveras här
+     */
+    boolean owns(TransactionHistory history) {
+        return history instanceof TieredHistory && ((TieredHistory) history).getArchive() == this;
+    }
+
+    /**
+     * Skriver ett block med transaktioner sist i kontots segmentfil.
+     *
+     * @param accountNumber kontonummer
+     * @param chunk         blockets transaktioner, chunkSize poster
+     * @return blockets position i segmentfilen
+     */
+    long append(int accountNumber, ByteBuffer chunk) {
+        int shard = shardOf(accountNumber);
+        long position;
+        synchronized (this) {
+            position = sizes[shard];
+            sizes[shard] += chunk.remaining();
+        }
+        try {
+            write(channels[shard], chunk, position);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write history archive");
+        }
+        return position;
+    }
+
+    /**
+     * Läser ett värde ur en arkiverad transaktion.
+     *
+     * @param accountNumber kontonummer
+     * @param chunk         blockets position i segmentfilen
+     * @param index         transaktionens position i blocket
+     * @param field         fältets position i transaktionen (0, 8 eller 16)
+     * @return värdet
+     */
+    long read(int accountNumber, long chunk, int index, int field) {
+        int shard = shardOf(accountNumber);
+        ChunkCache cache = caches.get();
+        if (cache.shard != shard || cache.position != chunk) {
+            cache.buffer.clear();
+            try {
+                while (cache.buffer.hasRemaining()) {
+                    if (channels[shard].read(cache.buffer, chunk + cache.buffer.position()) < 0) {
+                        throw new IOException("Truncated history segment");
+                    }
+                }
+            } catch (IOException e) {
+                cache.shard = -1;
+                throw new RuntimeException("Could not read history archive");
+            }
+            cache.shard = shard;
+            cache.position = chunk;
+        }
+        return cache.buffer.getLong(index * RECORD_SIZE + field);
+    }
+
+    /**
+     * Tvingar ner samtliga arkiverade block till disk.
+     */
+    public void sync() {
+        try {
+            for (FileChannel channel : channels) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not sync history archive");
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            for (FileChannel channel : channels) {
+                if (channel.isOpen()) {
+                    channel.force(false);
+                    channel.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not close history archive");
+        }
+    }
+
+    private static int shardOf(int accountNumber) {
+        return Math.floorMod(accountNumber, SHARDS);
+    }
+
+    /**
+     * Kontrollerar att en befintlig segmentfil skrivits av ett arkiv med samma
+     * blockstorlek, eftersom blockens positioner annars inte stämmer.
+     */
+    private void checkHeader(FileChannel channel, Path segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Truncated history segment: " + segment);
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a history segment: " + segment);
+        }
+        int stored = header.getInt();
+        if (stored != chunkSize) {
+            throw new IOException("History segment " + segment + " has chunk size " + stored
+                    + ", expected " + chunkSize);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * Senast lästa block för en tråd, så att en sida av historiken bara kräver
+     * en läsning från disk.
+     */
+    private static final class ChunkCache {
+        final ByteBuffer buffer;
+        int shard = -1;
+        long position;
+
+        ChunkCache(int chunkSize) {
+            buffer = ByteBuffer.allocate(chunkSize * RECORD_SIZE);
+        }
+    }
+}
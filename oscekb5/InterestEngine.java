@@ -0,0 +1,206 @@
+package src.oscekb5;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Klassen beräknar och bokför ränta på samtliga konton i banken.
+ *
+ * Kunderna delas upp i intervall som behandlas parallellt med fork-join.
+ * Räntan räknas med kontotypens räntesats på saldot med samma kontolås som
+ * när den bokförs, vilket gör körningen säker att utföra medan kunderna gör
+ * insättningar och uttag. Stängda konton hoppas över. Samtliga transaktioner
+ * i en körning får samma tidpunkt och loggas i bankens journal.
+ *
+ * Räntesatserna är årsräntor. En körning med run() bokför hela årsräntan,
+ * medan periodiska körningar med start bokför räntan för periodens andel av
+ * ett år (se Account.prorate), så att ett års körningar tillsammans ger
+ * årsräntan. Räntan avrundas till hela ören per körning, så med korta
+ * perioder och små saldon kan räntan avrundas bort helt. Perioder kortare än
+ * en dag bör därför undvikas.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class InterestEngine implements AutoCloseable {
+    // Antal kunder som en deluppgift behandlar utan att delas vidare
+    private static final int THRESHOLD = 256;
+    private static final double YEAR_MILLIS = 365 * 24 * 3600_000.0;
+
+    private final BankLogic bank;
+    private final ForkJoinPool pool;
+    private ScheduledExecutorService scheduler;
+    private volatile InterestReport lastReport;
+
+    /**
+     * Konstruktor som använder den gemensamma fork-join-poolen.
+     *
+     * @param bank banken som räntan beräknas för
+     */
+    public InterestEngine(BankLogic bank) {
+        this(bank, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Konstruktor för klassen InterestEngine.
+     *
+     * @param bank banken som räntan beräknas för
+     * @param pool poolen som körningen utförs i
+     */
+    public InterestEngine(BankLogic bank, ForkJoinPool pool) {
+        this.bank = bank;
+        this.pool = pool;
+    }
+
+    /**
+     * Beräknar och bokför hela årsräntan på bankens samtliga konton.
+     *
+     * @return rapport över körningen
+     */
+    public InterestReport run() {
+        return run(1);
+    }
+
+    /**
+     * Beräknar och bokför räntan för en del av ett år på bankens samtliga
+     * konton.
+     *
+     * @param fraction andel av ett år, 1 för hela årsräntan
+     * @return rapport över körningen
+     */
+    public InterestReport run(double fraction) {
+        if (!(fraction > 0)) {
+            throw new IllegalArgumentException("Interest fraction must be positive");
+        }
+        long start = System.nanoTime();
+        List<Customer> customers = bank.getAllCustomerObjs();
+        Tally tally = pool.invoke(new Task(customers, 0, customers.size(), System.currentTimeMillis(), fraction));
+        InterestReport report = new InterestReport(tally.accounts, tally.posted, tally.credited, tally.charged,
+                System.nanoTime() - start);
+        lastReport = report;
+        return report;
+    }
+
+    /**
+     * Startar periodiska räntekörningar i en bakgrundstråd. Varje körning
+     * bokför räntan för periodens andel av ett år (365 dagar). En körning som
+     * misslyckas loggas, och nästa körning görs ändå.
+     *
+     * @param period tid mellan körningarna
+     * @param unit   tidsenhet för period
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Interest engine already started");
+        }
+        if (period <= 0) {
+            throw new IllegalArgumentException("Interest period must be positive");
+        }
+        double fraction = unit.toMillis(period) / YEAR_MILLIS;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "interest-engine");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                run(fraction);
+            } catch (RuntimeException e) {
+                // Ett undantag skulle annars avbryta alla senare körningar
+                System.err.println("Interest run failed: " + e.getMessage());
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stoppar periodiska räntekörningar. En pågående körning slutförs.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Returnerar rapporten från den senaste körningen.
+     *
+     * @return rapport, eller null ifall ingen körning har gjorts
+     */
+    public InterestReport getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Delräkning för ett intervall av kunder.
+     */
+    private static class Tally {
+        int accounts;
+        int posted;
+        long credited;
+        long charged;
+
+        Tally add(Tally other) {
+            accounts += other.accounts;
+            posted += other.posted;
+            credited += other.credited;
+            charged += other.charged;
+            return this;
+        }
+    }
+
+    /**
+     * Deluppgift som bokför ränta för kunderna i intervallet [from, to), och
+     * delar intervallet i två så länge det är större än THRESHOLD. Uppgiften
+     * serialiseras aldrig, trots att RecursiveTask är Serializable.
+     */
+    @SuppressWarnings("serial")
+    private class Task extends RecursiveTask<Tally> {
+        private final List<Customer> customers;
+        private final int from;
+        private final int to;
+        private final long time;
+        private final double fraction;
+
+        Task(List<Customer> customers, int from, int to, long time, double fraction) {
+            this.customers = customers;
+            this.from = from;
+            this.to = to;
+            this.time = time;
+            this.fraction = fraction;
+        }
+
+        @Override
+        protected Tally compute() {
+            if (to - from > THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                Task left = new Task(customers, from, middle, time, fraction);
+                left.fork();
+                Tally right = new Task(customers, middle, to, time, fraction).compute();
+                return right.add(left.join());
+            }
+            Tally tally = new Tally();
+            for (int i = from; i < to; i++) {
+                for (Account account : customers.get(i).getAccounts()) {
+                    long interest = bank.postInterest(account, time, fraction);
+                    if (interest == Account.FAILED) {
+                        continue;
+                    }
+                    tally.accounts++;
+                    if (interest > 0) {
+                        tally.posted++;
+                        tally.credited += interest;
+                    } else if (interest < 0) {
+                        tally.posted++;
+                        tally.charged -= interest;
+                    }
+                }
+            }
+            return tally;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package src.oscekb5;
+
+import java.util.Locale;
+
+/**
+ * Klassen representerar resultatet av en räntekörning över hela banken.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class InterestReport {
+    private final int accounts;
+    private final int posted;
+    private final long credited;
+    private final long charged;
+    private final long elapsedNanos;
+
+    /**
+     * Konstruktor för klassen InterestReport.
+     *
+     * @param accounts     antal genomgångna konton
+     * @param posted       antal konton där ränta bokfördes
+     * @param credited     summa ränta i ören som satts in på konton
+     * @param charged      summa ränta i ören som dragits från konton (positivt tal)
+     * @param elapsedNanos körningens längd i nanosekunder
+     */
+    InterestReport(int accounts, int posted, long credited, long charged, long elapsedNanos) {
+        this.accounts = accounts;
+        this.posted = posted;
+        this.credited = credited;
+        this.charged = charged;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returnerar antalet konton som gicks igenom.
+     *
+     * @return antal konton
+     */
+    public int getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * Returnerar antalet konton där ränta bokfördes.
+     *
+     * @return antal konton
+     */
+    public int getPosted() {
+        return posted;
+    }
+
+    /**
+     * Returnerar summan av all ränta som satts in på konton.
+     *
+     * @return belopp i ören
+     */
+    public long getCredited() {
+        return credited;
+    }
+
+    /**
+     * Returnerar summan av all ränta som dragits från konton.
+     *
+     * @return belopp i ören
+     */
+    public long getCharged() {
+        return charged;
+    }
+
+    /**
+     * Returnerar körningens längd.
+     *
+     * @return längd i nanosekunder
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returnerar antal genomgångna konton per sekund.
+     *
+     * @return konton per sekund
+     */
+    public double getAccountsPerSecond() {
+        return elapsedNanos == 0 ? 0 : accounts * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.of("sv", "SE"),
+                "Konton: %d, med ränta: %d, insatt: %.2f kr, dragen: %.2f kr, tid: %.1f ms (%.0f konton/s)",
+                accounts, posted, credited / 100.0, charged / 100.0, elapsedNanos / 1e6, getAccountsPerSecond());
+    }
+}
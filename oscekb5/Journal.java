@@ -0,0 +1,842 @@
+package src.oscekb5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Klassen representerar en journal (write-ahead log) där varje ändring i
+ * banken läggs till som en kompakt binär post i slutet av en fil.
+ *
+ * Varje post består av längd, posttyp, data och en CRC32-kontrollsumma. Vid
+ * återställning läses posterna upp i ordning och spelas upp mot banken.
+ * Insättningar och uttag loggas som det belopp som faktiskt bokfördes
+ * (inklusive avgifter) och dess tidpunkt. Posten skrivs efter att saldot
+ * uppdaterats och kontots lås släppts, så att en fsync inte görs med kontot
+ * låst. Posterna för samtidiga transaktioner på ett konto kan därför hamna i
+ * en annan ordning än uppdateringarna. Summan och därmed saldot blir
+ * detsamma vid uppspelning, och eftersom saldona i historiken räknas om i
+ * journalens ordning är den återställda historiken konsekvent, men samtidiga
+ * transaktioner kan stå i en annan ordning än före avbrottet. En
+ * ofullständig post i slutet av filen (t.ex. efter ett avbrott mitt i en
+ * skrivning) ignoreras och klipps bort.
+ *
+ * Strängar lagras med en längd på fyra byte. Journaler i det äldre formatet
+ * (BKJ2) hade en längd på två byte, vilket förstörde poster med strängar på
+ * 64 KiB eller mer. De kan fortfarande spelas upp och skrivs om till det
+ * nya formatet när de öppnas för nya poster.
+ *
+ * Med SyncPolicy.GROUP skriver anroparen inte själv till filen. Posten läggs i
+ * en begränsad kö och en skrivtråd skriver alla poster som väntar med en
+ * skrivning och en fsync per grupp. Skrivtråden samlar poster så länge nya
+ * har kommit sedan den senast tömde kön, högst batchSize poster och högst
+ * maxLatency, och väntar aldrig på poster som inte redan har lagts i kön.
+ * Poster som kommer under en fsync hamnar i nästa grupp. Varje post får en CompletableFuture som blir klar när
+ * posten finns på disk, så anroparen kan välja att vänta på den eller
+ * fortsätta direkt. Är kön full väntar anroparen tills skrivtråden hunnit
+ * ikapp.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class Journal implements AutoCloseable {
+    /**
+     * Anger hur ofta journalen tvingas ner till disk (fsync).
+     */
+    public enum SyncPolicy {
+        /** Varje post skrivs ner till disk innan anropet returnerar */
+        ALWAYS,
+        /** Journalen skrivs ner till disk efter ett antal poster */
+        BATCHED,
+        /** Operativsystemet bestämmer, journalen skrivs ner först vid stängning */
+        NEVER,
+        /** En skrivtråd skriver ner posterna i grupper, en fsync per grupp */
+        GROUP
+    }
+
+    static final byte CREATE_CUSTOMER = 1;
+    static final byte CHANGE_NAME = 2;
+    static final byte DELETE_CUSTOMER = 3;
+    static final byte CREATE_SAVINGS = 4;
+    static final byte CREATE_CREDIT = 5;
+    static final byte TRANSACTION = 6;
+    static final byte CLOSE_ACCOUNT = 8;
+    static final byte TRANSFER = 9;
+
+    private static final int MAGIC = 0x424B4A33; // "BKJ3"
+    private static final int LEGACY_MAGIC = 0x424B4A32; // "BKJ2", strängar med 16 bitars längd
+    private static final int HEADER_SIZE = 4;
+    private static final int QUEUE_CAPACITY = 8192;
+    // Storlek på bufferten som journalen läses genom vid uppspelning
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final FileChannel channel;
+    private final SyncPolicy policy;
+    private final int batchSize;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(512);
+    private int unsynced = 0;
+    private volatile long records = 0;
+
+    // Används bara med SyncPolicy.GROUP
+    private final long maxLatencyNanos;
+    private final BlockingQueue<Pending> queue;
+    private final Thread writer;
+    private volatile boolean closing;
+    private volatile IOException failure;
+    private volatile long groups;
+    // Future för den senaste post som varje tråd har loggat, se lastRecord()
+    private final ThreadLocal<CompletableFuture<Void>> lastRecord = ThreadLocal.withInitial(() -> DONE);
+
+    /**
+     * Öppnar (eller skapar) en journal. Nya poster läggs till efter befintliga.
+     *
+     * @param path      sökväg till journalfilen
+     * @param policy    hur ofta journalen skrivs ner till disk
+     * @param batchSize antal poster mellan varje fsync vid SyncPolicy.BATCHED
+     * @throws IOException ifall filen inte kunde öppnas
+     */
+    public Journal(Path path, SyncPolicy policy, int batchSize) throws IOException {
+        this(path, policy, batchSize, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Öppnar (eller skapar) en journal. Nya poster läggs till efter befintliga.
+     *
+     * @param path       sökväg till journalfilen
+     * @param policy     hur ofta journalen skrivs ner till disk
+     * @param batchSize  antal poster mellan varje fsync vid SyncPolicy.BATCHED,
+     *                   eller max antal poster per grupp vid SyncPolicy.GROUP
+     * @param maxLatency hur länge skrivtråden högst fortsätter att samla
+     *                   poster som kommer medan en grupp samlas vid
+     *                   SyncPolicy.GROUP, 0 för att bara skriva de poster som
+     *                   redan väntar
+     * @param unit       tidsenhet för maxLatency
+     * @throws IOException ifall filen inte kunde öppnas
+     */
+    public Journal(Path path, SyncPolicy policy, int batchSize, long maxLatency, TimeUnit unit)
+            throws IOException {
+        this.policy = policy;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxLatencyNanos = unit.toNanos(Math.max(0, maxLatency));
+        upgrade(path);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_SIZE) {
+            channel.truncate(0);
+            writeHeader();
+        } else {
+            channel.position(validLength(channel));
+            channel.truncate(channel.position());
+        }
+        if (policy == SyncPolicy.GROUP) {
+            queue = new ArrayBlockingQueue<>(Math.max(QUEUE_CAPACITY, this.batchSize));
+            writer = new Thread(this::writeGroups, "journal-writer");
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            queue = null;
+            writer = null;
+        }
+    }
+
+    /**
+     * Loggar att en kund har skapats.
+     *
+     * @param name    kundens förnamn
+     * @param surname kundens efternamn
+     * @param pNo     kundens personnummer
+     * @return future som blir klar när posten finns på disk, se persisted()
+     */
+    public synchronized CompletableFuture<Void> createCustomer(String name, String surname, String pNo) {
+        begin(CREATE_CUSTOMER);
+        putString(pNo);
+        putString(name);
+        putString(surname);
+        return commit();
+    }
+
+    /**
+     * Loggar att en kund har bytt namn.
+     *
+     * @param name    nytt förnamn
+     * @param surname nytt efternamn
+     * @param pNo     kundens personnummer
+     * @return future som blir klar när posten finns på disk, se persisted()
+     */
+    public synchronized CompletableFuture<Void> changeCustomerName(String name, String surname, String pNo) {
+        begin(CHANGE_NAME);
+        putString(pNo);
+        putString(name);
+        putString(surname);
+        return commit();
+    }
+
+    /**
+     * Loggar att en kund har raderats.
+     *
+     * @param pNo kundens personnummer
+     * @return future som blir klar när posten finns på disk, se persisted()
+     */
+    public synchronized CompletableFuture<Void> deleteCustomer(String pNo) {
+        begin(DELETE_CUSTOMER);
+        putString(pNo);
+        return commit();
+    }
+
+    /**
+     * Loggar att ett konto har skapats.
+     *
+     * @param pNo       kundens personnummer
+     * @param accountId det nya kontots kontonummer
+     * @param savings   true för sparkonto, false för kreditkonto
+     * @return future som blir klar när posten finns på disk, se persisted()
+     */
+    public synchronized CompletableFuture<Void> createAccount(String pNo, int accountId, boolean savings) {
+        begin(savings ? CREATE_SAVINGS : CREATE_CREDIT);
+        putString(pNo);
+        ensure(4);
+        buffer.putInt(accountId);
+        return commit();
+    }
+
+    /**
+     * Loggar en bokförd insättning eller ett bokfört uttag.
+     *
+     * @param accountId kontonummer
+     * @param amount    bokfört belopp i ören, negativt vid uttag
+     * @param time      transaktionens tidpunkt i millisekunder sedan epoch
+     * @return future som blir klar när posten finns på disk, se persisted()
+     */
+    public synchronized CompletableFuture<Void> transaction(int accountId, long amount, long time) {
+        begin(TRANSACTION);
+        ensure(20);
+        buffer.putInt(accountId);
+        buffer.putLong(amount);
+        buffer.putLong(time);
+        return commit();
+    }
+
+    /**
+     * Loggar en bokförd överföring som en enda post, så att en återställning
+     * antingen spelar upp både uttaget och insättningen eller ingen av dem.
+     *
+     * @param fromId kontonummer som pengarna togs från
+     * @param debit  dragna beloppet i ören, inklusive eventuell avgift
+     * @param toId   kontonummer som pengarna sattes in på
+     * @param credit insatta beloppet i ören
+     * @param time   överföringens tidpunkt i millisekunder sedan epoch
+     * @return future som blir klar när posten finns på disk, se persisted()
+     */
+    public synchronized CompletableFuture<Void> transfer(int fromId, long debit, int toId, long credit, long time) {
+        begin(TRANSFER);
+        ensure(32);
+        buffer.putInt(fromId);
+        buffer.putLong(debit);
+        buffer.putInt(toId);
+        buffer.putLong(credit);
+        buffer.putLong(time);
+        return commit();
+    }
+
+    /**
+     * Loggar att ett konto har stängts.
+     *
+     * @param accountId kontonummer
+     * @return future som blir klar när posten finns på disk, se persisted()
+     */
+    public synchronized CompletableFuture<Void> closeAccount(int accountId) {
+        begin(CLOSE_ACCOUNT);
+        ensure(4);
+        buffer.putInt(accountId);
+        return commit();
+    }
+
+    /**
+     * Tömmer journalen. Anropas när en fullständig ögonblicksbild av banken har
+     * sparats, eftersom alla poster då redan finns med i ögonblicksbilden.
+     */
+    public synchronized void reset() {
+        awaitWriter();
+        try {
+            channel.truncate(0);
+            channel.position(0);
+            writeHeader();
+            channel.force(false);
+            unsynced = 0;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not reset journal");
+        }
+    }
+
+    /**
+     * Tvingar ner samtliga skrivna poster till disk.
+     */
+    public synchronized void sync() {
+        if (policy == SyncPolicy.GROUP) {
+            awaitWriter();
+            return;
+        }
+        try {
+            channel.force(false);
+            unsynced = 0;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not sync journal");
+        }
+    }
+
+    /**
+     * Returnerar en future som blir klar när samtliga poster som hittills
+     * loggats finns på disk. Vid SyncPolicy.GROUP väntar anropet inte på
+     * disken, i övriga fall görs en fsync direkt om det behövs.
+     *
+     * @return future som blir klar när posterna finns på disk
+     */
+    public synchronized CompletableFuture<Void> persisted() {
+        if (policy == SyncPolicy.GROUP) {
+            return enqueue(null);
+        }
+        if (unsynced > 0) {
+            sync();
+        }
+        return DONE;
+    }
+
+    /**
+     * Returnerar en future som blir klar när den senaste post som den
+     * anropande tråden har loggat finns på disk. Vid SyncPolicy.GROUP är det
+     * postens egen future, så att anroparen inte lägger ytterligare en post i
+     * kön. I övriga fall fungerar metoden som persisted().
+     *
+     * @return future som blir klar när trådens senaste post finns på disk
+     */
+    public CompletableFuture<Void> lastRecord() {
+        if (policy == SyncPolicy.GROUP) {
+            return lastRecord.get();
+        }
+        return persisted();
+    }
+
+    /**
+     * Returnerar antalet poster som loggats sedan journalen öppnades.
+     *
+     * @return antal poster
+     */
+    public long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Returnerar antalet grupper som skrivtråden har skrivit ner till disk.
+     *
+     * @return antal grupper (fsync), 0 om SyncPolicy.GROUP inte används
+     */
+    public long getGroupCount() {
+        return groups;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (writer != null && !closing) {
+            closing = true;
+            try {
+                queue.put(Pending.STOP);
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (channel.isOpen()) {
+                channel.force(false);
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not close journal");
+        }
+    }
+
+    /**
+     * Spelar upp samtliga giltiga poster i en journalfil mot angiven bank.
+     *
+     * @param path sökväg till journalfilen
+     * @param bank banken som posterna ska spelas upp mot
+     * @return antal uppspelade poster
+     * @throws IOException ifall filen inte kunde läsas
+     */
+    public static int replay(Path path, BankLogic bank) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        int count = 0;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (in.size() < HEADER_SIZE) {
+                return 0;
+            }
+            RecordReader reader = new RecordReader(in);
+            boolean legacy = reader.magic == LEGACY_MAGIC;
+            ByteBuffer record;
+            while ((record = reader.next()) != null) {
+                apply(record, bank, legacy);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Utför en enskild post mot banken.
+     */
+    private static void apply(ByteBuffer record, BankLogic bank, boolean legacy) {
+        byte type = record.get();
+        switch (type) {
+            case CREATE_CUSTOMER: {
+                String pNo = getString(record, legacy);
+                bank.createCustomer(getString(record, legacy), getString(record, legacy), pNo);
+                break;
+            }
+            case CHANGE_NAME: {
+                String pNo = getString(record, legacy);
+                bank.changeCustomerName(getString(record, legacy), getString(record, legacy), pNo);
+                break;
+            }
+            case DELETE_CUSTOMER:
+                bank.deleteCustomer(getString(record, legacy));
+                break;
+            case CREATE_SAVINGS:
+            case CREATE_CREDIT: {
+                String pNo = getString(record, legacy);
+                bank.openAccount(pNo, record.getInt(), type == CREATE_SAVINGS);
+                break;
+            }
+            case TRANSACTION: {
+                bank.replayTransaction(record.getInt(), record.getLong(), record.getLong());
+                break;
+            }
+            case TRANSFER: {
+                int fromId = record.getInt();
+                long debit = record.getLong();
+                int toId = record.getInt();
+                long credit = record.getLong();
+                long time = record.getLong();
+                bank.replayTransaction(fromId, -debit, time);
+                bank.replayTransaction(toId, credit, time);
+                break;
+            }
+            case CLOSE_ACCOUNT: {
+                int accountId = record.getInt();
+                Customer owner = bank.getAccountOwner(accountId);
+                if (owner != null) {
+                    bank.closeAccount(owner.getpNo(), accountId);
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown journal record type: " + type);
+        }
+    }
+
+    /**
+     * Returnerar längden på den del av filen som innehåller hela, giltiga poster.
+     */
+    private static long validLength(FileChannel in) throws IOException {
+        if (in.size() < HEADER_SIZE) {
+            return 0;
+        }
+        RecordReader reader = new RecordReader(in);
+        while (reader.next() != null) {
+            // Läser fram till den sista giltiga posten
+        }
+        return reader.valid;
+    }
+
+    /**
+     * Skriver om en journal i det äldre formatet till det nya, så att nya
+     * poster kan läggas till i slutet. Filen skrivs först till en temporär fil
+     * som sedan flyttas på plats.
+     */
+    private static void upgrade(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (in.size() < HEADER_SIZE) {
+                return;
+            }
+            RecordReader reader = new RecordReader(in);
+            if (reader.magic != LEGACY_MAGIC) {
+                return;
+            }
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                convert(reader, out);
+                out.force(false);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Skriver posterna från en journal i det äldre formatet i det nya formatet,
+     * där varje sträng får en längd på fyra byte.
+     */
+    private static void convert(RecordReader reader, FileChannel out) throws IOException {
+        CRC32 check = new CRC32();
+        ByteBuffer converted = ByteBuffer.allocate(4096);
+        converted.putInt(MAGIC);
+        ByteBuffer record;
+        while ((record = reader.next()) != null) {
+            int length = record.remaining();
+            byte type = record.get();
+                int strings = type == CREATE_CUSTOMER || type == CHANGE_NAME ? 3
+                    : type == DELETE_CUSTOMER || type == CREATE_SAVINGS || type == CREATE_CREDIT ? 1 : 0;
+            // Varje sträng blir två byte längre
+            converted = BankSnapshot.ensure(converted, length + strings * 2 + 8);
+            int start = converted.position();
+            converted.putInt(0);
+            converted.put(type);
+            for (int i = 0; i < strings; i++) {
+                int stringLength = record.getShort() & 0xFFFF;
+                if (stringLength == 0xFFFF) {
+                    converted.putInt(-1);
+                } else {
+                    converted.putInt(stringLength);
+                    converted.put(record.slice(record.position(), stringLength));
+                    record.position(record.position() + stringLength);
+                }
+            }
+            converted.put(record);
+            int recordLength = converted.position() - start - 4;
+            converted.putInt(start, recordLength);
+            check.reset();
+            check.update(converted.slice(start + 4, recordLength));
+            converted.putInt((int) check.getValue());
+            if (converted.position() >= READ_BUFFER_SIZE) {
+                write(out, converted);
+            }
+        }
+        write(out, converted);
+    }
+
+    /**
+     * Skriver det som finns i bufferten och tömmer den.
+     */
+    private static void write(FileChannel out, ByteBuffer data) throws IOException {
+        data.flip();
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+        data.clear();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     * Påbörjar en ny post. Plats för längden reserveras och fylls i av commit().
+     */
+    private void begin(byte type) {
+        buffer.clear();
+        buffer.putInt(0);
+        buffer.put(type);
+    }
+
+    /**
+     * Fyller i längd och kontrollsumma, skriver posten och gör fsync enligt vald
+     * policy. Vid SyncPolicy.GROUP läggs posten i kön i stället.
+     */
+    private CompletableFuture<Void> commit() {
+        records++;
+        int length = buffer.position() - 4;
+        buffer.putInt(0, length);
+        crc.reset();
+        crc.update(buffer.slice(4, length));
+        ensure(4);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        if (policy == SyncPolicy.GROUP) {
+            byte[] record = new byte[buffer.remaining()];
+            buffer.get(record);
+            CompletableFuture<Void> future = enqueue(record);
+            lastRecord.set(future);
+            return future;
+        }
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            unsynced++;
+            if (policy == SyncPolicy.ALWAYS || (policy == SyncPolicy.BATCHED && unsynced >= batchSize)) {
+                channel.force(false);
+                unsynced = 0;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write to journal");
+        }
+        return DONE;
+    }
+
+    /**
+     * Lägger en post i skrivtrådens kö, och väntar ifall kön är full.
+     *
+     * @param record postens data, null för att bara vänta in tidigare poster
+     * @return future som blir klar när posten finns på disk
+     */
+    private CompletableFuture<Void> enqueue(byte[] record) {
+        if (failure != null || closing) {
+            throw new RuntimeException("Could not write to journal");
+        }
+        Pending pending = new Pending(record);
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing to journal");
+        }
+        return pending.future;
+    }
+
+    /**
+     * Väntar tills skrivtråden har skrivit ner samtliga poster i kön. Anropas
+     * med journalens lås, så inga nya poster kan läggas till under tiden.
+     */
+    private void awaitWriter() {
+        if (policy != SyncPolicy.GROUP || closing) {
+            return;
+        }
+        try {
+            enqueue(null).join();
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Could not write to journal");
+        }
+    }
+
+    /**
+     * Skrivtrådens loop. Väntar på en post, samlar ihop de poster som väntar
+     * och skriver ner dem med en fsync. Kön töms på nytt så länge den senaste
+     * tömningen gav nya poster, högst batchSize poster och högst maxLatency,
+     * så att en ensam post skrivs direkt. Avslutas när close() lägger
+     * Pending.STOP i kön.
+     */
+    private void writeGroups() {
+        List<Pending> group = new ArrayList<>(batchSize);
+        ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+        boolean stop = false;
+        while (!stop) {
+            try {
+                Pending first = queue.take();
+                group.add(first);
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                int drained;
+                do {
+                    drained = queue.drainTo(group, batchSize - group.size());
+                } while (drained > 0 && group.size() < batchSize && System.nanoTime() - deadline < 0);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            stop = group.contains(Pending.STOP);
+            try {
+                out = writeGroup(group, out);
+                for (Pending pending : group) {
+                    pending.future.complete(null);
+                }
+            } catch (IOException e) {
+                failure = e;
+                for (Pending pending : group) {
+                    pending.future.completeExceptionally(e);
+                }
+            }
+            group.clear();
+        }
+    }
+
+    /**
+     * Skriver en grupp poster med en skrivning och en fsync.
+     *
+     * @return bufferten, eventuellt utökad
+     */
+    private ByteBuffer writeGroup(List<Pending> group, ByteBuffer out) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        int size = 0;
+        for (Pending pending : group) {
+            size += pending.record == null ? 0 : pending.record.length;
+        }
+        if (size == 0) {
+            return out;
+        }
+        if (out.capacity() < size) {
+            out = ByteBuffer.allocateDirect(Math.max(out.capacity() * 2, size));
+        }
+        out.clear();
+        for (Pending pending : group) {
+            if (pending.record != null) {
+                out.put(pending.record);
+            }
+        }
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        channel.force(false);
+        groups++;
+        return out;
+    }
+
+    private void putString(String value) {
+        if (value == null) {
+            ensure(4);
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(4 + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Läser en sträng, med längd på två byte i det äldre formatet.
+     */
+    private static String getString(ByteBuffer record, boolean legacy) {
+        int length = legacy ? record.getShort() & 0xFFFF : record.getInt();
+        if (legacy ? length == 0xFFFF : length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Läser en journalfils poster i följd genom en buffert, så att filen kan
+     * vara större än vad en ByteBuffer rymmer. Läsningen slutar vid den första
+     * ofullständiga posten eller posten med fel kontrollsumma.
+     */
+    private static final class RecordReader {
+        private final FileChannel in;
+        private final CRC32 check = new CRC32();
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+        // Nästa position i filen som läses in i bufferten
+        private long filePosition = 0;
+        /** Filens magiska tal */
+        final int magic;
+        /** Position i filen efter den senaste giltiga posten */
+        long valid = HEADER_SIZE;
+
+        /**
+         * Läser filens huvud. Filen måste vara minst HEADER_SIZE byte.
+         *
+         * @throws IOException ifall filen inte är en journal
+         */
+        RecordReader(FileChannel in) throws IOException {
+            this.in = in;
+            if (!fill(HEADER_SIZE)) {
+                throw new IOException("Not a journal file");
+            }
+            magic = buffer.getInt();
+            if (magic != MAGIC && magic != LEGACY_MAGIC) {
+                throw new IOException("Not a journal file");
+            }
+        }
+
+        /**
+         * Returnerar nästa giltiga post, utan längd och kontrollsumma. Posten
+         * delar minne med bufferten och gäller bara till nästa anrop.
+         *
+         * @return posten, eller null när det inte finns fler giltiga poster
+         */
+        ByteBuffer next() throws IOException {
+            if (!fill(4)) {
+                return null;
+            }
+            int length = buffer.getInt(buffer.position());
+            if (length <= 0 || !fill(length + 8L)) {
+                return null;
+            }
+            int start = buffer.position() + 4;
+            check.reset();
+            check.update(buffer.slice(start, length));
+            if (buffer.getInt(start + length) != (int) check.getValue()) {
+                return null;
+            }
+            buffer.position(start + length + 4);
+            valid += length + 8L;
+            return buffer.slice(start, length);
+        }
+
+        /**
+         * Läser in mer av filen tills bufferten innehåller minst angivet antal
+         * oanvända byte, och utökar bufferten ifall en post inte ryms.
+         *
+         * @return false ifall filen tog slut dessförinnan
+         */
+        private boolean fill(long bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return true;
+            }
+            // En trasig längd i slutet av filen ska inte ge en stor buffert
+            if (bytes > Integer.MAX_VALUE - 8 || buffer.remaining() + in.size() - filePosition < bytes) {
+                return false;
+            }
+            if (buffer.capacity() < bytes) {
+                buffer = ByteBuffer.allocate((int) bytes).put(buffer);
+            } else {
+                buffer.compact();
+            }
+            while (buffer.position() < bytes) {
+                int read = in.read(buffer, filePosition);
+                if (read < 0) {
+                    break;
+                }
+                filePosition += read;
+            }
+            buffer.flip();
+            return buffer.remaining() >= bytes;
+        }
+    }
+
+    /**
+     * En post som väntar på skrivtråden.
+     */
+    private static final class Pending {
+        static final Pending STOP = new Pending(null);
+
+        final byte[] record;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(byte[] record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * Säkerställer att bufferten har plats för ytterligare angivet antal byte.
+     */
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package src.oscekb5;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Klassen skriver JSON direkt som UTF-8 till en växande bytearray, utan
+ * mellanliggande strängar. Kommatecken mellan element sätts ut automatiskt.
+ *
+ * <pre>
+ * JsonWriter json = new JsonWriter();
+ * json.beginObject().name("ok").value(true).endObject();
+ * </pre>
+ *
+ * En JsonWriter kan återanvändas efter reset, så att bytearrayen bara
+ * behöver allokeras en gång. Klassen är inte trådsäker.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class JsonWriter {
+    private static final int MAX_DEPTH = 63;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] buffer;
+    private int size = 0;
+    private int depth = 0;
+    // En bit per nivå, satt så länge inget element skrivits på nivån
+    private long empty = 0;
+    private boolean afterName = false;
+
+    /**
+     * Konstruktor för klassen JsonWriter.
+     */
+    public JsonWriter() {
+        this(256);
+    }
+
+    /**
+     * Konstruktor för klassen JsonWriter.
+     *
+     * @param capacity bytearrayens storlek från början
+     */
+    public JsonWriter(int capacity) {
+        buffer = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * Påbörjar ett objekt.
+     *
+     * @return denna JsonWriter
+     */
+    public JsonWriter beginObject() {
+        separator();
+        put('{');
+        push();
+        return this;
+    }
+
+    /**
+     * Avslutar det aktuella objektet.
+     *
+     * @return denna JsonWriter
+     */
+    public JsonWriter endObject() {
+        pop();
+        put('}');
+        return this;
+    }
+
+    /**
+     * Påbörjar en array.
+     *
+     * @return denna JsonWriter
+     */
+    public JsonWriter beginArray() {
+        separator();
+        put('[');
+        push();
+        return this;
+    }
+
+    /**
+     * Avslutar den aktuella arrayen.
+     *
+     * @return denna JsonWriter
+     */
+    public JsonWriter endArray() {
+        pop();
+        put(']');
+        return this;
+    }
+
+    /**
+     * Skriver namnet på nästa värde i ett objekt.
+     *
+     * @param name namnet
+     * @return denna JsonWriter
+     */
+    public JsonWriter name(String name) {
+        separator();
+        string(name);
+        put(':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Skriver en sträng, eller null.
+     *
+     * @param value strängen
+     * @return denna JsonWriter
+     */
+    public JsonWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        separator();
+        string(value);
+        return this;
+    }
+
+    /**
+     * Skriver ett heltal.
+     *
+     * @param value heltalet
+     * @return denna JsonWriter
+     */
+    public JsonWriter value(long value) {
+        separator();
+        number(value);
+        return this;
+    }
+
+    /**
+     * Skriver ett sanningsvärde.
+     *
+     * @param value sanningsvärdet
+     * @return denna JsonWriter
+     */
+    public JsonWriter value(boolean value) {
+        separator();
+        ascii(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Skriver ett belopp i ören som ett tal i kronor med två decimaler, t.ex.
+     * 12345 som 123.45.
+     *
+     * @param minor beloppet i ören
+     * @return denna JsonWriter
+     */
+    public JsonWriter minorValue(long minor) {
+        separator();
+        if (minor < 0) {
+            put('-');
+        }
+        // Ören räknas som negativa så att även Long.MIN_VALUE fungerar
+        long negative = minor < 0 ? minor : -minor;
+        number(-(negative / 100));
+        put('.');
+        int cents = (int) -(negative % 100);
+        put('0' + cents / 10);
+        put('0' + cents % 10);
+        return this;
+    }
+
+    /**
+     * Skriver null.
+     *
+     * @return denna JsonWriter
+     */
+    public JsonWriter nullValue() {
+        separator();
+        ascii("null");
+        return this;
+    }
+
+    /**
+     * Tömmer JsonWriter så att den kan återanvändas.
+     */
+    public void reset() {
+        size = 0;
+        depth = 0;
+        empty = 0;
+        afterName = false;
+    }
+
+    /**
+     * Returnerar antalet skrivna byte.
+     *
+     * @return antal byte
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Skriver den skrivna JSON-texten till en ström.
+     *
+     * @param out strömmen
+     * @throws IOException ifall strömmen inte kunde skrivas
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /**
+     * Returnerar en kopia av den skrivna JSON-texten.
+     *
+     * @return JSON-texten som UTF-8
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Skriver kommatecken ifall ett element redan skrivits på nivån.
+     */
+    private void separator() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        long bit = 1L << depth;
+        if (depth > 0 && (empty & bit) == 0) {
+            put(',');
+        }
+        empty &= ~bit;
+    }
+
+    private void push() {
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("JSON nested too deeply");
+        }
+        depth++;
+        empty |= 1L << depth;
+    }
+
+    private void pop() {
+        if (depth == 0 || afterName) {
+            throw new IllegalStateException("Unbalanced JSON");
+        }
+        depth--;
+    }
+
+    private void string(String value) {
+        put('"');
+        int length = value.length();
+        ensure(length + 2);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                put(c);
+            } else if (c == '"' || c == '\\') {
+                put('\\');
+                put(c);
+            } else if (c == '\n') {
+                ascii("\\n");
+            } else if (c == '\r') {
+                ascii("\\r");
+            } else if (c == '\t') {
+                ascii("\\t");
+            } else if (c < 0x20) {
+                escape(c);
+            } else if (c < 0x800) {
+                put(0xC0 | c >> 6);
+                put(0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                put(0xF0 | codePoint >> 18);
+                put(0x80 | codePoint >> 12 & 0x3F);
+                put(0x80 | codePoint >> 6 & 0x3F);
+                put(0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                // Ensamt surrogat kan inte kodas som UTF-8
+                escape(c);
+            } else {
+                put(0xE0 | c >> 12);
+                put(0x80 | c >> 6 & 0x3F);
+                put(0x80 | c & 0x3F);
+            }
+        }
+        put('"');
+    }
+
+    private void escape(char c) {
+        ascii("\\u");
+        put(HEX[c >> 12 & 0xF]);
+        put(HEX[c >> 8 & 0xF]);
+        put(HEX[c >> 4 & 0xF]);
+        put(HEX[c & 0xF]);
+    }
+
+    /**
+     * Skriver ett heltal med siffrorna baklänges på plats i bytearrayen.
+     */
+    private void number(long value) {
+        if (value == Long.MIN_VALUE) {
+            ascii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    private void ascii(String value) {
+        ensure(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void put(int b) {
+        if (size == buffer.length) {
+            ensure(1);
+        }
+        buffer[size++] = (byte) b;
+    }
+
+    private void ensure(int bytes) {
+        if (size + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes));
+        }
+    }
+}
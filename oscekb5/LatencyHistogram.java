@@ -0,0 +1,124 @@
+package src.oscekb5;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Klassen representerar ett histogram över svarstider i nanosekunder.
+ *
+ * Värdena delas in i intervall med logaritmiskt växande storlek där varje
+ * tvåpotens delas i 32 lika stora delar, så att ett värde och dess intervall
+ * aldrig skiljer mer än ca 3 % oavsett storlek. Hela histogrammet ryms i en
+ * fast array med 1888 räknare. En registrering räknar upp en räknare med en
+ * atomär operation utan lås, så att histogrammet kan användas från många
+ * trådar samtidigt. Percentiler beräknas vid läsning och är ungefärliga
+ * medan registreringar pågår.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Registrerar ett värde.
+     *
+     * @param nanos svarstid i nanosekunder, negativa värden räknas som 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returnerar antalet registrerade värden.
+     *
+     * @return antal värden
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returnerar medelvärdet av de registrerade värdena.
+     *
+     * @return medelvärde i nanosekunder, 0 ifall inga värden registrerats
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returnerar det största registrerade värdet.
+     *
+     * @return största värdet i nanosekunder
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returnerar värdet som angiven andel av de registrerade värdena
+     * understiger eller är lika med, avrundat uppåt till intervallets övre
+     * gräns.
+     *
+     * @param percentile percentil mellan 0 och 100, t.ex. 99.9
+     * @return värdet i nanosekunder, 0 ifall inga värden registrerats
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Returnerar räknarens index för ett värde. Värden under 32 får var sin
+     * räknare, större värden delas in efter sin högsta bit och de fem
+     * följande bitarna.
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Returnerar det största värdet som hamnar i angiven räknare.
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
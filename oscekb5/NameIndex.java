@@ -0,0 +1,378 @@
+package src.oscekb5;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Klassen representerar ett index över bankens kunder, sorterat på namn, för
+ * sökning på början av ett namn.
+ *
+ * Varje kund lagras med två normaliserade nycklar, "förnamn efternamn" och
+ * "efternamn förnamn", så att en sökning kan börja med vilket som helst av
+ * namnen. Nycklarna hålls i en sorterad array där en sökning hittar första
+ * träffen med binärsökning och sedan läser träffarna i ordning. Nya nycklar
+ * sorteras in i en mindre array som slås ihop med den stora när den blivit
+ * full, så att ett nytt namn inte behöver flytta hela indexet. Borttagna
+ * nycklar i den stora arrayen lämnar ett hål (null) tills nästa
+ * sammanslagning.
+ *
+ * Indexet är trådsäkert. Ändringar görs under ett skrivlås och sökningar
+ * under ett läslås.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class NameIndex {
+    private static final int MIN_TAIL = 256;
+    private static final Comparator<Entry> BY_KEY = Comparator.comparing(entry -> entry.key);
+
+    // Sorterade nycklar med tillhörande kunder, borttagna kunder är null.
+    // Arrayerna kan vara större än size
+    private String[] keys = new String[0];
+    private Customer[] customers = new Customer[0];
+    private int size = 0;
+    private int removed = 0;
+
+    // Nyligen tillagda nycklar, sorterade
+    private String[] tailKeys = new String[16];
+    private Customer[] tailCustomers = new Customer[16];
+    private int tailSize = 0;
+
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Normaliserar ett namn eller sökbegrepp: gemener, utan inledande och
+     * avslutande blanksteg och med enkla blanksteg mellan orden.
+     *
+     * @param text texten som ska normaliseras
+     * @return normaliserad text
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returnerar nycklarna för en kund med angivna namn.
+     */
+    private static String[] keysOf(String name, String surname) {
+        String first = normalize(name);
+        String last = normalize(surname);
+        String forward = first.isEmpty() || last.isEmpty() ? first + last : first + " " + last;
+        String reverse = first.isEmpty() || last.isEmpty() ? forward : last + " " + first;
+        return forward.equals(reverse) ? new String[] { forward } : new String[] { forward, reverse };
+    }
+
+    /**
+     * Lägger till kunden i indexet med kundens nuvarande namn.
+     *
+     * @param customer kunden som ska läggas till
+     */
+    public void add(Customer customer) {
+        String[] added = keysOf(customer.getName(), customer.getSurname());
+        long stamp = lock.writeLock();
+        try {
+            for (String key : added) {
+                insertTail(key, customer);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Tar bort kunden ur indexet.
+     *
+     * @param customer kunden som ska tas bort
+     * @param name     förnamnet som kunden lades till med
+     * @param surname  efternamnet som kunden lades till med
+     */
+    public void remove(Customer customer, String name, String surname) {
+        String[] removedKeys = keysOf(name, surname);
+        long stamp = lock.writeLock();
+        try {
+            for (String key : removedKeys) {
+                delete(key, customer);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Flyttar kunden i indexet efter ett namnbyte.
+     *
+     * @param customer kunden, med sina nya namn
+     * @param name     kundens tidigare förnamn
+     * @param surname  kundens tidigare efternamn
+     */
+    public void rename(Customer customer, String name, String surname) {
+        String[] removedKeys = keysOf(name, surname);
+        String[] added = keysOf(customer.getName(), customer.getSurname());
+        long stamp = lock.writeLock();
+        try {
+            for (String key : removedKeys) {
+                delete(key, customer);
+            }
+            for (String key : added) {
+                insertTail(key, customer);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Bygger om indexet från angivna kunder, t.ex. efter att banken har lästs
+     * in från fil.
+     *
+     * @param all samtliga kunder
+     */
+    public void rebuild(List<Customer> all) {
+        List<Entry> entries = new ArrayList<>(all.size() * 2);
+        for (Customer customer : all) {
+            for (String key : keysOf(customer.getName(), customer.getSurname())) {
+                entries.add(new Entry(key, customer));
+            }
+        }
+        entries.sort(BY_KEY);
+        String[] sortedKeys = new String[entries.size()];
+        Customer[] sortedCustomers = new Customer[entries.size()];
+        for (int i = 0; i < sortedKeys.length; i++) {
+            sortedKeys[i] = entries.get(i).key;
+            sortedCustomers[i] = entries.get(i).customer;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            keys = sortedKeys;
+            customers = sortedCustomers;
+            size = sortedKeys.length;
+            removed = 0;
+            tailKeys = new String[16];
+            tailCustomers = new Customer[16];
+            tailSize = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Tömmer indexet.
+     */
+    public void clear() {
+        rebuild(Collections.emptyList());
+    }
+
+    /**
+     * Söker efter kunder vars förnamn eller efternamn, följt av det andra
+     * namnet, börjar med angivet sökbegrepp. Versaler och gemener räknas som
+     * samma tecken. Kunderna returneras i namnordning och varje kund högst en
+     * gång.
+     *
+     * @param prefix sökbegreppet
+     * @param limit  max antal kunder
+     * @return lista med kunder
+     */
+    public List<Customer> search(String prefix, int limit) {
+        String p = normalize(prefix);
+        List<Customer> found = new ArrayList<>(Math.min(limit, 64));
+        Set<Customer> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        long stamp = lock.readLock();
+        try {
+            int i = lowerBound(keys, size, p);
+            int j = lowerBound(tailKeys, tailSize, p);
+            while (found.size() < limit) {
+                boolean base = i < size && keys[i].startsWith(p);
+                boolean tail = j < tailSize && tailKeys[j].startsWith(p);
+                Customer customer;
+                if (base && (!tail || keys[i].compareTo(tailKeys[j]) <= 0)) {
+                    customer = customers[i++];
+                } else if (tail) {
+                    customer = tailCustomers[j++];
+                } else {
+                    break;
+                }
+                if (customer != null && seen.add(customer)) {
+                    found.add(customer);
+                }
+            }
+            return found;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returnerar antalet nycklar i indexet, två per kund med olika för- och
+     * efternamn.
+     *
+     * @return antal nycklar
+     */
+    public int keyCount() {
+        long stamp = lock.readLock();
+        try {
+            return size - removed + tailSize;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Sorterar in en nyckel bland de nyligen tillagda, och slår ihop dem med
+     * indexet när de blivit för många.
+     */
+    private void insertTail(String key, Customer customer) {
+        if (tailSize == tailKeys.length) {
+            tailKeys = Arrays.copyOf(tailKeys, tailSize * 2);
+            tailCustomers = Arrays.copyOf(tailCustomers, tailSize * 2);
+        }
+        int i = upperBound(tailKeys, tailSize, key);
+        System.arraycopy(tailKeys, i, tailKeys, i + 1, tailSize - i);
+        System.arraycopy(tailCustomers, i, tailCustomers, i + 1, tailSize - i);
+        tailKeys[i] = key;
+        tailCustomers[i] = customer;
+        tailSize++;
+        // En sammanslagning kostar lika mycket som att flytta roten ur indexets
+        // storlek nycklar per insättning, så gränsen hålls där
+        if (tailSize > Math.max(MIN_TAIL, (int) Math.sqrt(size - removed))) {
+            merge();
+        }
+    }
+
+    /**
+     * Tar bort en nyckel för angiven kund.
+     */
+    private void delete(String key, Customer customer) {
+        for (int i = lowerBound(tailKeys, tailSize, key); i < tailSize && tailKeys[i].equals(key); i++) {
+            if (tailCustomers[i] == customer) {
+                System.arraycopy(tailKeys, i + 1, tailKeys, i, tailSize - i - 1);
+                System.arraycopy(tailCustomers, i + 1, tailCustomers, i, tailSize - i - 1);
+                tailSize--;
+                tailKeys[tailSize] = null;
+                tailCustomers[tailSize] = null;
+                return;
+            }
+        }
+        for (int i = lowerBound(keys, size, key); i < size && keys[i].equals(key); i++) {
+            if (customers[i] == customer) {
+                customers[i] = null;
+                removed++;
+                if (removed * 2 > size) {
+                    merge();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Slår ihop de nyligen tillagda nycklarna med indexet och tar bort hålen
+     * efter borttagna nycklar. Nycklarna sorteras in bakifrån på plats, där
+     * varje ny nyckels position hittas med binärsökning och nycklarna mellan
+     * två nya nycklar flyttas med en enda kopiering.
+     */
+    private void merge() {
+        int total = size + tailSize;
+        if (total > keys.length) {
+            int capacity = Math.max(total, keys.length + (keys.length >> 1));
+            keys = Arrays.copyOf(keys, capacity);
+            customers = Arrays.copyOf(customers, capacity);
+        }
+        int end = size;
+        for (int j = tailSize - 1; j >= 0; j--) {
+            int position = upperBound(keys, end, tailKeys[j]);
+            System.arraycopy(keys, position, keys, position + j + 1, end - position);
+            System.arraycopy(customers, position, customers, position + j + 1, end - position);
+            keys[position + j] = tailKeys[j];
+            customers[position + j] = tailCustomers[j];
+            end = position;
+        }
+        size = total;
+        if (removed > 0) {
+            int k = 0;
+            for (int i = 0; i < size; i++) {
+                if (customers[i] != null) {
+                    keys[k] = keys[i];
+                    customers[k++] = customers[i];
+                }
+            }
+            Arrays.fill(keys, k, size, null);
+            Arrays.fill(customers, k, size, null);
+            size = k;
+            removed = 0;
+        }
+        Arrays.fill(tailKeys, 0, tailSize, null);
+        Arrays.fill(tailCustomers, 0, tailSize, null);
+        tailSize = 0;
+    }
+
+    /**
+     * Returnerar första positionen vars nyckel är större än eller lika med key.
+     */
+    private static int lowerBound(String[] sorted, int length, String key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returnerar första positionen vars nyckel är större än key.
+     */
+    private static int upperBound(String[] sorted, int length, String key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].compareTo(key) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * En nyckel med tillhörande kund, används när indexet byggs om.
+     */
+    private static final class Entry {
+        final String key;
+        final Customer customer;
+
+        Entry(String key, Customer customer) {
+            this.key = key;
+            this.customer = customer;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package src.oscekb5;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Klassen representerar ett lager för kontons saldon och transaktionshistorik
+ * utanför heapen, i direkta ByteBuffers adresserade med kontonummer.
+ *
+ * Varje konto har en post i en katalog med saldo, adress till det senaste
+ * historikblocket och antal transaktioner. Katalogen delas upp i sidor som
+ * aldrig flyttas, så att saldot kan läsas och skrivas direkt i bufferten
+ * medan katalogen växer. Historiken lagras i block som hämtas ur
+ * stora minnesområden (slabs). Ett kontos block dubblas i storlek upp till en
+ * övre gräns och varje block pekar på föregående block, så att en
+ * transaktion hittas genom att gå bakåt ett fåtal block från det senaste.
+ *
+ * Eftersom varken saldon eller transaktioner ligger som objekt på heapen
+ * påverkas varken heapens storlek eller GC-tiden av hur lång historiken är.
+ * Minnet för stängda konton återanvänds inte förrän lagret töms.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class OffHeapStore {
+    private static final int BASE = 1000;
+
+    // Katalogen: saldo, senaste block och antal transaktioner per konto
+    private static final int PAGE_SHIFT = 14;
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+    private static final int ENTRY_SIZE = 24;
+    private static final int BALANCE = 0;
+    private static final int LAST_BLOCK = 8;
+    private static final int COUNT = 16;
+
+    // Historiken: block med adress till föregående block följt av transaktioner
+    private static final int SLAB_SIZE = 16 << 20;
+    private static final int BLOCK_HEADER = 8;
+    private static final int RECORD_SIZE = 24;
+    private static final int FIRST_BLOCK_RECORDS = 4;
+    private static final int MAX_LEVEL = 16;
+    private static final long MAX_LEVEL_START = blockStart(MAX_LEVEL);
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    private volatile ByteBuffer[] pages = new ByteBuffer[0];
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private int slabPosition = SLAB_SIZE;
+    // Räknas upp varje gång lagret töms
+    private volatile int generation = 0;
+
+    /**
+     * Returnerar saldot för angivet konto.
+     *
+     * @param accountNumber kontonummer
+     * @return saldo i ören
+     */
+    public long getBalance(int accountNumber) {
+        return (long) LONGS.getVolatile(page(accountNumber), entry(accountNumber) + BALANCE);
+    }
+
+    /**
+     * Sätter saldot för angivet konto.
+     *
+     * @param accountNumber kontonummer
+     * @param balance       saldo i ören
+     */
+    public void setBalance(int accountNumber, long balance) {
+        LONGS.setVolatile(page(accountNumber), entry(accountNumber) + BALANCE, balance);
+    }
+
+    /**
+     * Returnerar en vy av angivet kontos historik i lagret. Vyn nollställer
+     * kontots historik, så den ska bara skapas en gång per konto.
+     *
+     * @param accountNumber kontonummer
+     * @return kontots historik
+     */
+    public TransactionHistory history(int accountNumber) {
+        ByteBuffer page = page(accountNumber);
+        int entry = entry(accountNumber);
+        page.putLong(entry + LAST_BLOCK, 0);
+        page.putLong(entry + COUNT, 0);
+        return new History(this, accountNumber);
+    }
+
+    /**
+     * Tömmer lagret. Konton som anslutits till lagret tidigare räknas därefter
+     * som stängda (se getGeneration). Anroparen måste se till att ingen
+     * ändring av ett saldo pågår under anropet.
+     */
+    public synchronized void clear() {
+        generation++;
+        pages = new ByteBuffer[0];
+        slabs = new ByteBuffer[0];
+        slabPosition = SLAB_SIZE;
+    }
+
+    /**
+     * Returnerar lagrets generation, som räknas upp varje gång lagret töms.
+     * Ett konto jämför den med generationen när det anslöts, så att ett konto
+     * från före clear inte kan ändra ett nyare konto med samma kontonummer.
+     *
+     * @return generation
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returnerar antalet byte som lagret har reserverat utanför heapen.
+     *
+     * @return antal byte
+     */
+    public long getReservedBytes() {
+        long bytes = (long) slabs.length * SLAB_SIZE;
+        for (ByteBuffer page : pages) {
+            if (page != null) {
+                bytes += page.capacity();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returnerar katalogsidan för angivet konto, och skapar den vid behov.
+     */
+    private ByteBuffer page(int accountNumber) {
+        int offset = accountNumber - BASE;
+        if (offset < 0) {
+            throw new IllegalArgumentException("Invalid account number: " + accountNumber);
+        }
+        int index = offset >>> PAGE_SHIFT;
+        ByteBuffer[] pages = this.pages;
+        if (index < pages.length && pages[index] != null) {
+            return pages[index];
+        }
+        return createPage(index);
+    }
+
+    private synchronized ByteBuffer createPage(int index) {
+        ByteBuffer[] pages = this.pages;
+        if (index >= pages.length) {
+            ByteBuffer[] grown = new ByteBuffer[Math.max(index + 1, pages.length * 2)];
+            System.arraycopy(pages, 0, grown, 0, pages.length);
+            pages = grown;
+        }
+        if (pages[index] == null) {
+            pages[index] = ByteBuffer.allocateDirect(ENTRY_SIZE << PAGE_SHIFT).order(ByteOrder.nativeOrder());
+        }
+        this.pages = pages;
+        return pages[index];
+    }
+
+    private static int entry(int accountNumber) {
+        return ((accountNumber - BASE) & PAGE_MASK) * ENTRY_SIZE;
+    }
+
+    /**
+     * Reserverar ett block på angiven nivå.
+     *
+     * @param level    blockets nivå, som avgör dess storlek
+     * @param previous adress till kontots föregående block, 0 om inget finns
+     * @return blockets adress
+     */
+    private synchronized long allocate(int level, long previous) {
+        int size = BLOCK_HEADER + capacity(level) * RECORD_SIZE;
+        ByteBuffer[] slabs = this.slabs;
+        if (slabPosition + size > SLAB_SIZE) {
+            ByteBuffer[] grown = new ByteBuffer[slabs.length + 1];
+            System.arraycopy(slabs, 0, grown, 0, slabs.length);
+            grown[slabs.length] = ByteBuffer.allocateDirect(SLAB_SIZE).order(ByteOrder.nativeOrder());
+            this.slabs = slabs = grown;
+            slabPosition = 0;
+        }
+        // Adressen består av slabbens nummer (från 1, så att 0 betyder inget
+        // block) och positionen i slabben
+        long address = ((long) slabs.length << 32) | slabPosition;
+        slabs[slabs.length - 1].putLong(slabPosition, previous);
+        slabPosition += size;
+        return address;
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs[(int) (address >>> 32) - 1];
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Returnerar antalet transaktioner som får plats i ett block på angiven
+     * nivå.
+     */
+    private static int capacity(int level) {
+        return FIRST_BLOCK_RECORDS << Math.min(level, MAX_LEVEL);
+    }
+
+    /**
+     * Returnerar positionen för den första transaktionen i ett block på angiven
+     * nivå.
+     */
+    private static long blockStart(int level) {
+        if (level <= MAX_LEVEL) {
+            return (long) FIRST_BLOCK_RECORDS * ((1L << level) - 1);
+        }
+        return MAX_LEVEL_START + (long) (level - MAX_LEVEL) * capacity(MAX_LEVEL);
+    }
+
+    /**
+     * Returnerar nivån för blocket som innehåller transaktionen på angiven
+     * position.
+     */
+    private static int levelOf(long index) {
+        if (index < MAX_LEVEL_START) {
+            return 63 - Long.numberOfLeadingZeros(index / FIRST_BLOCK_RECORDS + 1);
+        }
+        return MAX_LEVEL + (int) ((index - MAX_LEVEL_START) / capacity(MAX_LEVEL));
+    }
+
+    /**
+     * Vy av ett kontos historik i lagret. Senast använda block sparas, så att
+     * löpande läsning inte behöver gå igenom blocken för varje transaktion.
+     */
+    private static final class History implements TransactionHistory {
+        private final OffHeapStore store;
+        private final int accountNumber;
+        private int cachedLevel = -1;
+        private long cachedBlock;
+
+        History(OffHeapStore store, int accountNumber) {
+            this.store = store;
+            this.accountNumber = accountNumber;
+        }
+
+        @Override
+        public void append(long time, long amount, long balance) {
+            ByteBuffer page = store.page(accountNumber);
+            int entry = entry(accountNumber);
+            long count = page.getLong(entry + COUNT);
+            long block = page.getLong(entry + LAST_BLOCK);
+            int level = levelOf(count);
+            long position = count - blockStart(level);
+            if (position == 0) {
+                block = store.allocate(level, block);
+                page.putLong(entry + LAST_BLOCK, block);
+            }
+            ByteBuffer slab = store.slab(block);
+            int record = offset(block) + BLOCK_HEADER + (int) position * RECORD_SIZE;
+            slab.putLong(record, time);
+            slab.putLong(record + 8, amount);
+            slab.putLong(record + 16, balance);
+            page.putLong(entry + COUNT, count + 1);
+        }
+
+        @Override
+        public int size() {
+            return (int) store.page(accountNumber).getLong(entry(accountNumber) + COUNT);
+        }
+
+        @Override
+        public long getTime(int index) {
+            return read(index, 0);
+        }
+
+        @Override
+        public long getAmount(int index) {
+            return read(index, 8);
+        }
+
+        @Override
+        public long getBalance(int index) {
+            return read(index, 16);
+        }
+
+        private long read(int index, int field) {
+            int size = size();
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Transaction index " + index + " out of bounds for " + size);
+            }
+            int target = levelOf(index);
+            int level;
+            long block;
+            if (cachedLevel >= target) {
+                level = cachedLevel;
+                block = cachedBlock;
+            } else {
+                level = levelOf(size - 1);
+                block = store.page(accountNumber).getLong(entry(accountNumber) + LAST_BLOCK);
+            }
+            while (level > target) {
+                block = store.slab(block).getLong(offset(block));
+                level--;
+            }
+            cachedLevel = level;
+            cachedBlock = block;
+            int position = (int) (index - blockStart(level));
+            return store.slab(block).getLong(offset(block) + BLOCK_HEADER + position * RECORD_SIZE + field);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package src.oscekb5;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Klassen representerar mätvärdena för en operation i BankLogic: ett
+ * histogram över svarstiderna och en räknare per utfall.
+ *
+ * Utfallen är resultatkoderna i BatchResult, t.ex. CREDIT_LIMIT för ett uttag
+ * som nekades på grund av kreditgränsen, samt BankMetrics.FAILED för övriga
+ * misslyckanden. Räknarna är LongAdder så att samtidiga registreringar från
+ * många trådar inte konkurrerar om samma minnesplats.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder[] outcomes = new LongAdder[BankMetrics.FAILED + 1];
+
+    /**
+     * Konstruktor för klassen OperationMetrics.
+     *
+     * @param name operationens namn
+     */
+    OperationMetrics(String name) {
+        this.name = name;
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registrerar ett anrop.
+     *
+     * @param code  utfallet, en resultatkod i BatchResult eller
+     *              BankMetrics.FAILED
+     * @param nanos svarstid i nanosekunder
+     */
+    void record(byte code, long nanos) {
+        latency.record(nanos);
+        outcomes[code].increment();
+    }
+
+    /**
+     * Returnerar antalet anrop med angivet utfall.
+     *
+     * @param code en resultatkod i BatchResult eller BankMetrics.FAILED
+     * @return antal anrop
+     */
+    public long getOutcomeCount(byte code) {
+        return outcomes[code].sum();
+    }
+
+    /**
+     * Returnerar histogrammet över svarstiderna.
+     *
+     * @return histogrammet
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return outcomes[BatchResult.OK].sum();
+    }
+
+    @Override
+    public long getFailureCount() {
+        long failures = 0;
+        for (int i = 1; i < outcomes.length; i++) {
+            failures += outcomes[i].sum();
+        }
+        return failures;
+    }
+
+    @Override
+    public long getUnknownAccountCount() {
+        return outcomes[BatchResult.UNKNOWN_ACCOUNT].sum();
+    }
+
+    @Override
+    public long getInvalidAmountCount() {
+        return outcomes[BatchResult.INVALID_AMOUNT].sum();
+    }
+
+    @Override
+    public long getInsufficientFundsCount() {
+        return outcomes[BatchResult.INSUFFICIENT_FUNDS].sum();
+    }
+
+    @Override
+    public long getCreditLimitCount() {
+        return outcomes[BatchResult.CREDIT_LIMIT].sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latency.getMean() / 1e3;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return latency.getPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return latency.getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return latency.getPercentile(99.9) / 1e3;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return latency.getMax() / 1e3;
+    }
+}
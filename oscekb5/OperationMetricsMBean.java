@@ -0,0 +1,76 @@
+package src.oscekb5;
+
+/**
+ * Gränssnittet beskriver mätvärdena för en operation i BankLogic så som de
+ * visas via JMX, t.ex. i JConsole eller VisualVM.
+ *
+ * Svarstider anges i mikrosekunder.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public interface OperationMetricsMBean {
+    /**
+     * @return operationens namn
+     */
+    String getName();
+
+    /**
+     * @return antal anrop
+     */
+    long getCount();
+
+    /**
+     * @return antal lyckade anrop
+     */
+    long getSuccessCount();
+
+    /**
+     * @return antal misslyckade anrop
+     */
+    long getFailureCount();
+
+    /**
+     * @return antal anrop där kunden eller kontot inte fanns
+     */
+    long getUnknownAccountCount();
+
+    /**
+     * @return antal anrop med ogiltig summa
+     */
+    long getInvalidAmountCount();
+
+    /**
+     * @return antal uttag som nekades för att sparkontots saldo inte räckte
+     */
+    long getInsufficientFundsCount();
+
+    /**
+     * @return antal uttag som nekades för att kreditgränsen skulle överskridas
+     */
+    long getCreditLimitCount();
+
+    /**
+     * @return medelvärdet av svarstiderna
+     */
+    double getMeanMicros();
+
+    /**
+     * @return medianen av svarstiderna
+     */
+    double getP50Micros();
+
+    /**
+     * @return 99:e percentilen av svarstiderna
+     */
+    double getP99Micros();
+
+    /**
+     * @return 99,9:e percentilen av svarstiderna
+     */
+    double getP999Micros();
+
+    /**
+     * @return den längsta svarstiden
+     */
+    double getMaxMicros();
+}
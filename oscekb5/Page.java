@@ -0,0 +1,57 @@
+package src.oscekb5;
+
+import java.util.List;
+
+/**
+ * Klassen representerar en sida i en bläddringsbar listning, t.ex. bankens
+ * kunder eller ett kontos transaktioner.
+ *
+ * Sidan innehåller en markör som anges för att hämta nästa sida. Markören är
+ * ogenomskinlig för anroparen och förblir giltig även om nya poster läggs till
+ * mellan anropen.
+ *
+ * @param <T> typen av poster på sidan
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class Page<T> {
+    private final List<T> items;
+    private final String nextCursor;
+
+    /**
+     * Konstruktor för klassen Page.
+     *
+     * @param items      sidans poster
+     * @param nextCursor markör för nästa sida, null ifall detta är sista sidan
+     */
+    public Page(List<T> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Returnerar sidans poster.
+     *
+     * @return lista med poster
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * Returnerar markören för nästa sida.
+     *
+     * @return markör, eller null ifall detta är sista sidan
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Returnerar om det finns fler sidor efter denna.
+     *
+     * @return true ifall det finns en nästa sida
+     */
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+}
@@ -0,0 +1,56 @@
+package src.oscekb5;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Gränssnittet representerar förloppet för en längre operation, t.ex. att
+ * spara eller läsa in banken, och ger anroparen möjlighet att avbryta den.
+ *
+ * Operationen anropar update med jämna mellanrum och avbryts med en
+ * CancellationException när isCancelled returnerar true. En avbruten operation
+ * lämnar banken och tidigare sparade filer orörda.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public interface Progress {
+    /** Förlopp som inte rapporteras och aldrig avbryts */
+    Progress NONE = new Progress() {
+        @Override
+        public void update(int done, int total) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    /**
+     * Rapporterar hur långt operationen har kommit.
+     *
+     * @param done  antal behandlade enheter (t.ex. kunder)
+     * @param total totalt antal enheter
+     */
+    void update(int done, int total);
+
+    /**
+     * Returnerar om operationen ska avbrytas.
+     *
+     * @return true ifall operationen ska avbrytas
+     */
+    boolean isCancelled();
+
+    /**
+     * Rapporterar förloppet och avbryter operationen ifall den ska avbrytas.
+     *
+     * @param done  antal behandlade enheter
+     * @param total totalt antal enheter
+     * @throws CancellationException ifall operationen ska avbrytas
+     */
+    default void checkpoint(int done, int total) {
+        if (isCancelled()) {
+            throw new CancellationException("Operation cancelled");
+        }
+        update(done, total);
+    }
+}
@@ -1,20 +1,27 @@
 package src.oscekb5;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 
 /**
  * Klassen skapar en instans av ett konto som associeras till kund (Customer).
  * Kontot är av typen sparkonto
  * 
+ * Det första uttaget är avgiftsfritt och därefter tas en avgift på 2 %. Uttag
+ * görs med kontots lås (historyLock), där både avgiften och saldot
+ * kontrolleras, så att bara ett av flera samtidiga första uttag blir
+ * avgiftsfritt.
+ * 
  * @author Oscar Ekberg, oscekb-5
  */
 public class SavingsAccount extends Account {
-    private final float INTEREST_RATE = 1.02f;
-    private final float CLOSING_INTEREST_RATE = 0.024f;
-    private int withdrawalCounter = 0;
+    private static final long serialVersionUID = 1226742618293726925L;
 
-    private final List<String> history = new ArrayList<>();
+    // Uttagsavgiften 2 % som faktor på beloppet i ören
+    private final long FEE_FACTOR = 102;
+    private final float CLOSING_INTEREST_RATE = 0.024f;
+    // Ändras bara med historyLock(), läses utan lås
+    private volatile int withdrawalCounter = 0;
 
     /**
      * 
@@ -26,44 +33,69 @@ public class SavingsAccount extends Account {
     }
 
     @Override
-    protected boolean withdraw(int amount) {
-        float balance = getBalance();
-        float total = amount;
-
-        if (withdrawalCounter >= 1) {
-            total = amount * INTEREST_RATE;
-        }
-
-        if (balance >= total) {
-            balance -= total;
-            setBalance(balance);
+    protected long withdrawMinor(int amount, long time) {
+        synchronized (historyLock()) {
+            long total = withdrawalCounter == 0 ? amount * 100L : amount * FEE_FACTOR;
+            long balance = loadBalance();
+            if (balance == CLOSED || balance < total || !storeBalance(balance - total)) {
+                return FAILED;
+            }
             withdrawalCounter++;
-            history.add(getCurrentFormattedDateTime() + " -" + getFormattedAmount(total) + " Saldo: "
-                    + getFormattedAmount(getBalance()));
-            return true;
+            recordTransaction(time, -total, balance - total);
+            return total;
         }
-        return false;
     }
 
     @Override
-    protected void deposit(float amount) {
-        setBalance(getBalance() + amount);
-        history.add(getCurrentFormattedDateTime() + " " + getFormattedAmount(amount) + " Saldo: "
-                + getFormattedAmount(getBalance()));
+    void applyTransaction(long amount, long time) {
+        synchronized (historyLock()) {
+            super.applyTransaction(amount, time);
+            if (amount < 0) {
+                withdrawalCounter++;
+            }
+        }
     }
 
-    @Override
-    protected List<String> getTransactions() {
-        return history;
+    /**
+     * Returnerar antalet uttag som gjorts från kontot
+     * 
+     * @return antal uttag
+     */
+    int getWithdrawalCounter() {
+        return withdrawalCounter;
+    }
+
+    /**
+     * Sätter antalet uttag, används vid inläsning av en sparad bank
+     * 
+     * @param withdrawalCounter antal uttag
+     */
+    void setWithdrawalCounter(int withdrawalCounter) {
+        this.withdrawalCounter = withdrawalCounter;
     }
 
     @Override
     protected float calcFinalInterest() {
-        return getBalance() * CLOSING_INTEREST_RATE;
+        return calcInterest(getMinorBalance()) / 100f;
+    }
+
+    @Override
+    protected long calcInterest(long balance) {
+        return Math.round(balance * (double) CLOSING_INTEREST_RATE);
     }
 
     @Override
     protected String getFormattedInterest() {
         return " 2,4 %";
     }
+
+    /**
+     * Läser in kontot via Java-serialisering, inklusive historik från banker
+     * sparade i det äldre formatet
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        withdrawalCounter = fields.get("withdrawalCounter", 0);
+        restoreLegacyHistory(fields);
+    }
 }
@@ -0,0 +1,434 @@
+package src.oscekb5;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Klassen kör bankens operationer som kommandon på ett fast antal trådar
+ * (shards), där varje kund ägs av en tråd.
+ *
+ * Kunderna fördelas efter personnumrets hashvärde. Varje shard har en egen
+ * begränsad ringbuffert som flera trådar kan lägga kommandon i men som bara
+ * ägarens tråd läser ur, och resultatet levereras med en CompletableFuture.
+ * Eftersom samtliga ändringar av en kund och dess konton görs av samma tråd
+ * uppstår ingen konkurrens om kundens lås eller kontonas saldon, och trådarna
+ * delar bara det som BankLogic redan delar, t.ex. index och journal.
+ *
+ * Ringbufferten använder inga lås. En avsändare reserverar en plats med
+ * compare-and-set på buffertens slut, skriver kommandot och publicerar
+ * platsens sekvensnummer. Shardens tråd läser alla publicerade kommandon i
+ * en följd och frigör platserna först efteråt. Är bufferten full väntar
+ * avsändaren, först aktivt och sedan med allt längre pauser. Är den tom
+ * väntar tråden först aktivt en kort stund och lägger sig sedan att vänta
+ * tills en avsändare väcker den.
+ *
+ * Ett kommando som lägger ett nytt kommando till sin egen shard kan inte
+ * vänta på att det körs, eftersom det är samma tråd som ska köra det. Sådana
+ * kommandon körs därför direkt av avsändaren, före de kommandon som redan
+ * ligger i bufferten. Ett kommando bör inte vänta på resultatet av ett
+ * kommando i en annan shard, eftersom den sharden i sin tur kan vänta på
+ * plats i den här.
+ *
+ * Överföringar mellan kunder i olika shards körs av avsändarens shard med
+ * BankLogic.transfer, som låser båda kontona i kontonummerordning. Det är
+ * den enda operation där två shards kan röra samma konto, och överföringen
+ * förblir atomär och loggas som en post i journalen.
+ *
+ * Beroende åtgärder som läggs på en future (t.ex. thenApply) körs av
+ * shardens tråd ifall futuren redan är klar, så tyngre arbete bör läggas med
+ * de asynkrona varianterna.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class ShardedBank implements AutoCloseable {
+    private final BankLogic bank;
+    private final Shard[] shards;
+
+    /**
+     * Konstruktor för klassen ShardedBank. Startar en tråd per shard.
+     *
+     * @param bank     banken som kommandona körs mot
+     * @param shards   antal shards, t.ex. antalet processorkärnor
+     * @param ringSize antal platser i varje shards ringbuffert, avrundas uppåt
+     *                 till en tvåpotens
+     */
+    public ShardedBank(BankLogic bank, int shards, int ringSize) {
+        if (shards < 1 || ringSize < 1 || ringSize > 1 << 30) {
+            throw new IllegalArgumentException("Invalid shard configuration: " + shards + ", " + ringSize);
+        }
+        this.bank = bank;
+        this.shards = new Shard[shards];
+        int capacity = ringSize == 1 ? 1 : Integer.highestOneBit(ringSize - 1) << 1;
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard(capacity, "bank-shard-" + i);
+        }
+        for (Shard shard : this.shards) {
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * Returnerar banken som kommandona körs mot. Läsningar kan göras direkt
+     * mot banken, men ser då inte nödvändigtvis kommandon som fortfarande
+     * ligger i någon ringbuffert.
+     *
+     * @return banken
+     */
+    public BankLogic getBank() {
+        return bank;
+    }
+
+    /**
+     * Returnerar antalet shards.
+     *
+     * @return antal shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returnerar vilken shard som äger angiven kund.
+     *
+     * @param pNo kundens personnummer
+     * @return shardens nummer, från 0
+     */
+    public int shardOf(String pNo) {
+        int h = pNo.hashCode() * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    /**
+     * Kör ett godtyckligt kommando på den shard som äger angiven kund.
+     * Kommandot får bara ändra den kunden och dess konton.
+     *
+     * @param <T>     kommandots resultattyp
+     * @param pNo     kundens personnummer
+     * @param command kommandot
+     * @return future med kommandots resultat, eller dess undantag, redan
+     *         klar ifall kommandot lades från ett kommando i samma shard
+     * @throws RejectedExecutionException ifall ShardedBank har stängts
+     */
+    public <T> CompletableFuture<T> submit(String pNo, Function<BankLogic, T> command) {
+        Command<T> entry = new Command<>(bank, command);
+        shards[shardOf(pNo)].publish(entry);
+        return entry.future;
+    }
+
+    /**
+     * Skapar en ny kund, se BankLogic.createCustomer.
+     *
+     * @param name    kundens förnamn
+     * @param surname kundens efternamn
+     * @param pNo     kundens personnummer
+     * @return future med samma värde som BankLogic.createCustomer returnerar
+     */
+    public CompletableFuture<Boolean> createCustomer(String name, String surname, String pNo) {
+        return submit(pNo, bank -> bank.createCustomer(name, surname, pNo));
+    }
+
+    /**
+     * Ändrar kundens namn, se BankLogic.changeCustomerName.
+     *
+     * @param name    nytt förnamn
+     * @param surname nytt efternamn
+     * @param pNo     kundens personnummer
+     * @return future med samma värde som BankLogic.changeCustomerName returnerar
+     */
+    public CompletableFuture<Boolean> changeCustomerName(String name, String surname, String pNo) {
+        return submit(pNo, bank -> bank.changeCustomerName(name, surname, pNo));
+    }
+
+    /**
+     * Tar bort en kund, se BankLogic.deleteCustomer.
+     *
+     * @param pNo kundens personnummer
+     * @return future med samma värde som BankLogic.deleteCustomer returnerar
+     */
+    public CompletableFuture<List<String>> deleteCustomer(String pNo) {
+        return submit(pNo, bank -> bank.deleteCustomer(pNo));
+    }
+
+    /**
+     * Returnerar information om kunden, se BankLogic.getCustomer. Läsningen
+     * görs efter kundens tidigare kommandon.
+     *
+     * @param pNo kundens personnummer
+     * @return future med samma värde som BankLogic.getCustomer returnerar
+     */
+    public CompletableFuture<List<String>> getCustomer(String pNo) {
+        return submit(pNo, bank -> bank.getCustomer(pNo));
+    }
+
+    /**
+     * Skapar ett sparkonto, se BankLogic.createSavingsAccount.
+     *
+     * @param pNo kundens personnummer
+     * @return future med samma värde som BankLogic.createSavingsAccount
+     *         returnerar
+     */
+    public CompletableFuture<Integer> createSavingsAccount(String pNo) {
+        return submit(pNo, bank -> bank.createSavingsAccount(pNo));
+    }
+
+    /**
+     * Skapar ett kreditkonto, se BankLogic.createCreditAccount.
+     *
+     * @param pNo kundens personnummer
+     * @return future med samma värde som BankLogic.createCreditAccount
+     *         returnerar
+     */
+    public CompletableFuture<Integer> createCreditAccount(String pNo) {
+        return submit(pNo, bank -> bank.createCreditAccount(pNo));
+    }
+
+    /**
+     * Sätter in en summa, se BankLogic.deposit.
+     *
+     * @param pNo       kundens personnummer
+     * @param accountId önskat bankkonto
+     * @param amount    summa
+     * @return future med samma värde som BankLogic.deposit returnerar
+     */
+    public CompletableFuture<Boolean> deposit(String pNo, int accountId, float amount) {
+        return submit(pNo, bank -> bank.deposit(pNo, accountId, amount));
+    }
+
+    /**
+     * Tar ut en summa, se BankLogic.withdraw.
+     *
+     * @param pNo       kundens personnummer
+     * @param accountId önskat bankkonto
+     * @param amount    summa
+     * @return future med samma värde som BankLogic.withdraw returnerar
+     */
+    public CompletableFuture<Boolean> withdraw(String pNo, int accountId, int amount) {
+        return submit(pNo, bank -> bank.withdraw(pNo, accountId, amount));
+    }
+
+    /**
+     * Flyttar en summa mellan två konton, se BankLogic.transfer. Överföringen
+     * körs av avsändarens shard även när mottagaren ägs av en annan.
+     *
+     * @param fromPNo     avsändarens personnummer
+     * @param fromAccount kontot som pengarna tas från
+     * @param toPNo       mottagarens personnummer
+     * @param toAccount   kontot som pengarna sätts in på
+     * @param amount      summa
+     * @return future med samma värde som BankLogic.transfer returnerar
+     */
+    public CompletableFuture<Boolean> transfer(String fromPNo, int fromAccount, String toPNo, int toAccount,
+            int amount) {
+        return submit(fromPNo, bank -> bank.transfer(fromPNo, fromAccount, toPNo, toAccount, amount));
+    }
+
+    /**
+     * Stänger ett konto, se BankLogic.closeAccount.
+     *
+     * @param pNo       kundens personnummer
+     * @param accountId kontot som ska stängas
+     * @return future med samma värde som BankLogic.closeAccount returnerar
+     */
+    public CompletableFuture<String> closeAccount(String pNo, int accountId) {
+        return submit(pNo, bank -> bank.closeAccount(pNo, accountId));
+    }
+
+    /**
+     * Returnerar kontots transaktioner, se BankLogic.getTransactions.
+     * Läsningen görs efter kundens tidigare kommandon.
+     *
+     * @param pNo       kundens personnummer
+     * @param accountId önskat bankkonto
+     * @return future med samma värde som BankLogic.getTransactions returnerar
+     */
+    public CompletableFuture<List<String>> getTransactions(String pNo, int accountId) {
+        return submit(pNo, bank -> bank.getTransactions(pNo, accountId));
+    }
+
+    /**
+     * Tar inte emot fler kommandon, väntar tills de kommandon som redan lagts
+     * i ringbuffertarna har körts och stoppar trådarna. Anropas close från ett
+     * kommando stoppas trådarna på samma sätt, men utan att close väntar på
+     * dem, eftersom den anropande tråden själv är en av dem.
+     */
+    @Override
+    public void close() {
+        boolean fromShard = false;
+        for (Shard shard : shards) {
+            shard.close();
+            fromShard |= shard.thread == Thread.currentThread();
+        }
+        if (fromShard) {
+            return;
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Ett kommando i en ringbuffert, med future för resultatet.
+     */
+    private static final class Command<T> implements Runnable {
+        private final BankLogic bank;
+        private final Function<BankLogic, T> action;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Command(BankLogic bank, Function<BankLogic, T> action) {
+            this.bank = bank;
+            this.action = action;
+        }
+
+        @Override
+        public void run() {
+            try {
+                future.complete(action.apply(bank));
+            } catch (Throwable e) {
+                // Tråden fortsätter med nästa kommando
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * En shard: ringbufferten och tråden som läser ur den.
+     */
+    private static final class Shard implements Runnable {
+        // Markerar i tail att sharden är stängd
+        private static final long CLOSED = Long.MIN_VALUE;
+        private static final int SPINS = 100;
+        private static final int YIELDS = 100;
+        private static final long PARK_NANOS = 1_000_000;
+        // Första pausen för en avsändare som väntar på plats är PARK_NANOS
+        // delat med 2^MAX_BACKOFF_SHIFT, ca 1 µs
+        private static final int MAX_BACKOFF_SHIFT = 10;
+
+        private final Runnable[] entries;
+        // Sekvensnumret som senast publicerades på varje plats
+        private final AtomicLongArray published;
+        private final int mask;
+        // Nästa sekvensnummer att reservera, med CLOSED satt när sharden stängts
+        private final AtomicLong tail = new AtomicLong();
+        // Nästa sekvensnummer som tråden läser, platser före det är lediga
+        private volatile long head;
+        private volatile boolean sleeping;
+        private final Thread thread;
+
+        private Shard(int capacity, String name) {
+            entries = new Runnable[capacity];
+            published = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                published.set(i, -1);
+            }
+            mask = capacity - 1;
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Lägger ett kommando i ringbufferten, och väntar ifall den är full.
+         * Anropas publish av shardens egen tråd körs kommandot direkt, eftersom
+         * tråden annars skulle vänta på sig själv.
+         */
+        private void publish(Runnable command) {
+            if (Thread.currentThread() == thread) {
+                if (tail.get() < 0) {
+                    throw new RejectedExecutionException("Bank shards are closed");
+                }
+                command.run();
+                return;
+            }
+            long sequence;
+            while (true) {
+                long t = tail.get();
+                if (t < 0) {
+                    throw new RejectedExecutionException("Bank shards are closed");
+                }
+                if (tail.compareAndSet(t, t + 1)) {
+                    sequence = t;
+                    break;
+                }
+            }
+            int waits = 0;
+            while (sequence - head >= entries.length) {
+                if (waits < SPINS) {
+                    Thread.onSpinWait();
+                } else if (waits < SPINS + YIELDS) {
+                    Thread.yield();
+                } else {
+                    // Pausen fördubblas upp till PARK_NANOS
+                    int shift = waits - SPINS - YIELDS;
+                    LockSupport.parkNanos(this, PARK_NANOS >> (MAX_BACKOFF_SHIFT - shift));
+                }
+                if (waits < SPINS + YIELDS + MAX_BACKOFF_SHIFT) {
+                    waits++;
+                }
+            }
+            int index = (int) sequence & mask;
+            entries[index] = command;
+            published.set(index, sequence);
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private void close() {
+            while (true) {
+                long t = tail.get();
+                if (t < 0 || tail.compareAndSet(t, t | CLOSED)) {
+                    break;
+                }
+            }
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            long next = 0;
+            int idle = 0;
+            while (true) {
+                long available = next;
+                while (published.get((int) available & mask) == available) {
+                    available++;
+                }
+                if (available > next) {
+                    for (long sequence = next; sequence < available; sequence++) {
+                        int index = (int) sequence & mask;
+                        Runnable command = entries[index];
+                        entries[index] = null;
+                        command.run();
+                    }
+                    next = available;
+                    head = next;
+                    idle = 0;
+                } else if (tail.get() == (next | CLOSED)) {
+                    return;
+                } else if (idle < SPINS) {
+                    idle++;
+                    Thread.onSpinWait();
+                } else if (idle < SPINS + YIELDS) {
+                    idle++;
+                    Thread.yield();
+                } else {
+                    // Avsändaren läser sleeping efter att ha publicerat, så
+                    // antingen ser tråden kommandot här eller blir väckt
+                    sleeping = true;
+                    if (published.get((int) next & mask) != next && tail.get() != (next | CLOSED)) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                    sleeping = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package src.oscekb5;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Klassen representerar en transaktionshistorik i två nivåer: de senaste
+ * transaktionerna i en ringbuffert i minnet och äldre transaktioner i ett
+ * HistoryArchive på disk.
+ *
+ * När ringbufferten är full skrivs dess äldsta hälft som ett block till
+ * arkivet och blockets position sparas i ett litet index. Minnet per konto
+ * begränsas därmed till ringbufferten plus en position per arkiverat block,
+ * oavsett hur lång historiken är. Ringbufferten växer vid behov upp till sin
+ * maxstorlek, så konton med få transaktioner tar lite minne.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class TieredHistory implements TransactionHistory {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final HistoryArchive archive;
+    private final int accountNumber;
+    private final int maxCapacity;
+    private final int chunkSize;
+
+    // Ringbufferten, head pekar på den äldsta transaktionen i minnet
+    private long[] times;
+    private long[] amounts;
+    private long[] balances;
+    private int head;
+    private int count;
+
+    // Positioner för arkiverade block, äldst först
+    private long[] chunks;
+    private int chunkCount;
+
+    /**
+     * Konstruktor för klassen TieredHistory.
+     *
+     * @param archive       arkivet för äldre transaktioner
+     * @param accountNumber kontonummer
+     * @param maxCapacity   max antal transaktioner i minnet
+     * @param chunks        positioner för redan arkiverade block
+     */
+    TieredHistory(HistoryArchive archive, int accountNumber, int maxCapacity, long[] chunks) {
+        this.archive = archive;
+        this.accountNumber = accountNumber;
+        this.maxCapacity = maxCapacity;
+        this.chunkSize = archive.getChunkSize();
+        this.chunks = chunks.clone();
+        this.chunkCount = chunks.length;
+        int capacity = Math.min(INITIAL_CAPACITY, maxCapacity);
+        times = new long[capacity];
+        amounts = new long[capacity];
+        balances = new long[capacity];
+    }
+
+    @Override
+    public void append(long time, long amount, long balance) {
+        if (count == times.length) {
+            if (count < maxCapacity) {
+                grow();
+            } else {
+                spill();
+            }
+        }
+        int slot = slot(count);
+        times[slot] = time;
+        amounts[slot] = amount;
+        balances[slot] = balance;
+        count++;
+    }
+
+    @Override
+    public int size() {
+        return chunkCount * chunkSize + count;
+    }
+
+    @Override
+    public long getTime(int index) {
+        return get(index, times, 0);
+    }
+
+    @Override
+    public long getAmount(int index) {
+        return get(index, amounts, 8);
+    }
+
+    @Override
+    public long getBalance(int index) {
+        return get(index, balances, 16);
+    }
+
+    /**
+     * Returnerar antalet transaktioner som finns i minnet.
+     *
+     * @return antal transaktioner
+     */
+    public int getMemoryCount() {
+        return count;
+    }
+
+    /**
+     * Returnerar positionerna för historikens arkiverade block.
+     *
+     * @return positioner i kontots segmentfil, äldst först
+     */
+    long[] getChunks() {
+        long[] copy = new long[chunkCount];
+        System.arraycopy(chunks, 0, copy, 0, chunkCount);
+        return copy;
+    }
+
+    HistoryArchive getArchive() {
+        return archive;
+    }
+
+    private long get(int index, long[] column, int field) {
+        int archived = chunkCount * chunkSize;
+        if (index >= archived && index < archived + count) {
+            return column[slot(index - archived)];
+        }
+        if (index < 0 || index >= archived) {
+            throw new IndexOutOfBoundsException("Transaction index " + index + " out of bounds for " + size());
+        }
+        return archive.read(accountNumber, chunks[index / chunkSize], index % chunkSize, field);
+    }
+
+    private int slot(int position) {
+        int slot = head + position;
+        return slot < times.length ? slot : slot - times.length;
+    }
+
+    /**
+     * Dubblar ringbuffertens storlek, högst till maxCapacity.
+     */
+    private void grow() {
+        int capacity = Math.min(times.length * 2, maxCapacity);
+        times = unwrap(times, capacity);
+        amounts = unwrap(amounts, capacity);
+        balances = unwrap(balances, capacity);
+        head = 0;
+    }
+
+    private long[] unwrap(long[] column, int capacity) {
+        long[] grown = new long[capacity];
+        int first = Math.min(count, column.length - head);
+        System.arraycopy(column, head, grown, 0, first);
+        System.arraycopy(column, 0, grown, first, count - first);
+        return grown;
+    }
+
+    /**
+     * Skriver de äldsta transaktionerna i minnet som ett block till arkivet.
+     */
+    private void spill() {
+        ByteBuffer chunk = ByteBuffer.allocate(chunkSize * HistoryArchive.RECORD_SIZE);
+        for (int i = 0; i < chunkSize; i++) {
+            int slot = slot(i);
+            chunk.putLong(times[slot]).putLong(amounts[slot]).putLong(balances[slot]);
+        }
+        long position = archive.append(accountNumber, chunk.flip());
+        if (chunkCount == chunks.length) {
+            long[] grown = new long[Math.max(4, chunkCount * 2)];
+            System.arraycopy(chunks, 0, grown, 0, chunkCount);
+            chunks = grown;
+        }
+        chunks[chunkCount++] = position;
+        head = slot(chunkSize);
+        count -= chunkSize;
+    }
+}
@@ -0,0 +1,55 @@
+package src.oscekb5;
+
+/**
+ * Gränssnittet representerar ett kontos transaktionshistorik, oberoende av
+ * var historiken lagras.
+ *
+ * Varje transaktion har en tidpunkt (millisekunder sedan epoch), ett belopp
+ * och saldot efter transaktionen, där belopp och saldo anges i ören och uttag
+ * har negativt belopp. Historiken läggs bara till i slutet, så en position
+ * pekar alltid ut samma transaktion. Den som läser eller skriver historiken
+ * måste hålla historikobjektets lås.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public interface TransactionHistory {
+    /**
+     * Lägger till en transaktion sist i historiken.
+     *
+     * @param time    tidpunkt i millisekunder sedan epoch
+     * @param amount  belopp i ören, negativt vid uttag
+     * @param balance saldo i ören efter transaktionen
+     */
+    void append(long time, long amount, long balance);
+
+    /**
+     * Returnerar antalet transaktioner i historiken.
+     *
+     * @return antal transaktioner
+     */
+    int size();
+
+    /**
+     * Returnerar tidpunkten för angiven transaktion.
+     *
+     * @param index transaktionens position, 0 är den äldsta
+     * @return millisekunder sedan epoch
+     */
+    long getTime(int index);
+
+    /**
+     * Returnerar beloppet för angiven transaktion.
+     *
+     * @param index transaktionens position, 0 är den äldsta
+     * @return belopp i ören, negativt vid uttag
+     */
+    long getAmount(int index);
+
+    /**
+     * Returnerar saldot efter angiven transaktion.
+     *
+     * @param index transaktionens position, 0 är den äldsta
+     * @return saldo i ören
+     */
+    long getBalance(int index);
+}
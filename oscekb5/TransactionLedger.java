@@ -0,0 +1,86 @@
+package src.oscekb5;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Klassen representerar transaktionshistoriken för ett konto, lagrad på
+ * heapen.
+ *
+ * Historiken lagras kolumnvis i primitiva arrayer: tidpunkt (millisekunder
+ * sedan epoch), belopp och saldo efter transaktionen. Belopp och saldo lagras
+ * i ören, där uttag har negativt belopp. Arrayerna växer vid behov.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class TransactionLedger implements TransactionHistory, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long[] times;
+    private long[] amounts;
+    private long[] balances;
+    private int size = 0;
+
+    /**
+     * Konstruktor som skapar en tom historik.
+     */
+    public TransactionLedger() {
+        this(4);
+    }
+
+    /**
+     * Konstruktor som skapar en tom historik med plats för angivet antal
+     * transaktioner.
+     *
+     * @param capacity antal transaktioner som får plats innan arrayerna växer
+     */
+    public TransactionLedger(int capacity) {
+        capacity = Math.max(1, capacity);
+        times = new long[capacity];
+        amounts = new long[capacity];
+        balances = new long[capacity];
+    }
+
+    @Override
+    public void append(long time, long amount, long balance) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            balances = Arrays.copyOf(balances, capacity);
+        }
+        times[size] = time;
+        amounts[size] = amount;
+        balances[size] = balance;
+        size++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long getTime(int index) {
+        checkIndex(index);
+        return times[index];
+    }
+
+    @Override
+    public long getAmount(int index) {
+        checkIndex(index);
+        return amounts[index];
+    }
+
+    @Override
+    public long getBalance(int index) {
+        checkIndex(index);
+        return balances[index];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Transaction index " + index + " out of bounds for " + size);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package src.oscekb5.bench;
+
+import src.oscekb5.BankLogic;
+import src.oscekb5.HistoryArchive;
+import src.oscekb5.InterestEngine;
+import src.oscekb5.OffHeapStore;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks för bankens kärna: kunduppslagning, insättningar och uttag på
+ * sparkonto och kreditkonto, formatering av transaktionshistorik, listning av
+ * samtliga kunder samt att spara (helt eller som deltafil) och läsa in banken
+ * från fil.
+ *
+ * Varje benchmark körs för varje angiven bankstorlek (antal kunder). Varje
+ * kund har ett sparkonto och ett kreditkonto, och en separat kund har ett
+ * konto med en historik av fast längd.
+ *
+ * Körs från samma katalog som GUI:t (så att src/oscekb5/files finns), t.ex.
+ *
+ * <pre>
+ * javac -d out src/oscekb5/*.java src/oscekb5/bench/*.java
+ * java -Xmx8g -cp out src.oscekb5.bench.BankBenchmark 1000,10000,100000,1000000
+ * </pre>
+ *
+ * Med argumentet offheap sist lagras saldon och historik i ett OffHeapStore,
+ * och med tiered arkiveras äldre transaktioner på disk i ett HistoryArchive
+ * (båda kan anges, t.ex. offheap,tiered). Med metrics slås bankens mätning
+ * på, så att mätningens kostnad syns, och mätvärdena skrivs ut efteråt.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class BankBenchmark {
+    private static final int HISTORY_LENGTH = 100;
+
+    private final int size;
+    private final BankLogic bank;
+    private final OffHeapStore store;
+    private final HistoryArchive archive;
+    private final String[] pNos;
+    private final int[] savingsIds;
+    private final int[] creditIds;
+    private final String historyPNo;
+    private final int historyAccount;
+
+    /**
+     * Bygger en bank med angivet antal kunder.
+     *
+     * @param size antal kunder
+     */
+    public BankBenchmark(int size) {
+        this(size, false);
+    }
+
+    /**
+     * Bygger en bank med angivet antal kunder.
+     *
+     * @param size    antal kunder
+     * @param offHeap true för att lagra saldon och historik utanför heapen
+     */
+    public BankBenchmark(int size, boolean offHeap) {
+        this(size, offHeap, null);
+    }
+
+    /**
+     * Bygger en bank med angivet antal kunder.
+     *
+     * @param size    antal kunder
+     * @param offHeap true för att lagra saldon och historik utanför heapen
+     * @param archive arkiv för äldre transaktioner, eller null
+     */
+    public BankBenchmark(int size, boolean offHeap, HistoryArchive archive) {
+        this.size = size;
+        this.archive = archive;
+        store = offHeap ? new OffHeapStore() : null;
+        bank = new BankLogic(store, archive);
+        pNos = new String[size];
+        savingsIds = new int[size];
+        creditIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            pNos[i] = String.format("%010d", i);
+            bank.createCustomer("Förnamn" + (i % 1000), "Efternamn" + (i % 5000), pNos[i]);
+            savingsIds[i] = bank.createSavingsAccount(pNos[i]);
+            creditIds[i] = bank.createCreditAccount(pNos[i]);
+            bank.deposit(pNos[i], savingsIds[i], 1_000_000);
+        }
+        historyPNo = "history";
+        bank.createCustomer("Historik", "Historik", historyPNo);
+        historyAccount = bank.createCreditAccount(historyPNo);
+        for (int i = 0; i < HISTORY_LENGTH; i++) {
+            bank.deposit(historyPNo, historyAccount, 100 + i);
+        }
+    }
+
+    /**
+     * Kör samtliga benchmarks för banken. Insättningar och uttag körs sist
+     * eftersom de gör historiken längre, vilket annars skulle påverka de övriga
+     * mätningarna.
+     *
+     * @param runner körare som mäter och skriver ut resultatet
+     */
+    public void run(BenchmarkRunner runner) {
+        String suffix = " [" + size + (store != null ? ", offheap" : "") + (archive != null ? ", tiered" : "")
+                + (bank.getMetrics() != null ? ", metrics" : "") + "]";
+        printMemory(suffix);
+
+        runner.run("customerLookup" + suffix, 1024, i -> bank.getCustomerObj(pNos[index(i)]) != null ? 1 : 0);
+
+        runner.run("getTransactions(" + HISTORY_LENGTH + ")" + suffix, 16,
+                i -> bank.getTransactions(historyPNo, historyAccount).size());
+
+        runner.run("getAllCustomers" + suffix, 1, i -> {
+            List<String> all = bank.getAllCustomers();
+            return all.size();
+        });
+
+        runner.run("getTransactionsPage(20)" + suffix, 1024,
+                i -> bank.getTransactions(historyPNo, historyAccount, null, 20).getItems().size());
+
+        runner.run("getCustomersPage(50)" + suffix, 256,
+                i -> bank.getCustomers(null, 50).getItems().size());
+
+        runner.run("searchCustomers(20)" + suffix, 1024,
+                i -> bank.searchCustomers("efternamn" + (index(i) % 5000), 20).size());
+
+        runner.run("saveBankToFile(full)" + suffix, 1, i -> {
+            bank.compactBankFile("benchmark.bin");
+            return 1;
+        });
+
+        // En deltafil med 100 ändrade konton, inklusive insättningarna
+        runner.run("saveBankToFile(delta)" + suffix, 1, i -> {
+            for (int k = 0; k < 100; k++) {
+                int c = index(i * 100 + k);
+                bank.deposit(pNos[c], savingsIds[c], 1);
+            }
+            bank.saveBankToFile("benchmark.bin");
+            return 1;
+        });
+
+        runner.run("loadBankToFile" + suffix, 1, i -> {
+            BankLogic loaded = new BankLogic();
+            loaded.loadBankToFile("benchmark.bin");
+            return loaded.getAllCustomerObjs().size();
+        });
+
+        runner.run("depositSavings" + suffix, 1024, i -> {
+            int c = index(i);
+            return bank.deposit(pNos[c], savingsIds[c], 10) ? 1 : 0;
+        });
+
+        runner.run("withdrawSavings" + suffix, 1024, i -> {
+            int c = index(i);
+            return bank.withdraw(pNos[c], savingsIds[c], 1) ? 1 : 0;
+        });
+
+        runner.run("depositCredit" + suffix, 1024, i -> {
+            int c = index(i);
+            return bank.deposit(pNos[c], creditIds[c], 10) ? 1 : 0;
+        });
+
+        runner.run("withdrawCredit" + suffix, 1024, i -> {
+            int c = index(i);
+            return bank.withdraw(pNos[c], creditIds[c], 1) ? 1 : 0;
+        });
+
+        InterestEngine interest = new InterestEngine(bank);
+        runner.run("interestRun" + suffix, 1, i -> interest.run().getAccounts());
+    }
+
+    /**
+     * Skriver ut hur mycket minne banken använder på och utanför heapen.
+     */
+    private void printMemory(String suffix) {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        long offHeap = store != null ? store.getReservedBytes() : 0;
+        System.out.printf("memory%s: heap %.1f MB, off-heap %.1f MB%n", suffix, heap / 1048576.0,
+                offHeap / 1048576.0);
+    }
+
+    /**
+     * Slår på bankens mätning av svarstider och utfall.
+     *
+     * @return denna benchmark
+     */
+    public BankBenchmark withMetrics() {
+        bank.enableMetrics();
+        return this;
+    }
+
+    /**
+     * Returnerar ett pseudoslumpmässigt kundindex för angivet anrop.
+     */
+    private int index(long invocation) {
+        return (int) (((invocation * 0x9E3779B97F4A7C15L) >>> 1) % size);
+    }
+
+    /**
+     * Kör benchmarks för samtliga angivna bankstorlekar.
+     *
+     * @param args kommaseparerade bankstorlekar, t.ex. 1000,10000; därefter
+     *             valfritt antal uppvärmnings- och mätiterationer samt
+     *             iterationslängd i millisekunder, samt offheap för att
+     *             lagra saldon och historik utanför heapen, tiered för att
+     *             arkivera äldre transaktioner på disk och/eller metrics för
+     *             att mäta bankens operationer
+     * @throws IOException ifall historikarkivet inte kunde skapas
+     */
+    public static void main(String[] args) throws IOException {
+        String sizes = args.length > 0 ? args[0] : "1000,10000,100000,1000000";
+        int warmup = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int measurement = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        long millis = args.length > 3 ? Long.parseLong(args[3]) : 1000;
+        List<String> options = args.length > 4 ? Arrays.asList(args[4].split(",")) : List.of();
+        boolean offHeap = options.contains("offheap");
+        boolean tiered = options.contains("tiered");
+        boolean metrics = options.contains("metrics");
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, measurement, millis);
+        for (String size : sizes.split(",")) {
+            if (!tiered) {
+                run(new BankBenchmark(Integer.parseInt(size.trim()), offHeap), metrics, runner);
+                continue;
+            }
+            try (HistoryArchive archive = new HistoryArchive(
+                    Paths.get("src/oscekb5/files/benchmark-history-" + size.trim()), 64)) {
+                run(new BankBenchmark(Integer.parseInt(size.trim()), offHeap, archive), metrics, runner);
+            }
+        }
+    }
+
+    /**
+     * Kör benchmarken, med bankens mätning påslagen ifall metrics anges.
+     */
+    private static void run(BankBenchmark benchmark, boolean metrics, BenchmarkRunner runner) {
+        if (metrics) {
+            benchmark.withMetrics();
+        }
+        benchmark.run(runner);
+        if (metrics) {
+            System.out.print(benchmark.bank.getMetrics().dump());
+        }
+    }
+}
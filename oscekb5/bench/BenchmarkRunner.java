@@ -0,0 +1,103 @@
+package src.oscekb5.bench;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Klassen representerar en enkel mikrobenchmark-körare utan externa
+ * beroenden.
+ *
+ * Varje benchmark körs först ett antal uppvärmningsiterationer och sedan ett
+ * antal mätiterationer av fast längd. För varje benchmark redovisas tid per
+ * operation, operationer per sekund och antal allokerade byte per operation
+ * (mätt med trådens allokeringsräknare).
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class BenchmarkRunner {
+    /**
+     * En operation som ska mätas. Returvärdet samlas upp så att JIT-kompilatorn
+     * inte kan ta bort arbetet.
+     */
+    public interface Operation {
+        long run(long invocation) throws Exception;
+    }
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+    private final com.sun.management.ThreadMXBean threads;
+    private volatile long sink;
+
+    /**
+     * Konstruktor för klassen
+     *
+     * @param warmupIterations      antal uppvärmningsiterationer
+     * @param measurementIterations antal mätiterationer
+     * @param iterationMillis       längd på varje iteration i millisekunder
+     */
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1_000_000L;
+        this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        this.threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * Kör en benchmark och skriver ut resultatet.
+     *
+     * @param name      benchmarkens namn
+     * @param batchSize antal operationer mellan varje tidskontroll, 1 för
+     *                  långsamma operationer
+     * @param operation operationen som ska mätas
+     * @return genomsnittlig tid per operation i nanosekunder
+     */
+    public double run(String name, int batchSize, Operation operation) {
+        try {
+            long invocation = 0;
+            for (int i = 0; i < warmupIterations; i++) {
+                invocation = iteration(operation, batchSize, invocation, null);
+            }
+            long[] totals = new long[3];
+            for (int i = 0; i < measurementIterations; i++) {
+                invocation = iteration(operation, batchSize, invocation, totals);
+            }
+            long ops = totals[0];
+            double nanosPerOp = (double) totals[1] / ops;
+            double bytesPerOp = (double) totals[2] / ops;
+            System.out.printf("%-45s %14.1f ns/op %14.0f ops/s %12.1f B/op%n", name, nanosPerOp,
+                    1e9 / nanosPerOp, bytesPerOp);
+            return nanosPerOp;
+        } catch (Exception e) {
+            throw new RuntimeException("Benchmark " + name + " failed", e);
+        }
+    }
+
+    /**
+     * Kör en iteration och adderar antal operationer, tid och allokerade byte
+     * till totals (om angiven).
+     */
+    private long iteration(Operation operation, int batchSize, long invocation, long[] totals) throws Exception {
+        long thread = Thread.currentThread().threadId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long elapsed = 0;
+        long ops = 0;
+        long local = 0;
+        while (elapsed < iterationNanos) {
+            for (int k = 0; k < batchSize; k++) {
+                local += operation.run(invocation++);
+            }
+            ops += batchSize;
+            elapsed = System.nanoTime() - start;
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        sink += local;
+        if (totals != null) {
+            totals[0] += ops;
+            totals[1] += elapsed;
+            totals[2] += allocated;
+        }
+        return invocation;
+    }
+}
@@ -0,0 +1,197 @@
+package src.oscekb5.bench;
+
+import src.oscekb5.CompactLedger;
+import src.oscekb5.TransactionHistory;
+import src.oscekb5.TransactionLedger;
+
+import java.nio.charset.StandardCharsets;
+import java.text.NumberFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.function.Supplier;
+
+/**
+ * Benchmark för transaktionshistorikens storlek: antal byte per transaktion
+ * på heapen och i en sparad bank, för historik lagrad som strängar (som
+ * getTransactions returnerar och som banken ursprungligen lagrade),
+ * kolumnvis (TransactionLedger) och komprimerad (CompactLedger). Dessutom
+ * mäts hur lång tid det tar att läsa historiken med den senaste
+ * transaktionen först, som när en sida av historiken formateras.
+ *
+ * Transaktionerna slumpas med ett fast frö: tidpunkter med i genomsnitt sex
+ * timmar emellan, belopp i hela kronor upp till 5 000 kr och vart tionde med
+ * ören. Heapens storlek mäts som skillnaden i använt minne före och efter att
+ * historiken skapats, efter skräpsamling.
+ *
+ * Filstorleken för TransactionLedger mäts inte utan beräknas, eftersom den
+ * lagrades med tre long per transaktion (BankSnapshot version 5 och tidigare)
+ * och därför alltid är 24 byte. Den markeras med * i utskriften. Med dagens
+ * format kodas all historik som i CompactLedger.
+ *
+ * <pre>
+ * java -cp out src.oscekb5.bench.HistoryBenchmark 10000 500
+ * </pre>
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class HistoryBenchmark {
+    private static final long START = Instant.parse("2025-01-01T00:00:00Z").toEpochMilli();
+    private static final double MEAN_INTERVAL = 6 * 3600_000.0;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final int READ_ROUNDS = 5;
+    // Byte per transaktion för TransactionLedger i en sparad bank, beräknat
+    private static final int FIXED_RECORD_SIZE = 3 * Long.BYTES;
+
+    private static volatile long checksumSink;
+
+    private final int accounts;
+    private final int perAccount;
+
+    private HistoryBenchmark(int accounts, int perAccount) {
+        this.accounts = accounts;
+        this.perAccount = perAccount;
+    }
+
+    /**
+     * Kör benchmarken.
+     *
+     * @param args antal konton samt antal transaktioner per konto
+     */
+    public static void main(String[] args) {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int perAccount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        HistoryBenchmark benchmark = new HistoryBenchmark(accounts, perAccount);
+        long transactions = (long) accounts * perAccount;
+
+        System.out.printf("%d konton, %d transaktioner per konto%n", accounts, perAccount);
+        System.out.printf("%-18s %14s %14s %18s%n", "historik", "heap B/trans", "fil B/trans", "läsning ns/trans");
+
+        long[] fileBytes = new long[1];
+        double heap = benchmark.heapBytes(() -> benchmark.strings(fileBytes)) / transactions;
+        System.out.printf("%-18s %14.1f %14.1f %18s%n", "strängar", heap, (double) fileBytes[0] / transactions, "-");
+
+        TransactionLedger[] ledgers = new TransactionLedger[accounts];
+        heap = benchmark.heapBytes(() -> benchmark.fill(ledgers, TransactionLedger::new)) / transactions;
+        System.out.printf("%-18s %14.1f %13.1f* %18.1f%n", "TransactionLedger", heap, (double) FIXED_RECORD_SIZE,
+                readNanos(ledgers) / transactions);
+
+        CompactLedger[] compact = new CompactLedger[accounts];
+        heap = benchmark.heapBytes(() -> benchmark.fill(compact, CompactLedger::new)) / transactions;
+        long encoded = 0;
+        for (CompactLedger ledger : compact) {
+            encoded += ledger.getEncodedSize();
+        }
+        System.out.printf("%-18s %14.1f %14.1f %18.1f%n", "CompactLedger", heap, (double) encoded / transactions,
+                readNanos(compact) / transactions);
+        System.out.println("* beräknat, tre long per transaktion");
+    }
+
+    /**
+     * Skapar historiken som strängar, formaterade som i Account, och
+     * summerar deras storlek i en fil sparad i det äldsta formatet (längd och
+     * UTF-8).
+     */
+    private Object strings(long[] fileBytes) {
+        NumberFormat nf = NumberFormat.getCurrencyInstance(Locale.of("sv", "SE"));
+        nf.setMinimumFractionDigits(2);
+        ZoneId zone = ZoneId.systemDefault();
+        List<List<String>> histories = new ArrayList<>(accounts);
+        for (int i = 0; i < accounts; i++) {
+            List<String> history = new ArrayList<>();
+            generate(i, (time, amount, balance) -> {
+                String date = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), zone).format(DATE_FORMAT);
+                String transaction = date + (amount < 0 ? " -" : " ") + nf.format(Math.abs(amount) / 100.0)
+                        + " Saldo: " + nf.format(balance / 100.0);
+                fileBytes[0] += 2 + transaction.getBytes(StandardCharsets.UTF_8).length;
+                history.add(transaction);
+            });
+            histories.add(history);
+        }
+        return histories;
+    }
+
+    private <T extends TransactionHistory> Object fill(T[] ledgers, Supplier<T> factory) {
+        for (int i = 0; i < ledgers.length; i++) {
+            T ledger = factory.get();
+            generate(i, ledger::append);
+            ledgers[i] = ledger;
+        }
+        return ledgers;
+    }
+
+    /**
+     * Slumpar historiken för ett konto, samma för varje anrop med samma konto.
+     */
+    private void generate(int account, TransactionSink sink) {
+        SplittableRandom random = new SplittableRandom(account);
+        long time = START + random.nextLong(24 * 3600_000L);
+        long balance = 0;
+        for (int k = 0; k < perAccount; k++) {
+            time += (long) (-Math.log(1 - random.nextDouble()) * MEAN_INTERVAL);
+            long amount = (1 + random.nextInt(5000)) * 100L;
+            if (random.nextInt(10) == 0) {
+                amount += random.nextInt(100);
+            }
+            if (balance >= amount && random.nextBoolean()) {
+                amount = -amount;
+            }
+            balance += amount;
+            sink.accept(time, amount, balance);
+        }
+    }
+
+    /**
+     * Returnerar hur många byte på heapen som objekten som skapas upptar.
+     */
+    private double heapBytes(Supplier<Object> create) {
+        long before = usedMemory();
+        Object created = create.get();
+        long after = usedMemory();
+        if (created == null) {
+            throw new IllegalStateException("Nothing created");
+        }
+        return after - before;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Läser samtliga transaktioner, den senaste först, och returnerar tiden
+     * för den snabbaste omgången i nanosekunder.
+     */
+    private static double readNanos(TransactionHistory[] ledgers) {
+        long best = Long.MAX_VALUE;
+        long checksum = 0;
+        for (int round = 0; round < READ_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (TransactionHistory ledger : ledgers) {
+                synchronized (ledger) {
+                    for (int k = ledger.size() - 1; k >= 0; k--) {
+                        checksum += ledger.getTime(k) ^ ledger.getAmount(k) ^ ledger.getBalance(k);
+                    }
+                }
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        // Sparas så att läsningarna inte kan optimeras bort
+        checksumSink = checksum;
+        return best;
+    }
+
+    @FunctionalInterface
+    private interface TransactionSink {
+        void accept(long time, long amount, long balance);
+    }
+}
@@ -0,0 +1,81 @@
+package src.oscekb5.bench;
+
+import src.oscekb5.BankLogic;
+import src.oscekb5.Journal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark för journalens skrivpolicyer: ett antal trådar gör insättningar
+ * som var och en väntar tills insättningen finns på disk (depositDurable).
+ * Med SyncPolicy.ALWAYS gör varje insättning en egen fsync, med
+ * SyncPolicy.GROUP delar samtidiga insättningar på en fsync.
+ *
+ * <pre>
+ * java -cp out src.oscekb5.bench.JournalBenchmark 32 2000 1
+ * </pre>
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class JournalBenchmark {
+    private JournalBenchmark() {
+    }
+
+    /**
+     * Kör benchmarken för SyncPolicy.ALWAYS och SyncPolicy.GROUP.
+     *
+     * @param args antal trådar, insättningar per tråd samt max tid i
+     *             millisekunder för att samla en grupp
+     * @throws Exception ifall en insättning misslyckades
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        long maxLatency = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        for (Journal.SyncPolicy policy : new Journal.SyncPolicy[] { Journal.SyncPolicy.ALWAYS,
+                Journal.SyncPolicy.GROUP }) {
+            BankLogic bank = new BankLogic();
+            String[] pNos = new String[threads];
+            int[] accountIds = new int[threads];
+            for (int i = 0; i < threads; i++) {
+                pNos[i] = String.format("%010d", i);
+                bank.createCustomer("Förnamn", "Efternamn", pNos[i]);
+                accountIds[i] = bank.createCreditAccount(pNos[i]);
+            }
+            bank.openJournal("benchmark.journal", policy, 1024, maxLatency, TimeUnit.MILLISECONDS);
+            // Tömmer journalen från tidigare körningar
+            bank.saveBankToFile("benchmark-journal.bin");
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(pool.submit(() -> {
+                    for (int k = 0; k < perThread; k++) {
+                        if (!bank.depositDurable(pNos[thread], accountIds[thread], 1).join()) {
+                            throw new IllegalStateException("Deposit failed");
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            pool.shutdown();
+            bank.closeJournal();
+
+            long ops = (long) threads * perThread;
+            System.out.printf("depositDurable [%s, %d trådar] %14.0f ops/s %10.1f µs/op%n", policy, threads,
+                    ops * 1e9 / elapsed, elapsed / 1e3 / perThread);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package src.oscekb5.bench;
+
+import src.oscekb5.BankLogic;
+import src.oscekb5.LatencyHistogram;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lastgenerator för kapacitetsplanering: bygger en bank med angivet antal
+ * kunder och konton och kör en blandning av insättningar, uttag och
+ * stängningar från ett antal trådar under en given tid. Därefter redovisas
+ * antal operationer per sekund och svarstidernas percentiler per
+ * operationstyp.
+ *
+ * Kontona väljs enligt en Zipf-fördelning, så att ett fåtal konton används
+ * mycket oftare än övriga. Vilka konton som är populära bestäms slumpmässigt
+ * när banken byggs. Ett stängt konto ersätts direkt med ett nytt konto av
+ * samma typ för samma kund, så att antalet konton är konstant.
+ *
+ * Arbetslasten kan spelas in till fil med record och spelas upp igen med
+ * replay, t.ex. för att jämföra två versioner av banken med exakt samma
+ * operationer. Vid uppspelning byggs banken på samma sätt som vid
+ * inspelningen och varje tråd kör samma operationer i samma ordning, så
+ * snabbt som möjligt.
+ *
+ * Parametrarna anges som namn=värde, t.ex.
+ *
+ * <pre>
+ * java -cp out src.oscekb5.bench.LoadGenerator customers=100000 threads=8 seconds=10 zipf=0.99 mix=60,35,5 record=load.trace
+ * java -cp out src.oscekb5.bench.LoadGenerator replay=load.trace
+ * </pre>
+ *
+ * <ul>
+ * <li>customers - antal kunder (100000)</li>
+ * <li>accounts - antal konton per kund (2)</li>
+ * <li>savings - andel sparkonton, övriga är kreditkonton (0.5)</li>
+ * <li>zipf - Zipf-fördelningens exponent, 0 ger likformig fördelning
+ * (0.99)</li>
+ * <li>mix - vikter för insättning, uttag och stängning (60,35,5)</li>
+ * <li>threads - antal trådar (antal processorer)</li>
+ * <li>seconds - körtid i sekunder (10)</li>
+ * <li>seed - frö för banken och arbetslasten (1)</li>
+ * <li>record - fil som arbetslasten spelas in till</li>
+ * <li>replay - fil som en inspelad arbetslast spelas upp från, övriga
+ * parametrar ignoreras</li>
+ * </ul>
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class LoadGenerator {
+    private static final String[] NAMES = { "deposit", "withdraw", "close" };
+    private static final int INITIAL_SAVINGS = 5000;
+    private static final int MAX_DEPOSIT = 1000;
+    private static final int MAX_WITHDRAWAL = 500;
+
+    private final BankLogic bank = new BankLogic();
+    private final int accountsPerCustomer;
+    private final String[] pNos;
+    private final boolean[] savings;
+    private final AtomicIntegerArray accountIds;
+    private final int[] popularity;
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[NAMES.length];
+    private final LongAdder[] successes = new LongAdder[NAMES.length];
+    private final LongAdder[] failures = new LongAdder[NAMES.length];
+
+    /**
+     * Bygger en bank där varje kund har angivet antal konton. Samma parametrar
+     * ger alltid samma bank, med samma kontonummer.
+     *
+     * @param customers           antal kunder
+     * @param accountsPerCustomer antal konton per kund
+     * @param savingsRatio        andel sparkonton
+     * @param seed                frö för kontotyper och populära konton
+     */
+    public LoadGenerator(int customers, int accountsPerCustomer, double savingsRatio, long seed) {
+        this.accountsPerCustomer = accountsPerCustomer;
+        int accounts = customers * accountsPerCustomer;
+        pNos = new String[customers];
+        savings = new boolean[accounts];
+        accountIds = new AtomicIntegerArray(accounts);
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < customers; i++) {
+            pNos[i] = String.format("%010d", i);
+            bank.createCustomer("Förnamn" + i, "Efternamn" + i, pNos[i]);
+            for (int j = 0; j < accountsPerCustomer; j++) {
+                int slot = i * accountsPerCustomer + j;
+                savings[slot] = random.nextDouble() < savingsRatio;
+                accountIds.set(slot, open(slot));
+            }
+        }
+
+        // Slumpmässig permutation från popularitet till konto
+        popularity = new int[accounts];
+        for (int i = 0; i < accounts; i++) {
+            popularity[i] = i;
+        }
+        for (int i = accounts - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = popularity[i];
+            popularity[i] = popularity[j];
+            popularity[j] = tmp;
+        }
+
+        for (int i = 0; i < NAMES.length; i++) {
+            latency[i] = new LatencyHistogram();
+            successes[i] = new LongAdder();
+            failures[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Öppnar ett konto av rätt typ på angiven plats, med ett startsaldo på
+     * sparkonton så att uttag kan lyckas.
+     */
+    private int open(int slot) {
+        String pNo = pNos[slot / accountsPerCustomer];
+        if (!savings[slot]) {
+            return bank.createCreditAccount(pNo);
+        }
+        int id = bank.createSavingsAccount(pNo);
+        bank.deposit(pNo, id, INITIAL_SAVINGS);
+        return id;
+    }
+
+    /**
+     * Kör en operation och registrerar svarstid och utfall.
+     *
+     * @param type   operationens typ, t.ex. OperationTrace.DEPOSIT
+     * @param slot   kontots plats i banken
+     * @param amount beloppet i kronor
+     */
+    private void apply(byte type, int slot, int amount) {
+        String pNo = pNos[slot / accountsPerCustomer];
+        int id = accountIds.get(slot);
+        long start = System.nanoTime();
+        boolean ok;
+        switch (type) {
+            case OperationTrace.DEPOSIT:
+                ok = bank.deposit(pNo, id, amount);
+                break;
+            case OperationTrace.WITHDRAW:
+                ok = bank.withdraw(pNo, id, amount);
+                break;
+            default:
+                ok = bank.closeAccount(pNo, id) != null;
+                if (ok) {
+                    accountIds.set(slot, open(slot));
+                }
+                break;
+        }
+        latency[type].record(System.nanoTime() - start);
+        (ok ? successes : failures)[type].increment();
+    }
+
+    /**
+     * Kör en slumpmässig arbetslast.
+     *
+     * @param threads  antal trådar
+     * @param seconds  körtid i sekunder
+     * @param exponent Zipf-fördelningens exponent
+     * @param mix      vikter för insättning, uttag och stängning
+     * @param seed     frö för arbetslasten
+     * @param trace    inspelning som operationerna skrivs till, eller null
+     * @return körtid i nanosekunder
+     * @throws Exception ifall en tråd misslyckades
+     */
+    public long run(int threads, int seconds, double exponent, int[] mix, long seed, OperationTrace.Writer trace)
+            throws Exception {
+        ZipfGenerator zipf = new ZipfGenerator(popularity.length, exponent);
+        int total = mix[0] + mix[1] + mix[2];
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        return runThreads(threads, thread -> {
+            SplittableRandom random = new SplittableRandom(seed * 31 + thread);
+            OperationTrace.Recorder recorder = trace == null ? null : trace.recorder(thread);
+            int k = 0;
+            while ((k++ & 63) != 0 || System.nanoTime() < deadline) {
+                int pick = random.nextInt(total);
+                byte type = pick < mix[0] ? OperationTrace.DEPOSIT
+                        : pick < mix[0] + mix[1] ? OperationTrace.WITHDRAW : OperationTrace.CLOSE;
+                int slot = popularity[zipf.next(random)];
+                int amount = type == OperationTrace.DEPOSIT ? 1 + random.nextInt(MAX_DEPOSIT)
+                        : type == OperationTrace.WITHDRAW ? 1 + random.nextInt(MAX_WITHDRAWAL) : 0;
+                if (recorder != null) {
+                    recorder.add(type, slot, amount);
+                }
+                apply(type, slot, amount);
+            }
+            if (recorder != null) {
+                recorder.flush();
+            }
+        });
+    }
+
+    /**
+     * Spelar upp en inspelad arbetslast med en tråd per inspelad tråd.
+     *
+     * @param trace den inspelade arbetslasten
+     * @return körtid i nanosekunder
+     * @throws Exception ifall en tråd misslyckades
+     */
+    public long replay(OperationTrace trace) throws Exception {
+        return runThreads(trace.getThreads(), thread -> {
+            for (int i = 0; i < trace.size(thread); i++) {
+                apply(trace.getType(thread, i), trace.getSlot(thread, i), trace.getAmount(thread, i));
+            }
+        });
+    }
+
+    /**
+     * Arbetet för en tråd.
+     */
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    /**
+     * Kör arbetet i angivet antal trådar och väntar tills samtliga är klara.
+     *
+     * @return körtid i nanosekunder
+     */
+    private long runThreads(int threads, Worker worker) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(pool.submit(() -> {
+                    worker.run(thread);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Skriver ut antal operationer per sekund och svarstider i mikrosekunder
+     * per operationstyp.
+     *
+     * @param elapsed körtid i nanosekunder
+     */
+    public void report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        long total = 0;
+        System.out.printf("%-10s %12s %12s %10s %10s %9s %9s %9s %9s%n", "operation", "antal", "antal/s", "lyckade",
+                "nekade", "p50", "p99", "p99.9", "max");
+        for (int i = 0; i < NAMES.length; i++) {
+            LatencyHistogram histogram = latency[i];
+            long count = histogram.getCount();
+            total += count;
+            System.out.printf("%-10s %12d %12.0f %10d %10d %9.1f %9.1f %9.1f %9.1f%n", NAMES[i], count,
+                    count / seconds, successes[i].sum(), failures[i].sum(), histogram.getPercentile(50) / 1e3,
+                    histogram.getPercentile(99) / 1e3, histogram.getPercentile(99.9) / 1e3,
+                    histogram.getMax() / 1e3);
+        }
+        System.out.printf("totalt %d operationer på %.1f s, %.0f operationer/s%n", total, seconds, total / seconds);
+    }
+
+    /**
+     * Bygger banken och kör eller spelar upp arbetslasten.
+     *
+     * @param args parametrar som namn=värde, se klassbeskrivningen
+     * @throws Exception ifall arbetslasten inte kunde köras, spelas in eller
+     *                   spelas upp
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        String replay = options.get("replay");
+        if (replay != null) {
+            OperationTrace trace = OperationTrace.read(file(replay));
+            System.out.printf("Spelar upp %s: %d kunder, %d konton per kund, %d trådar%n", replay,
+                    trace.getCustomers(), trace.getAccountsPerCustomer(), trace.getThreads());
+            LoadGenerator generator = new LoadGenerator(trace.getCustomers(), trace.getAccountsPerCustomer(),
+                    trace.getSavingsRatio(), trace.getSeed());
+            generator.report(generator.replay(trace));
+            return;
+        }
+
+        int customers = Integer.parseInt(options.getOrDefault("customers", "100000"));
+        int accounts = Integer.parseInt(options.getOrDefault("accounts", "2"));
+        double savingsRatio = Double.parseDouble(options.getOrDefault("savings", "0.5"));
+        double exponent = Double.parseDouble(options.getOrDefault("zipf", "0.99"));
+        String[] weights = options.getOrDefault("mix", "60,35,5").split(",");
+        if (weights.length != 3) {
+            throw new IllegalArgumentException("Expected mix=deposit,withdraw,close");
+        }
+        int[] mix = new int[3];
+        for (int i = 0; i < 3; i++) {
+            mix[i] = Integer.parseInt(weights[i].trim());
+        }
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+
+        System.out.printf("%d kunder, %d konton per kund, zipf %.2f, mix %d/%d/%d, %d trådar, %d s%n", customers,
+                accounts, exponent, mix[0], mix[1], mix[2], threads, seconds);
+        LoadGenerator generator = new LoadGenerator(customers, accounts, savingsRatio, seed);
+        String record = options.get("record");
+        if (record == null) {
+            generator.report(generator.run(threads, seconds, exponent, mix, seed, null));
+            return;
+        }
+        try (OperationTrace.Writer trace = new OperationTrace.Writer(file(record), customers, accounts,
+                savingsRatio, seed, threads)) {
+            generator.report(generator.run(threads, seconds, exponent, mix, seed, trace));
+        }
+    }
+
+    private static Path file(String name) {
+        return Paths.get("src/oscekb5/files/" + name);
+    }
+}
@@ -0,0 +1,285 @@
+package src.oscekb5.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Klassen representerar en inspelad arbetslast för LoadGenerator: parametrarna
+ * som banken byggdes med och samtliga operationer som varje tråd körde, i
+ * ordning.
+ *
+ * Filen består av ett huvud följt av block med operationer. Varje tråd samlar
+ * sina operationer i en egen buffert som skrivs som ett block när den är full,
+ * så att trådarna inte behöver synkronisera per operation. En operation lagras
+ * som typ, kontots plats i banken (inte kontonumret, som kan ändras när konton
+ * stängs och öppnas) och belopp.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class OperationTrace {
+    static final int MAGIC = 0x424B5431; // "BKT1"
+    static final int VERSION = 1;
+
+    /** Insättning */
+    public static final byte DEPOSIT = 0;
+    /** Uttag */
+    public static final byte WITHDRAW = 1;
+    /** Stängning av kontot och öppning av ett nytt av samma typ */
+    public static final byte CLOSE = 2;
+
+    private static final int HEADER_SIZE = 36;
+    private static final int RECORD_SIZE = 9;
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int CHUNK_RECORDS = 8192;
+
+    private final int customers;
+    private final int accountsPerCustomer;
+    private final double savingsRatio;
+    private final long seed;
+    private final byte[][] types;
+    private final int[][] slots;
+    private final int[][] amounts;
+    private final int[] sizes;
+
+    private OperationTrace(int customers, int accountsPerCustomer, double savingsRatio, long seed, int threads) {
+        this.customers = customers;
+        this.accountsPerCustomer = accountsPerCustomer;
+        this.savingsRatio = savingsRatio;
+        this.seed = seed;
+        types = new byte[threads][CHUNK_RECORDS];
+        slots = new int[threads][CHUNK_RECORDS];
+        amounts = new int[threads][CHUNK_RECORDS];
+        sizes = new int[threads];
+    }
+
+    /**
+     * Läser in en inspelad arbetslast.
+     *
+     * @param path sökväg till filen
+     * @return arbetslasten
+     * @throws IOException ifall filen inte kunde läsas eller har fel format
+     */
+    public static OperationTrace read(Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (in.size() > Integer.MAX_VALUE) {
+                throw new IOException("Trace too large to map");
+            }
+            ByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC) {
+                throw new IOException("Not an operation trace");
+            }
+            int version = data.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trace version: " + version);
+            }
+            OperationTrace trace = new OperationTrace(data.getInt(), data.getInt(), data.getDouble(),
+                    data.getLong(), data.getInt());
+            while (data.remaining() >= CHUNK_HEADER_SIZE) {
+                int thread = data.getInt();
+                int count = data.getInt();
+                if (thread < 0 || thread >= trace.sizes.length || data.remaining() < count * RECORD_SIZE) {
+                    throw new IOException("Corrupt operation trace");
+                }
+                for (int i = 0; i < count; i++) {
+                    trace.add(thread, data.get(), data.getInt(), data.getInt());
+                }
+            }
+            return trace;
+        }
+    }
+
+    private void add(int thread, byte type, int slot, int amount) {
+        int size = sizes[thread];
+        if (size == types[thread].length) {
+            types[thread] = Arrays.copyOf(types[thread], size * 2);
+            slots[thread] = Arrays.copyOf(slots[thread], size * 2);
+            amounts[thread] = Arrays.copyOf(amounts[thread], size * 2);
+        }
+        types[thread][size] = type;
+        slots[thread][size] = slot;
+        amounts[thread][size] = amount;
+        sizes[thread] = size + 1;
+    }
+
+    /**
+     * @return antal kunder i banken
+     */
+    public int getCustomers() {
+        return customers;
+    }
+
+    /**
+     * @return antal konton per kund
+     */
+    public int getAccountsPerCustomer() {
+        return accountsPerCustomer;
+    }
+
+    /**
+     * @return andel sparkonton
+     */
+    public double getSavingsRatio() {
+        return savingsRatio;
+    }
+
+    /**
+     * @return fröet som banken byggdes med
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return antal trådar
+     */
+    public int getThreads() {
+        return sizes.length;
+    }
+
+    /**
+     * Returnerar antalet operationer som angiven tråd körde.
+     *
+     * @param thread trådens nummer
+     * @return antal operationer
+     */
+    public int size(int thread) {
+        return sizes[thread];
+    }
+
+    /**
+     * @param thread trådens nummer
+     * @param index  operationens position
+     * @return operationens typ, t.ex. DEPOSIT
+     */
+    public byte getType(int thread, int index) {
+        return types[thread][index];
+    }
+
+    /**
+     * @param thread trådens nummer
+     * @param index  operationens position
+     * @return kontots plats i banken
+     */
+    public int getSlot(int thread, int index) {
+        return slots[thread][index];
+    }
+
+    /**
+     * @param thread trådens nummer
+     * @param index  operationens position
+     * @return beloppet i kronor
+     */
+    public int getAmount(int thread, int index) {
+        return amounts[thread][index];
+    }
+
+    /**
+     * Klassen skriver en arbetslast till fil medan den körs.
+     */
+    public static class Writer implements Closeable {
+        private final FileChannel out;
+
+        /**
+         * Skapar filen och skriver huvudet.
+         *
+         * @param path                sökväg till filen
+         * @param customers           antal kunder i banken
+         * @param accountsPerCustomer antal konton per kund
+         * @param savingsRatio        andel sparkonton
+         * @param seed                fröet som banken byggdes med
+         * @param threads             antal trådar
+         * @throws IOException ifall filen inte kunde skrivas
+         */
+        public Writer(Path path, int customers, int accountsPerCustomer, double savingsRatio, long seed,
+                int threads) throws IOException {
+            out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(customers);
+            header.putInt(accountsPerCustomer);
+            header.putDouble(savingsRatio);
+            header.putLong(seed);
+            header.putInt(threads);
+            write(header.flip());
+        }
+
+        /**
+         * Returnerar en inspelare för angiven tråd. Inspelaren får bara
+         * användas av den tråden.
+         *
+         * @param thread trådens nummer
+         * @return inspelaren
+         */
+        public Recorder recorder(int thread) {
+            return new Recorder(this, thread);
+        }
+
+        private synchronized void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Klassen samlar en tråds operationer och skriver dem som block.
+     */
+    public static class Recorder {
+        private final Writer writer;
+        private final int thread;
+        private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_HEADER_SIZE + CHUNK_RECORDS * RECORD_SIZE);
+        private int count = 0;
+
+        private Recorder(Writer writer, int thread) {
+            this.writer = writer;
+            this.thread = thread;
+            buffer.position(CHUNK_HEADER_SIZE);
+        }
+
+        /**
+         * Lägger till en operation.
+         *
+         * @param type   operationens typ, t.ex. DEPOSIT
+         * @param slot   kontots plats i banken
+         * @param amount beloppet i kronor
+         * @throws IOException ifall blocket inte kunde skrivas
+         */
+        public void add(byte type, int slot, int amount) throws IOException {
+            buffer.put(type);
+            buffer.putInt(slot);
+            buffer.putInt(amount);
+            if (++count == CHUNK_RECORDS) {
+                flush();
+            }
+        }
+
+        /**
+         * Skriver de operationer som inte redan skrivits.
+         *
+         * @throws IOException ifall blocket inte kunde skrivas
+         */
+        public void flush() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            buffer.putInt(0, thread);
+            buffer.putInt(4, count);
+            writer.write(buffer.flip());
+            buffer.clear();
+            buffer.position(CHUNK_HEADER_SIZE);
+            count = 0;
+        }
+    }
+}
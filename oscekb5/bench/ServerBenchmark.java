@@ -0,0 +1,100 @@
+package src.oscekb5.bench;
+
+import src.oscekb5.BankLogic;
+import src.oscekb5.BankServer;
+import src.oscekb5.LatencyHistogram;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark för BankServer: ett stort antal samtidiga klienter, var och en en
+ * virtuell tråd, gör insättningar och läser konton över HTTP mot en server i
+ * samma process. Klienterna delar en HttpClient som återanvänder
+ * anslutningarna (keep-alive). Antal anrop per sekund och svarstider skrivs
+ * ut efteråt.
+ *
+ * <pre>
+ * java -cp out src.oscekb5.bench.ServerBenchmark 2000 100 10000
+ * </pre>
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class ServerBenchmark {
+    private ServerBenchmark() {
+    }
+
+    /**
+     * Kör benchmarken.
+     *
+     * @param args antal klienter, anrop per klient samt antal kunder
+     * @throws Exception ifall ett anrop misslyckades
+     */
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int perClient = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int customers = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+        BankServer.enableNoDelay();
+        BankLogic bank = new BankLogic();
+        String[] pNos = new String[customers];
+        int[] accountIds = new int[customers];
+        for (int i = 0; i < customers; i++) {
+            pNos[i] = String.format("%010d", i);
+            bank.createCustomer("Förnamn", "Efternamn", pNos[i]);
+            accountIds[i] = bank.createCreditAccount(pNos[i]);
+        }
+
+        try (BankServer server = new BankServer(bank, new InetSocketAddress("127.0.0.1", 0));
+                ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(pool)
+                    .build();
+            String base = "http://127.0.0.1:" + server.getPort() + "/customers/";
+            LatencyHistogram latency = new LatencyHistogram();
+            AtomicLong failures = new AtomicLong();
+
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int c = 0; c < clients; c++) {
+                SplittableRandom random = new SplittableRandom(c);
+                futures.add(pool.submit(() -> {
+                    for (int k = 0; k < perClient; k++) {
+                        int customer = random.nextInt(customers);
+                        String account = base + pNos[customer] + "/accounts/" + accountIds[customer];
+                        // Var fjärde anrop läser kontot, övriga sätter in pengar
+                        HttpRequest request = (k & 3) == 3
+                                ? HttpRequest.newBuilder(URI.create(account)).GET().build()
+                                : HttpRequest.newBuilder(URI.create(account + "/deposit?amount=1"))
+                                        .POST(HttpRequest.BodyPublishers.noBody()).build();
+                        long begin = System.nanoTime();
+                        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                        latency.record(System.nanoTime() - begin);
+                        if (response.statusCode() != 200) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            long requests = (long) clients * perClient;
+            System.out.printf("%d klienter, %d anrop: %.0f anrop/s, p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d fel%n",
+                    clients, requests, requests * 1e9 / elapsed, latency.getPercentile(50) / 1e6,
+                    latency.getPercentile(99) / 1e6, latency.getMax() / 1e6, failures.get());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package src.oscekb5.bench;
+
+import src.oscekb5.BankLogic;
+import src.oscekb5.ShardedBank;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmark för ShardedBank: ett antal trådar gör insättningar och uttag på
+ * slumpvis valda kunders kreditkonton, för 1, 2, 4, ... upp till angivet antal
+ * trådar. Varje antal trådar körs dels direkt mot BankLogic, dels som
+ * kommandon till en ShardedBank med lika många shards som trådar. Avsändarna
+ * har högst ett fönster med kommandon som väntar på svar, så att
+ * ringbuffertarna hålls fyllda utan att avsändarna väntar på varje svar.
+ *
+ * <pre>
+ * java -cp out src.oscekb5.bench.ShardBenchmark 100000 1000000 8
+ * </pre>
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class ShardBenchmark {
+    private static final int RING_SIZE = 4096;
+    private static final int WINDOW = 256;
+
+    private final BankLogic bank = new BankLogic();
+    private final String[] pNos;
+    private final int[] accountIds;
+
+    private ShardBenchmark(int customers) {
+        pNos = new String[customers];
+        accountIds = new int[customers];
+        for (int i = 0; i < customers; i++) {
+            pNos[i] = String.format("%010d", i);
+            bank.createCustomer("Förnamn", "Efternamn", pNos[i]);
+            accountIds[i] = bank.createCreditAccount(pNos[i]);
+        }
+    }
+
+    /**
+     * Kör benchmarken.
+     *
+     * @param args antal kunder, operationer per tråd samt högsta antal trådar
+     * @throws Exception ifall en operation misslyckades
+     */
+    public static void main(String[] args) throws Exception {
+        int customers = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+
+        // Uppvärmning så att JIT-kompileringen inte hamnar i första mätningen
+        new ShardBenchmark(customers).run(1, perThread, false, false);
+        new ShardBenchmark(customers).run(1, perThread, true, false);
+        for (int threads = 1; threads <= maxThreads; threads = threads < maxThreads
+                ? Math.min(threads * 2, maxThreads) : threads + 1) {
+            for (boolean sharded : new boolean[] { false, true }) {
+                new ShardBenchmark(customers).run(threads, perThread, sharded, true);
+            }
+        }
+    }
+
+    private void run(int threads, int perThread, boolean sharded, boolean report) throws Exception {
+        ShardedBank shards = sharded ? new ShardedBank(bank, threads, RING_SIZE) : null;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            SplittableRandom random = new SplittableRandom(t);
+            futures.add(pool.submit(() -> {
+                List<CompletableFuture<Boolean>> window = new ArrayList<>(WINDOW);
+                for (int k = 0; k < perThread; k++) {
+                    int customer = random.nextInt(pNos.length);
+                    boolean deposit = (k & 1) == 0;
+                    int amount = 1 + random.nextInt(100);
+                    if (shards == null) {
+                        boolean ok = deposit ? bank.deposit(pNos[customer], accountIds[customer], amount)
+                                : bank.withdraw(pNos[customer], accountIds[customer], amount);
+                        check(ok);
+                        continue;
+                    }
+                    window.add(deposit ? shards.deposit(pNos[customer], accountIds[customer], amount)
+                            : shards.withdraw(pNos[customer], accountIds[customer], amount));
+                    if (window.size() == WINDOW) {
+                        for (CompletableFuture<Boolean> future : window) {
+                            check(future.join());
+                        }
+                        window.clear();
+                    }
+                }
+                for (CompletableFuture<Boolean> future : window) {
+                    check(future.join());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        if (shards != null) {
+            shards.close();
+        }
+        if (report) {
+            long ops = (long) threads * perThread;
+            System.out.printf("%-11s [%2d trådar] %12.0f ops/s %8.3f µs/op%n", sharded ? "ShardedBank" : "BankLogic",
+                    threads, ops * 1e9 / elapsed, elapsed / 1e3 / perThread);
+        }
+    }
+
+    private static void check(boolean ok) {
+        if (!ok) {
+            throw new IllegalStateException("Operation failed");
+        }
+    }
+}
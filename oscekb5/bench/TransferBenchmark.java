@@ -0,0 +1,149 @@
+package src.oscekb5.bench;
+
+import src.oscekb5.BankLogic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Benchmark för överföringar mellan konton (transfer). Ett antal trådar gör
+ * överföringar mellan slumpvis valda kreditkonton, för 1, 2, 4, ... upp till
+ * angivet antal trådar. Kontona väljs enligt en Zipf-fördelning, så med en
+ * exponent nära 1 går en stor del av överföringarna till och från ett fåtal
+ * konton.
+ *
+ * Varje antal trådar körs både med bankens egna lås per konto och med ett
+ * gemensamt lås runt varje överföring, som jämförelse med en bank som bara
+ * låter en överföring i taget pågå. Efter varje körning kontrolleras att
+ * summan av alla saldon är oförändrad, och en körning som inte blir klar
+ * inom en minut räknas som ett dödläge.
+ *
+ * <pre>
+ * java -cp out src.oscekb5.bench.TransferBenchmark 10000 200000 8 0.8
+ * </pre>
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class TransferBenchmark {
+    private static final int INITIAL_BALANCE = 1000;
+    private static final int MAX_AMOUNT = 100;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final BankLogic bank = new BankLogic();
+    private final String[] pNos;
+    private final int[] accountIds;
+    private final ZipfGenerator zipf;
+
+    private TransferBenchmark(int accounts, double exponent) {
+        pNos = new String[accounts];
+        accountIds = new int[accounts];
+        for (int i = 0; i < accounts; i++) {
+            pNos[i] = String.format("%010d", i);
+            bank.createCustomer("Förnamn", "Efternamn", pNos[i]);
+            accountIds[i] = bank.createCreditAccount(pNos[i]);
+            bank.deposit(pNos[i], accountIds[i], INITIAL_BALANCE);
+        }
+        zipf = new ZipfGenerator(accounts, exponent);
+    }
+
+    /**
+     * Kör benchmarken.
+     *
+     * @param args antal konton, överföringar per tråd, högsta antal trådar
+     *             samt Zipf-exponent för valet av konton
+     * @throws Exception ifall summan av saldona ändrades eller en körning inte
+     *                   blev klar
+     */
+    public static void main(String[] args) throws Exception {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        double exponent = args.length > 3 ? Double.parseDouble(args[3]) : 0.8;
+
+        // Uppvärmning så att JIT-kompileringen inte hamnar i första mätningen
+        new TransferBenchmark(accounts, exponent).run(1, perThread, false, false);
+        for (int threads = 1; threads <= maxThreads; threads = threads < maxThreads
+                ? Math.min(threads * 2, maxThreads) : threads + 1) {
+            for (boolean globalLock : new boolean[] { false, true }) {
+                // En ny bank per körning, så att historikens storlek inte
+                // påverkar senare körningar
+                TransferBenchmark benchmark = new TransferBenchmark(accounts, exponent);
+                benchmark.run(threads, perThread, globalLock, true);
+            }
+        }
+    }
+
+    private void run(int threads, int perThread, boolean globalLock, boolean report) throws Exception {
+        long before = totalBalance();
+        Object lock = new Object();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            SplittableRandom random = new SplittableRandom(t);
+            futures.add(pool.submit(() -> {
+                int succeeded = 0;
+                for (int k = 0; k < perThread; k++) {
+                    int from = zipf.next(random);
+                    int to = zipf.next(random);
+                    if (from == to) {
+                        to = (to + 1) % pNos.length;
+                    }
+                    int amount = 1 + random.nextInt(MAX_AMOUNT);
+                    boolean ok;
+                    if (globalLock) {
+                        synchronized (lock) {
+                            ok = bank.transfer(pNos[from], accountIds[from], pNos[to], accountIds[to], amount);
+                        }
+                    } else {
+                        ok = bank.transfer(pNos[from], accountIds[from], pNos[to], accountIds[to], amount);
+                    }
+                    if (ok) {
+                        succeeded++;
+                    }
+                }
+                return succeeded;
+            }));
+        }
+        long succeeded = 0;
+        try {
+            for (Future<Integer> future : futures) {
+                succeeded += future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Transfers did not finish, possible deadlock");
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        long after = totalBalance();
+        if (after != before) {
+            throw new IllegalStateException("Total balance changed from " + before + " to " + after);
+        }
+        if (!report) {
+            return;
+        }
+        long ops = (long) threads * perThread;
+        System.out.printf("transfer [%s, %2d trådar] %12.0f ops/s %8.3f µs/op %5.1f %% lyckade%n",
+                globalLock ? "gemensamt lås" : "lås per konto", threads, ops * 1e9 / elapsed,
+                elapsed / 1e3 / perThread, 100.0 * succeeded / ops);
+    }
+
+    /**
+     * Returnerar summan av samtliga kontons saldon i ören.
+     */
+    private long totalBalance() {
+        long total = 0;
+        for (int i = 0; i < pNos.length; i++) {
+            total += bank.getCustomerObj(pNos[i]).getAccountFromId(accountIds[i]).getMinorBalance();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,103 @@
+package src.oscekb5.bench;
+
+import java.util.SplittableRandom;
+
+/**
+ * Klassen drar slumpmässiga rangordningar enligt en Zipf-fördelning, där
+ * rang k dras med sannolikhet proportionell mot 1 / k^exponent. Med exponent
+ * nära 1 står ett fåtal rangordningar för en stor del av dragningarna, som när
+ * ett fåtal konton används mycket oftare än övriga.
+ *
+ * Dragningen görs med förkastande inversion (Hörmann och Derflinger), som
+ * varken behöver en tabell över fördelningen eller tid som beror på antalet
+ * rangordningar.
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class ZipfGenerator {
+    private final int count;
+    private final double exponent;
+    private final double hIntegralX1;
+    private final double hIntegralCount;
+    private final double s;
+
+    /**
+     * Konstruktor för klassen ZipfGenerator.
+     *
+     * @param count    antal rangordningar, minst 1
+     * @param exponent fördelningens exponent, 0 ger likformig fördelning
+     */
+    public ZipfGenerator(int count, double exponent) {
+        if (count < 1 || exponent < 0) {
+            throw new IllegalArgumentException("Invalid Zipf parameters: " + count + ", " + exponent);
+        }
+        this.count = count;
+        this.exponent = exponent;
+        hIntegralX1 = hIntegral(1.5) - 1;
+        hIntegralCount = hIntegral(count + 0.5);
+        s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    /**
+     * Drar en rangordning.
+     *
+     * @param random slumptalsgenerator
+     * @return rangordning mellan 0 (vanligast) och count - 1
+     */
+    public int next(SplittableRandom random) {
+        while (true) {
+            double u = hIntegralCount + random.nextDouble() * (hIntegralX1 - hIntegralCount);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1) {
+                k = 1;
+            } else if (k > count) {
+                k = count;
+            }
+            if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                return k - 1;
+            }
+        }
+    }
+
+    /**
+     * Primitiv funktion till h, förskjuten så att den är kontinuerlig även
+     * för exponent 1.
+     */
+    private double hIntegral(double x) {
+        double logX = Math.log(x);
+        return helper2((1 - exponent) * logX) * logX;
+    }
+
+    private double h(double x) {
+        return Math.exp(-exponent * Math.log(x));
+    }
+
+    private double hIntegralInverse(double x) {
+        double t = x * (1 - exponent);
+        if (t < -1) {
+            t = -1;
+        }
+        return Math.exp(helper1(t) * x);
+    }
+
+    /**
+     * log(1 + x) / x, med serieutveckling nära 0.
+     */
+    private static double helper1(double x) {
+        if (Math.abs(x) > 1e-8) {
+            return Math.log1p(x) / x;
+        }
+        return 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+    }
+
+    /**
+     * (exp(x) - 1) / x, med serieutveckling nära 0.
+     */
+    private static double helper2(double x) {
+        if (Math.abs(x) > 1e-8) {
+            return Math.expm1(x) / x;
+        }
+        return 1 + x * 0.5 * (1 + x * (1.0 / 3) * (1 + 0.25 * x));
+    }
+}
@@ -0,0 +1,108 @@
+package src.oscekb5.check;
+
+import src.oscekb5.BankLogic;
+import src.oscekb5.Journal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Kontroller för fel som har rättats, så att de inte återkommer. Varje
+ * kontroll kör ett scenario mot banken och kastar AssertionError ifall
+ * resultatet är fel. Filerna skrivs med prefixet check- i src/oscekb5/files
+ * och tas bort innan kontrollen körs.
+ *
+ * <pre>
+ * java -cp out src.oscekb5.check.RegressionChecks
+ * </pre>
+ *
+ * @author Oscar Ekberg, oscekb-5
+ */
+public class RegressionChecks {
+    private static final Path FILES = Paths.get("src/oscekb5/files");
+
+    private RegressionChecks() {
+    }
+
+    /**
+     * Kör samtliga kontroller.
+     *
+     * @param args används inte
+     * @throws IOException ifall filerna inte kunde tas bort
+     */
+    public static void main(String[] args) throws IOException {
+        checkpointKeepsDelta();
+        longNameSaves();
+        System.out.println("All checks passed");
+    }
+
+    /**
+     * En kontrollpunkt i händelsebaserat läge får inte göra att transaktioner
+     * före den saknas i nästa deltafil.
+     */
+    private static void checkpointKeepsDelta() throws IOException {
+        delete("check-events");
+        delete("check-delta.bin");
+        BankLogic bank = new BankLogic();
+        bank.openEventStore("check-events", Journal.SyncPolicy.NEVER, 64, 0);
+        try {
+            bank.createCustomer("Förnamn", "Efternamn", "0000000001");
+            int accountId = bank.createCreditAccount("0000000001");
+            bank.deposit("0000000001", accountId, 100);
+            bank.saveBankToFile("check-delta.bin");
+            bank.deposit("0000000001", accountId, 50);
+            bank.checkpoint();
+            bank.deposit("0000000001", accountId, 25);
+            bank.saveBankToFile("check-delta.bin");
+
+            BankLogic loaded = new BankLogic();
+            loaded.loadBankToFile("check-delta.bin");
+            check(loaded.getTransactions("0000000001", accountId), bank.getTransactions("0000000001", accountId),
+                    "checkpointKeepsDelta");
+        } finally {
+            bank.closeJournal();
+        }
+        delete("check-events");
+        delete("check-delta.bin");
+    }
+
+    /**
+     * Ett namn som är större än skrivbufferten ska kunna sparas och läsas in.
+     */
+    private static void longNameSaves() throws IOException {
+        delete("check-long.bin");
+        String name = "x".repeat(2 << 20);
+        BankLogic bank = new BankLogic();
+        bank.createCustomer(name, "Efternamn", "0000000001");
+        bank.saveBankToFile("check-long.bin");
+        BankLogic loaded = new BankLogic();
+        loaded.loadBankToFile("check-long.bin");
+        check(loaded.getCustomer("0000000001"), bank.getCustomer("0000000001"), "longNameSaves");
+        delete("check-long.bin");
+    }
+
+    private static void check(Object actual, Object expected, String name) {
+        if (!expected.equals(actual)) {
+            throw new AssertionError(name + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    /**
+     * Tar bort en fil eller katalog i bankens filkatalog, samt dess deltafiler.
+     */
+    private static void delete(String name) throws IOException {
+        try (Stream<Path> files = Files.list(FILES)) {
+            for (Path path : files.filter(p -> p.getFileName().toString().startsWith(name)).toList()) {
+                try (Stream<Path> tree = Files.walk(path)) {
+                    for (Path file : tree.sorted(Comparator.reverseOrder()).toList()) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+    }
+}